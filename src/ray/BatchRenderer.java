@@ -0,0 +1,310 @@
+package ray;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Renders many scene files at once.  Each file goes through five stages:
+ * read the XML, parse it, render, encode the PNG, and write it.  Each stage
+ * is a separate task, so while one scene's tiles are being traced another
+ * can be parsed and a third written out.  The parse, render and encode
+ * stages run on one shared fork/join pool of options.getThreads() workers.
+ * The read and write stages run there too, unless options.getIoThreads() is
+ * set, in which case they get a pool of their own: when scenes live on
+ * network storage, many small reads and writes can then wait on the network
+ * at once without taking threads from tracing.
+ *
+ * At most options.getJobs() scenes are in flight at a time; the next one is
+ * not parsed until one of them has been written.  Reads hold only the XML,
+ * so they run ahead of that: up to options.getIoThreads() files (or
+ * options.getJobs(), without I/O threads of their own) may be read or
+ * waiting to be parsed at once.  When every file is done, the time each
+ * spent in each stage is printed.
+ */
+public class BatchRenderer {
+
+	/** Names of the stages, in order. */
+	protected static final String[] STAGES = { "read", "parse", "render", "encode", "write" };
+
+	/** Whether each stage waits on storage rather than the processor. */
+	protected static final boolean[] IO_STAGES = { true, false, false, false, true };
+
+	/** How to render; getThreads() sizes the pool and getJobs() bounds the scenes in flight. */
+	protected final RenderOptions options;
+
+	/** The files of the last batch, in the order given. */
+	protected final ArrayList<Job> jobs = new ArrayList<Job>();
+
+	/** The shared pool, while a batch runs. */
+	protected ForkJoinPool pool;
+
+	/** Runs the reads and writes, while a batch runs; the shared pool unless options.getIoThreads() is set. */
+	protected ExecutorService io;
+
+	/** Free places for scenes in flight, while a batch runs. */
+	protected Semaphore slots;
+
+	/** Free places for files read ahead of those in flight, while a batch runs. */
+	protected Semaphore reads;
+
+	/** Files read and waiting for a place in flight, while a batch runs. */
+	protected final ConcurrentLinkedQueue<Job> ready = new ConcurrentLinkedQueue<Job>();
+
+	/** Counts the files not yet finished, while a batch runs. */
+	protected CountDownLatch unfinished;
+
+	/**
+	 * Create a batch renderer.
+	 * @param options how to render
+	 */
+	public BatchRenderer(RenderOptions options) {
+		this.options = options;
+	}
+
+	/**
+	 * Find the scenes in a file or directory, as RayTracer.recursiveXML would
+	 * render them.
+	 * @param input an XML file, or a directory to search
+	 * @param scenes the list to add the XML files found to
+	 */
+	public static void findScenes(File input, List<File> scenes) {
+
+		if (input.isFile()) {
+			if (input.getName().endsWith(".xml"))
+				scenes.add(input);
+		}
+		else if (input.isDirectory()) {
+			File[] listing = input.listFiles();
+			if (listing != null) {
+				for (File file : listing)
+					findScenes(file, scenes);
+			}
+		}
+		else {
+			System.out.println("Input argument \"" + input + "\" is neither an XML file nor a directory.");
+		}
+	}
+
+	/**
+	 * Render every scene, writing each to its file name with .png (or the
+	 * options' output format) appended,
+	 * and print a summary.
+	 * @param scenes the scene files
+	 * @return the number of files that could not be rendered
+	 */
+	public int render(List<File> scenes) {
+
+		long startTime = System.nanoTime();
+		jobs.clear();
+		for (File file : scenes)
+			jobs.add(new Job(file));
+		pool = new ForkJoinPool(options.getThreads());
+		io = (options.getIoThreads() > 0) ? Executors.newFixedThreadPool(options.getIoThreads()) : pool;
+		slots = new Semaphore(options.getJobs());
+		reads = new Semaphore(options.getIoThreads() > 0 ? options.getIoThreads() : options.getJobs());
+		ready.clear();
+		unfinished = new CountDownLatch(jobs.size());
+		ForkJoinPool shared = options.getPool();
+		options.setPool(pool);
+		try {
+			for (Job job : jobs) {
+				reads.acquireUninterruptibly();
+				job.started = System.nanoTime();
+				io.execute(job);
+			}
+			unfinished.await();
+		}
+		catch (InterruptedException e) {
+			throw new Error("Interrupted while rendering a batch", e);
+		}
+		finally {
+			options.setPool(shared);
+			pool.shutdown();
+			io.shutdown();
+		}
+		return summarize(System.nanoTime() - startTime);
+	}
+
+	/**
+	 * Start parsing the files that have been read, while there are places
+	 * for them in flight.
+	 */
+	protected void startReady() {
+
+		while (!ready.isEmpty() && slots.tryAcquire()) {
+			Job job = ready.poll();
+			if (job == null) {
+				// Another thread took it; look again.
+				slots.release();
+				continue;
+			}
+			job.inFlight = true;
+			reads.release();
+			pool.execute(job);
+		}
+	}
+
+	/**
+	 * Read a scene file.
+	 * @param file the file
+	 * @return its bytes
+	 * @throws IOException if it cannot be read
+	 */
+	protected byte[] read(File file) throws IOException {
+		return Files.readAllBytes(file.toPath());
+	}
+
+	/**
+	 * Print the time each file spent in each stage.
+	 * @return the number of files that failed
+	 */
+	protected int summarize(long nanos) {
+
+		int failed = 0;
+		double[] total = new double[STAGES.length];
+		System.out.println("Rendered " + jobs.size() + " scenes in " + String.format("%.3f", nanos / 1e9) + " seconds ("
+				+ options.getJobs() + " at a time, " + options.getThreads() + " threads"
+				+ (options.getIoThreads() > 0 ? ", " + options.getIoThreads() + " I/O threads" : "")
+				+ "); milliseconds per stage:");
+		StringBuilder line = new StringBuilder();
+		for (String stage : STAGES)
+			line.append(String.format("%9s ", stage));
+		System.out.println(line.append(String.format("%9s  file", "elapsed")));
+		for (Job job : jobs) {
+			line.setLength(0);
+			for (int k = 0; k < STAGES.length; k++) {
+				line.append(k < job.stage ? String.format("%9.1f ", job.times[k] / 1e6) : String.format("%9s ", "-"));
+				if (k < job.stage) total[k] += job.times[k] / 1e6;
+			}
+			line.append(String.format("%9.1f  ", job.elapsed / 1e6)).append(job.file);
+			if (job.error != null) {
+				failed++;
+				line.append(": ").append(job.error);
+			}
+			System.out.println(line);
+		}
+		line.setLength(0);
+		for (int k = 0; k < STAGES.length; k++)
+			line.append(String.format("%9.1f ", total[k]));
+		System.out.println(line.append(String.format("%9s  total", "")).append(failed > 0 ? " (" + failed + " failed)" : ""));
+		return failed;
+	}
+
+	/**
+	 * One scene file.  Runs one stage each time it is run, then queues itself
+	 * for the next, on the I/O threads or the shared pool as the stage needs.
+	 */
+	protected class Job implements Runnable {
+
+		/** The scene file. */
+		protected final File file;
+
+		/** The stage to run next, as an index into STAGES. */
+		protected int stage;
+
+		/** The scene's XML, between reading and parsing. */
+		protected byte[] xml;
+
+		/** The parsed scene, between parsing and encoding. */
+		protected Scene scene;
+
+		/** The encoded image, between encoding and writing. */
+		protected byte[] png;
+
+		/** Nanoseconds spent in each stage. */
+		protected final long[] times = new long[STAGES.length];
+
+		/** When the file was handed to the pool, and nanoseconds from then until it was finished. */
+		protected long started, elapsed;
+
+		/** What went wrong, or null. */
+		protected Throwable error;
+
+		/** Whether the file holds a place in flight, rather than one to be read ahead. */
+		protected boolean inFlight;
+
+		protected Job(File file) {
+			this.file = file;
+		}
+
+		public void run() {
+
+			long start = System.nanoTime();
+			try {
+				if (stage == 0) {
+					xml = read(file);
+					// Parsing waits for a place in flight.
+					times[stage] = System.nanoTime() - start;
+					stage++;
+					ready.add(this);
+					startReady();
+					return;
+				}
+				else if (stage == 1) {
+					scene = (Scene) options.createParser().parse(new ByteArrayInputStream(xml), Scene.class);
+					xml = null;
+					if (scene == null)
+						throw new Error("could not parse the scene");
+				}
+				else if (stage == 2) {
+					RayTracer.renderImage(scene, options);
+				}
+				else if (stage == 3) {
+					// Floats need no encoding, so are written straight from the image.
+					if (!options.getOutputFormat().equals("png")) {
+						times[stage] = System.nanoTime() - start;
+						stage++;
+						io.execute(this);
+						return;
+					}
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					scene.getImage().write(out);
+					png = out.toByteArray();
+					MappedImage.close(scene.getImage());
+					scene = null;
+				}
+				else if (png == null) {
+					ImageWriter.writeFile(scene.getImage(), file.getPath() + "." + options.getOutputFormat());
+					MappedImage.close(scene.getImage());
+					scene = null;
+				}
+				else {
+					Files.write(new File(file.getPath() + ".png").toPath(), png);
+					png = null;
+				}
+				times[stage] = System.nanoTime() - start;
+				if (++stage < STAGES.length) {
+					(IO_STAGES[stage] ? io : pool).execute(this);
+					return;
+				}
+			}
+			catch (Throwable e) {
+				error = e;
+				xml = null;
+				if (scene != null)
+					MappedImage.close(scene.getImage());
+				scene = null;
+				png = null;
+			}
+			elapsed = System.nanoTime() - started;
+			if (inFlight) {
+				slots.release();
+				startReady();
+			}
+			else
+				reads.release();
+			unfinished.countDown();
+		}
+	}
+}
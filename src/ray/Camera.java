@@ -41,4 +41,23 @@ public class Camera {
 	protected double projDistance = 1.0;
 	public void setprojDistance(double projDistance) { this.projDistance = projDistance; }
 	
+	/**
+	 * Default constructor.
+	 */
+	public Camera() { }
+	
+	/**
+	 * Create a copy of another camera.
+	 * @param copyMe the camera to copy
+	 */
+	public Camera(Camera copyMe) {
+		viewPoint.set(copyMe.viewPoint);
+		viewDir.set(copyMe.viewDir);
+		viewUp.set(copyMe.viewUp);
+		projNormal.set(copyMe.projNormal);
+		viewWidth = copyMe.viewWidth;
+		viewHeight = copyMe.viewHeight;
+		projDistance = copyMe.projDistance;
+	}
+	
 }
@@ -0,0 +1,165 @@
+package ray;
+
+import ray.math.Point3;
+import ray.math.Vector3;
+
+/**
+ * Generates the primary ray directions for every pixel of an image.  All of
+ * the per-render work (camera basis, pixel sizes, the normalized view
+ * direction) is done once in the constructor, along with a table of the
+ * horizontal offset of every column and the vertical offset of every row.
+ * The direction through a pixel is then just the sum of its column and row
+ * entries, so it is the same no matter which order pixels are visited in.
+ */
+public class CameraRayGenerator {
+
+	/** The eye point, origin of every ray. */
+	protected final Point3 origin = new Point3();
+
+	/** The camera basis [u, v, w]. */
+	protected final Vector3[] basis;
+
+	/** Image width and height, or the height of the band of rows the rays are for. */
+	protected final int width, height;
+
+	/** Horizontal offset (along u) of each column's center, 3 doubles per column. */
+	protected final double[] columns;
+
+	/** Vector from the eye to the view rectangle plus the vertical offset (along v) of each row's center, 3 doubles per row. */
+	protected final double[] rows;
+
+	/** One pixel's width along u and one pixel's height along v. */
+	protected final Vector3 pixelU = new Vector3(), pixelV = new Vector3();
+
+	/**
+	 * Precompute the rays for a camera and an image size.
+	 * @param camera the camera
+	 * @param image the image the rays are for
+	 */
+	public CameraRayGenerator(Camera camera, Image image) {
+
+		this(camera, image.getWidth(), image.getHeight(), 0, image.getHeight());
+	}
+
+	/**
+	 * Precompute the rays for a band of rows of an image, numbered from 0 at
+	 * the band's bottom row, so the band can be rendered as an image of its
+	 * own with exactly the pixels it has in the whole image.
+	 * @param camera the camera
+	 * @param imageWidth the width of the whole image
+	 * @param imageHeight the height of the whole image
+	 * @param row0 the bottom row of the band, as a row index of the whole image
+	 * @param bandRows the number of rows in the band
+	 */
+	public CameraRayGenerator(Camera camera, int imageWidth, int imageHeight, int row0, int bandRows) {
+
+		origin.set(camera.viewPoint);
+		basis = RayTracer.computeBasis(camera);
+		width = imageWidth;
+		height = bandRows;
+
+		double pixelWidth = camera.viewWidth / width;
+		double pixelHeight = camera.viewHeight / imageHeight;
+
+		// Center of the view rectangle, relative to the eye.
+		Vector3 center = new Vector3(camera.viewDir);
+		center.normalize();
+		center.scale(camera.projDistance);
+
+		Vector3 u = basis[0], v = basis[1];
+		pixelU.set(u);
+		pixelU.scale(pixelWidth);
+		pixelV.set(v);
+		pixelV.scale(pixelHeight);
+		columns = new double[3 * width];
+		for (int i = 0; i < width; i++) {
+			double a = pixelWidth / 2 + i * pixelWidth - camera.viewWidth / 2;
+			columns[3 * i + 0] = a * u.x;
+			columns[3 * i + 1] = a * u.y;
+			columns[3 * i + 2] = a * u.z;
+		}
+		rows = new double[3 * height];
+		for (int j = 0; j < height; j++) {
+			double b = -(camera.viewHeight / 2 - pixelHeight / 2 - (row0 + j) * pixelHeight);
+			rows[3 * j + 0] = center.x + b * v.x;
+			rows[3 * j + 1] = center.y + b * v.y;
+			rows[3 * j + 2] = center.z + b * v.z;
+		}
+	}
+
+	/**
+	 * @return the eye point that every ray starts from
+	 */
+	public Point3 getOrigin() {
+		return origin;
+	}
+
+	/**
+	 * @return the camera basis [u, v, w]
+	 */
+	public Vector3[] getBasis() {
+		return basis;
+	}
+
+	/**
+	 * Compute the (unnormalized) direction of the ray through pixel (i, j).
+	 * @param i the column index of the image
+	 * @param j the row index of the image
+	 * @param out the vector to write the direction into
+	 */
+	public void direction(int i, int j, Vector3 out) {
+
+		out.x = rows[3 * j + 0] + columns[3 * i + 0];
+		out.y = rows[3 * j + 1] + columns[3 * i + 1];
+		out.z = rows[3 * j + 2] + columns[3 * i + 2];
+	}
+
+	/**
+	 * Compute the direction of a ray through a point inside pixel (i, j),
+	 * for taking several samples per pixel.
+	 * @param i the column index of the image
+	 * @param j the row index of the image
+	 * @param dx offset from the pixel center, in pixels, along the row
+	 * @param dy offset from the pixel center, in pixels, up the column
+	 * @param out the vector to write the direction into
+	 */
+	public void direction(int i, int j, double dx, double dy, Vector3 out) {
+
+		direction(i, j, out);
+		out.scaleAdd(dx, pixelU);
+		out.scaleAdd(dy, pixelV);
+	}
+
+	/**
+	 * Write the directions of pixels x0 .. x1-1 of row j into out, three
+	 * doubles per pixel starting at out[offset].
+	 * @param j the row index of the image
+	 * @param x0 first column
+	 * @param x1 one past the last column
+	 * @param out the array to fill
+	 * @param offset where in out to start writing
+	 */
+	public void fillRow(int j, int x0, int x1, double[] out, int offset) {
+
+		double rx = rows[3 * j + 0], ry = rows[3 * j + 1], rz = rows[3 * j + 2];
+		for (int i = x0; i < x1; i++, offset += 3) {
+			out[offset + 0] = rx + columns[3 * i + 0];
+			out[offset + 1] = ry + columns[3 * i + 1];
+			out[offset + 2] = rz + columns[3 * i + 2];
+		}
+	}
+
+	/**
+	 * Write the directions of every pixel of a tile into out, row by row,
+	 * three doubles per pixel.  out must hold at least 3 * tile.size() doubles.
+	 * @param tile the tile
+	 * @param out the array to fill
+	 */
+	public void fillTile(Tile tile, double[] out) {
+
+		int rowLength = 3 * (tile.x1 - tile.x0);
+		for (int j = tile.y0, offset = 0; j < tile.y1; j++, offset += rowLength) {
+			fillRow(j, tile.x0, tile.x1, out, offset);
+		}
+	}
+}
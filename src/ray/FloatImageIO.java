@@ -0,0 +1,247 @@
+package ray;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads and writes images as linear floats, before gamma correction and
+ * quantizing, for compositing.  Two formats are supported:
+ *
+ *   PFM: a text header "PF\n<width> <height>\n-1.0\n" (the negative scale
+ *        means little endian) followed by three floats per pixel, bottom
+ *        row first.  Greyscale "Pf" files and big endian ones can be read.
+ *   raw: three little endian floats per pixel, top row first, with no
+ *        header, so the reader must be told the size.
+ *
+ * Rows go between the image and the file through one direct buffer and a
+ * FileChannel, many rows at a time, so no Color objects are made and each
+ * float is copied once into the buffer the operating system writes from.
+ */
+public class FloatImageIO {
+
+	/** Bytes in the buffer rows are staged in, unless one row needs more. */
+	public static final int BUFFER_BYTES = 1 << 20;
+
+	/**
+	 * Write an image as PFM.
+	 * @param image the image
+	 * @param file the file to write
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void writePfm(Image image, File file) throws IOException {
+
+		write(image, file, pfmHeader(image), false);
+	}
+
+	/**
+	 * Write an image as PFM to a stream, such as an HTTP response.
+	 * @param image the image
+	 * @param out the stream, which is left open
+	 * @throws IOException if the stream cannot be written
+	 */
+	public static void writePfm(Image image, OutputStream out) throws IOException {
+
+		write(image, Channels.newChannel(out), pfmHeader(image), false);
+	}
+
+	/**
+	 * Write an image as raw little endian floats.
+	 * @param image the image
+	 * @param file the file to write
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void writeRaw(Image image, File file) throws IOException {
+
+		write(image, file, new byte[0], true);
+	}
+
+	/**
+	 * Write an image as raw little endian floats to a stream.
+	 * @param image the image
+	 * @param out the stream, which is left open
+	 * @throws IOException if the stream cannot be written
+	 */
+	public static void writeRaw(Image image, OutputStream out) throws IOException {
+
+		write(image, Channels.newChannel(out), new byte[0], true);
+	}
+
+	/**
+	 * @return the PFM header for an image
+	 */
+	private static byte[] pfmHeader(Image image) throws IOException {
+
+		return ("PF\n" + image.getWidth() + " " + image.getHeight() + "\n-1.0\n").getBytes("US-ASCII");
+	}
+
+	/**
+	 * Write a header and then the rows of an image to a new file.
+	 * @param topFirst whether the top row goes first
+	 */
+	private static void write(Image image, File file, byte[] header, boolean topFirst) throws IOException {
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			write(image, channel, header, topFirst);
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Write a header and then the rows of an image to a channel, which is left open.
+	 * @param topFirst whether the top row goes first
+	 */
+	private static void write(Image image, WritableByteChannel channel, byte[] header, boolean topFirst) throws IOException {
+
+		int width = image.getWidth(), height = image.getHeight();
+		ByteBuffer buffer = buffer(width);
+		writeFully(channel, ByteBuffer.wrap(header));
+		FloatBuffer floats = buffer.asFloatBuffer();
+		int rowFloats = 3 * width;
+		for (int k = 0; k < height; ) {
+			floats.clear();
+			for (; k < height && floats.remaining() >= rowFloats; k++)
+				image.getRow(0, topFirst ? height - 1 - k : k, width, floats);
+			buffer.clear().limit(4 * floats.position());
+			writeFully(channel, buffer);
+		}
+	}
+
+	/**
+	 * Read a PFM file.
+	 * @param file the file
+	 * @return a new image holding its pixels
+	 * @throws IOException if the file cannot be read or is not a PFM
+	 */
+	public static Image readPfm(File file) throws IOException {
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			// The header is three lines of text; 64 bytes hold any sensible one.
+			ByteBuffer head = ByteBuffer.allocate(64);
+			while (head.hasRemaining() && channel.read(head) >= 0) { }
+			head.flip();
+			String[] fields = new String[4];
+			for (int k = 0; k < fields.length; k++)
+				fields[k] = token(head, file);
+			if (!fields[0].equals("PF") && !fields[0].equals("Pf"))
+				throw new IOException(file + " is not a PFM file");
+			int channels = fields[0].equals("PF") ? 3 : 1;
+			int width = Integer.parseInt(fields[1]), height = Integer.parseInt(fields[2]);
+			ByteOrder order = Double.parseDouble(fields[3]) < 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+			// Exactly one whitespace character follows the scale.
+			channel.position(head.position() + 1);
+			return read(channel, width, height, channels, order, false, file);
+		}
+		catch (NumberFormatException e) {
+			throw new IOException(file + " has a bad PFM header", e);
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Read a file of raw little endian floats, as writeRaw writes.
+	 * @param file the file
+	 * @param width the image width
+	 * @param height the image height
+	 * @return a new image holding its pixels
+	 * @throws IOException if the file cannot be read or is the wrong size
+	 */
+	public static Image readRaw(File file, int width, int height) throws IOException {
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			if (channel.size() != 12L * width * height)
+				throw new IOException(file + " holds " + channel.size() + " bytes, not a " + width + " x " + height + " image");
+			return read(channel, width, height, 3, ByteOrder.LITTLE_ENDIAN, true, file);
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Read the rows of an image from the channel's position.
+	 * @param channels floats per pixel in the file, 3 or 1
+	 * @param topFirst whether the top row comes first
+	 */
+	private static Image read(FileChannel channel, int width, int height, int channels, ByteOrder order,
+			boolean topFirst, File file) throws IOException {
+
+		Image image = new Image(width, height);
+		ByteBuffer buffer = buffer(width).order(order);
+		int rowBytes = 4 * channels * width;
+		float[] grey = (channels == 1) ? new float[3 * width] : null;
+		for (int k = 0; k < height; ) {
+			int rows = Math.min(height - k, buffer.capacity() / rowBytes);
+			buffer.clear().limit(rows * rowBytes);
+			while (buffer.hasRemaining())
+				if (channel.read(buffer) < 0)
+					throw new IOException(file + " ends after " + k + " of " + height + " rows");
+			buffer.flip();
+			FloatBuffer floats = buffer.asFloatBuffer();
+			for (int end = k + rows; k < end; k++) {
+				int y = topFirst ? height - 1 - k : k;
+				if (grey == null) {
+					image.setRow(0, y, width, floats);
+					continue;
+				}
+				for (int x = 0; x < width; x++)
+					grey[3 * x] = grey[3 * x + 1] = grey[3 * x + 2] = floats.get();
+				image.setRow(0, y, width, FloatBuffer.wrap(grey));
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * @return a direct little endian buffer for staging rows, holding at least one row
+	 */
+	private static ByteBuffer buffer(int width) {
+
+		return ByteBuffer.allocateDirect(Math.max(BUFFER_BYTES, 12 * width)).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Write all of a buffer.
+	 */
+	private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	/**
+	 * @return the next whitespace separated token of a header, leaving the buffer just past it
+	 */
+	private static String token(ByteBuffer head, File file) throws IOException {
+
+		StringBuilder token = new StringBuilder();
+		while (head.hasRemaining()) {
+			char c = (char) head.get(head.position());
+			if (Character.isWhitespace(c)) {
+				if (token.length() > 0) break;
+			}
+			else {
+				token.append(c);
+			}
+			head.position(head.position() + 1);
+		}
+		if (token.length() == 0)
+			throw new IOException(file + " has a truncated PFM header");
+		return token.toString();
+	}
+}
@@ -0,0 +1,103 @@
+package ray;
+
+/**
+ * An image that keeps each color component as a 16 bit half precision
+ * float, in half the memory of an Image.  Halves carry 11 significant bits,
+ * enough that written PNGs differ from those of an Image by at most one
+ * level, and only for components that fall right at a rounding boundary.
+ * Values beyond 65504 become infinity.  Use it from a scene file as
+ *   &lt;image type="HalfImage"&gt;width height&lt;/image&gt;
+ * or with -pixels half.
+ */
+public class HalfImage extends PackedImage {
+
+	/** The float for every half. */
+	private static final float[] FLOATS = new float[1 << 16];
+	static {
+		for (int h = 0; h < FLOATS.length; h++) {
+			int exponent = (h >>> 10) & 0x1f, mantissa = h & 0x3ff;
+			float value;
+			if (exponent == 0)
+				value = mantissa * 0x1p-24f;
+			else if (exponent == 31)
+				value = (mantissa == 0) ? Float.POSITIVE_INFINITY : Float.NaN;
+			else
+				value = Math.scalb(1 + mantissa / 1024f, exponent - 15);
+			FLOATS[h] = ((h & 0x8000) != 0) ? -value : value;
+		}
+	}
+
+	/** Three halves per pixel, top row first. */
+	protected short[] halves;
+
+	/**
+	 * Create an empty image.
+	 * @param inW input width
+	 * @param inH input height
+	 */
+	public HalfImage(int inW, int inH) {
+
+		super(inW, inH);
+	}
+
+	protected void allocate(int pixels) {
+		halves = new short[3 * pixels];
+	}
+
+	protected void store(int pixel, float r, float g, float b) {
+
+		halves[3 * pixel + 0] = toHalf(r);
+		halves[3 * pixel + 1] = toHalf(g);
+		halves[3 * pixel + 2] = toHalf(b);
+	}
+
+	protected void load(int pixel, float[] rgb, int offset) {
+
+		rgb[offset + 0] = FLOATS[halves[3 * pixel + 0] & 0xffff];
+		rgb[offset + 1] = FLOATS[halves[3 * pixel + 1] & 0xffff];
+		rgb[offset + 2] = FLOATS[halves[3 * pixel + 2] & 0xffff];
+	}
+
+	/**
+	 * Round a float to the nearest half, ties to even.
+	 * @param value the float
+	 * @return its bits as a half
+	 */
+	public static short toHalf(float value) {
+
+		int bits = Float.floatToRawIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int magnitude = bits & 0x7fffffff;
+		if (magnitude >= 0x7f800000)
+			// Infinity stays infinity, and NaN stays NaN.
+			return (short) (sign | 0x7c00 | (magnitude > 0x7f800000 ? 0x200 : 0));
+		if (magnitude >= 0x477ff000)
+			// 65520 and up round past the largest half, 65504.
+			return (short) (sign | 0x7c00);
+		if (magnitude >= 0x38800000) {
+			// Normal: rebias the exponent from 127 to 15 and round off 13 bits.
+			int half = (magnitude - 0x38000000) >>> 13;
+			int rest = magnitude & 0x1fff;
+			if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0)) half++;
+			return (short) (sign | half);
+		}
+		if (magnitude < 0x33000000)
+			// At most half the smallest subnormal half, 2^-24.
+			return (short) sign;
+		// Subnormal: a multiple of 2^-24, rounded.
+		int shift = 126 - (magnitude >>> 23);
+		int significand = (magnitude & 0x7fffff) | 0x800000;
+		int half = significand >>> shift;
+		int rest = significand & ((1 << shift) - 1), tie = 1 << (shift - 1);
+		if (rest > tie || (rest == tie && (half & 1) != 0)) half++;
+		return (short) (sign | half);
+	}
+
+	/**
+	 * @param half the bits of a half
+	 * @return its value as a float
+	 */
+	public static float toFloat(short half) {
+		return FLOATS[half & 0xffff];
+	}
+}
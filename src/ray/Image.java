@@ -4,11 +4,16 @@ import java.awt.Transparency;
 import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
 import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferFloat;
 import java.awt.image.PixelInterleavedSampleModel;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.FloatBuffer;
+import java.util.concurrent.RecursiveAction;
 
 import javax.imageio.ImageIO;
 
@@ -24,6 +29,83 @@ import ray.math.Color;
  */
 public class Image {
 	
+	/** Gamma the image is corrected for when it is written. */
+	public static final double GAMMA = 2.2;
+	
+	/** Pixels below which an image is converted for output on one thread. */
+	protected static final int PARALLEL_PIXELS = 1 << 16;
+	
+	/** Low bits of a float dropped to find its entry in GAMMA_BUCKETS. */
+	private static final int BUCKET_SHIFT = 15;
+	
+	/**
+	 * GAMMA_THRESHOLDS[q] is the smallest float that gamma corrects and
+	 * rounds to the byte q or more, as Color.gammaCorrect and Color.toInt do.
+	 * Entry 0 is unused and entry 256 is NaN, which nothing reaches.
+	 */
+	protected static final float[] GAMMA_THRESHOLDS = new float[257];
+	
+	/**
+	 * The byte that the smallest float with each value of its top bits
+	 * becomes.  Every float in a bucket becomes that byte or the next one up.
+	 */
+	protected static final byte[] GAMMA_BUCKETS = new byte[1 << (31 - BUCKET_SHIFT)];
+	
+	static {
+		GAMMA_THRESHOLDS[0] = Float.NEGATIVE_INFINITY;
+		GAMMA_THRESHOLDS[256] = Float.NaN;
+		for (int q = 1; q < 256; q++) {
+			/*	Non-negative floats are ordered as their bits are, and the
+				conversion never decreases (Math.pow is semi-monotonic), so
+				search the bits for the first float that reaches q. */
+			int lo = 0, hi = Float.floatToIntBits(Float.POSITIVE_INFINITY);
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (gammaByte(Float.intBitsToFloat(mid)) >= q)
+					hi = mid;
+				else
+					lo = mid + 1;
+			}
+			GAMMA_THRESHOLDS[q] = Float.intBitsToFloat(lo);
+		}
+		int last = 0;
+		for (int k = 0; k < GAMMA_BUCKETS.length; k++) {
+			int q = gammaByte(Float.intBitsToFloat(k << BUCKET_SHIFT));
+			// Past infinity come the NaNs, which drop back to 0.
+			if (q > last + 1)
+				throw new Error("gamma buckets are too coarse");
+			GAMMA_BUCKETS[k] = (byte) q;
+			last = q;
+		}
+	}
+	
+	/**
+	 * Gamma correct and quantize one component exactly as
+	 * Color.gammaCorrect(GAMMA) followed by Color.toInt does.
+	 */
+	private static int gammaByte(float value) {
+		
+		double corrected = Math.pow(value, 1.0 / GAMMA);
+		return (int) (255.0 * Math.max(Math.min(corrected, 1.0), 0.0) + 0.5);
+	}
+	
+	/**
+	 * Gamma correct and quantize one component, as Color.gammaCorrect(GAMMA)
+	 * followed by Color.toInt does, by looking it up in GAMMA_BUCKETS and
+	 * checking the next threshold up.
+	 * @param value a component of a pixel
+	 * @return the byte it is written as
+	 */
+	protected static int toByte(float value) {
+		
+		int bits = Float.floatToRawIntBits(value);
+		if (bits < 0)
+			// Math.pow takes negative infinity to positive infinity, and every other negative value to NaN or 0.
+			return value == Float.NEGATIVE_INFINITY ? 255 : 0;
+		int q = GAMMA_BUCKETS[bits >>> BUCKET_SHIFT] & 0xff;
+		return value >= GAMMA_THRESHOLDS[q + 1] ? q + 1 : q;
+	}
+	
 	/** Image width * */
 	protected int width;
 	
@@ -44,6 +126,28 @@ public class Image {
 		setSize(inW, inH);
 	}
 	
+	/**
+	 * For subclasses that keep their pixels elsewhere and must set up their
+	 * own fields before calling setSize.
+	 */
+	protected Image() {
+		
+	}
+	
+	/**
+	 * Create a copy of another image.
+	 *
+	 * @param copyMe the image to copy
+	 */
+	public Image(Image copyMe) {
+		
+		width = copyMe.width;
+		height = copyMe.height;
+		data = new float[width * height * 3];
+		for (int y = 0; y < height; y++)
+			copyMe.getRow(0, y, width, FloatBuffer.wrap(data, calcIdx(0, y), 3 * width));
+	}
+	
 	/**
 	 * @return the width of the image
 	 */
@@ -116,6 +220,67 @@ public class Image {
 		data[idx + 2] = (float) inB;
 	}
 	
+	/**
+	 * Fill in the pixels between the samples of a sparse render.  Pixels whose
+	 * coordinates are both multiples of stride are left alone; every other
+	 * pixel takes the color of the nearest such sample.
+	 * @param stride the spacing of the samples
+	 */
+	public void upsampleNearest(int stride) {
+		
+		float[] samples = new float[3 * width], row = new float[3 * width];
+		for (int y = 0; y < height; y++) {
+			int sy = nearestSample(y, stride, height);
+			getRow(0, sy, width, FloatBuffer.wrap(samples));
+			getRow(0, y, width, FloatBuffer.wrap(row));
+			for (int x = 0; x < width; x++) {
+				if (x % stride == 0 && y % stride == 0) continue;
+				int from = 3 * nearestSample(x, stride, width);
+				row[3 * x + 0] = samples[from + 0];
+				row[3 * x + 1] = samples[from + 1];
+				row[3 * x + 2] = samples[from + 2];
+			}
+			setRow(0, y, width, FloatBuffer.wrap(row));
+		}
+	}
+	
+	/**
+	 * Copy pixels x0 .. x0+pixels-1 of row y into a buffer, three floats per
+	 * pixel, advancing its position.  Safe to call from several threads at
+	 * once, as long as no two of them write the same pixels.
+	 * @param x0 the first column
+	 * @param y the row
+	 * @param pixels the number of pixels
+	 * @param out the buffer to fill
+	 */
+	public void getRow(int x0, int y, int pixels, FloatBuffer out) {
+		
+		out.put(data, calcIdx(x0, y), 3 * pixels);
+	}
+	
+	/**
+	 * Set pixels x0 .. x0+pixels-1 of row y from a buffer, three floats per
+	 * pixel, advancing its position.  Safe to call from several threads at
+	 * once, as long as no two of them touch the same pixels.
+	 * @param x0 the first column
+	 * @param y the row
+	 * @param pixels the number of pixels
+	 * @param in the buffer to read
+	 */
+	public void setRow(int x0, int y, int pixels, FloatBuffer in) {
+		
+		in.get(data, calcIdx(x0, y), 3 * pixels);
+	}
+	
+	/**
+	 * The multiple of stride nearest to coordinate, staying inside [0, size).
+	 */
+	private static int nearestSample(int coordinate, int stride, int size) {
+		
+		int sample = (coordinate + stride / 2) / stride * stride;
+		return sample < size ? sample : sample - stride;
+	}
+	
 	/**
 	 * Computes the index in the data array.
 	 * @param inX inX
@@ -165,21 +330,8 @@ public class Image {
 	 */
 	public void write(String fileName) {
 		
-		// For some reason java can't write the BufferedImages produced directly from the
-		// image data, so we have to recreate the image to produce one for output.
-		BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-		Color pixelColor = new Color();
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				this.getPixelColor(pixelColor, x, y);
-				pixelColor.gammaCorrect(2.2);
-				int rgb = pixelColor.toInt();
-				bufferedImage.setRGB(x, (height - 1 - y), rgb);
-			}
-		}
-		
 		try {
-			ImageIO.write(bufferedImage, "PNG", new File(fileName));
+			ImageIO.write(toOutputImage(), "PNG", new File(fileName));
 		}
 		catch (Exception e) {
 			System.out.println("Error occured while attempting to write file: "+fileName);
@@ -187,4 +339,70 @@ public class Image {
 			e.printStackTrace();
 		}
 	}
+	
+	/**
+	 * Write this image to a stream as a PNG, as write(String) does to a file.
+	 * @param out the stream, which is left open
+	 * @throws IOException if the stream cannot be written
+	 */
+	public void write(OutputStream out) throws IOException {
+		
+		ImageIO.write(toOutputImage(), "PNG", out);
+	}
+	
+	/**
+	 * @return a gamma corrected 8 bit copy of this image, ready to be written
+	 */
+	protected BufferedImage toOutputImage() {
+		
+		// For some reason java can't write the BufferedImages produced directly from the
+		// image data, so we have to recreate the image to produce one for output.
+		BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+		byte[] bytes = ((DataBufferByte) bufferedImage.getRaster().getDataBuffer()).getData();
+		// The raster's rows are top row first, and its channels blue, green, red.
+		new ToBytes(bytes, 0, height).invoke();
+		return bufferedImage;
+	}
+	
+	/**
+	 * Converts a band of rows for output, splitting it in two to run on
+	 * separate threads while it is large.
+	 */
+	protected class ToBytes extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		/** The raster's blue, green, red bytes. */
+		protected final byte[] bytes;
+		
+		/** The first row of the band and the row after its last, counted from the top. */
+		protected final int row0, row1;
+		
+		protected ToBytes(byte[] bytes, int row0, int row1) {
+			
+			this.bytes = bytes;
+			this.row0 = row0;
+			this.row1 = row1;
+		}
+		
+		protected void compute() {
+			
+			if (row1 - row0 > 1 && (row1 - row0) * width > PARALLEL_PIXELS) {
+				int middle = (row0 + row1) >>> 1;
+				invokeAll(new ToBytes(bytes, row0, middle), new ToBytes(bytes, middle, row1));
+				return;
+			}
+			float[] row = new float[3 * width];
+			FloatBuffer floats = FloatBuffer.wrap(row);
+			for (int r = row0, k = row0 * width * 3; r < row1; r++) {
+				floats.clear();
+				getRow(0, height - 1 - r, width, floats);
+				for (int x = 0; x < row.length; x += 3, k += 3) {
+					bytes[k + 0] = (byte) toByte(row[x + 2]);
+					bytes[k + 1] = (byte) toByte(row[x + 1]);
+					bytes[k + 2] = (byte) toByte(row[x + 0]);
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,176 @@
+package ray;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes finished images to PNG files on background threads, so the next
+ * scene can be rendered while the last one is being encoded.  Files named
+ * .pfm or .raw are written as floats instead (see FloatImageIO).  Only so many
+ * images may be waiting at once: once the queue is full, write blocks until
+ * an encoder frees a place, which bounds the memory held by images waiting
+ * to be written.  Call flush to wait for every image handed over so far,
+ * and close once done; the encoder threads do not keep the program running,
+ * so anything not flushed by then may be lost.
+ *
+ * An image must not be changed after it is handed over until it is written.
+ * A MappedImage handed over is closed once written, since nothing else
+ * needs it by then.
+ */
+public class ImageWriter {
+
+	/** Encodes and writes the images. */
+	protected final ExecutorService encoders;
+
+	/** One permit for each image that may be waiting or being written. */
+	protected final Semaphore slots;
+
+	/** Number of permits in slots. */
+	protected final int capacity;
+
+	/** Images that could not be written. */
+	protected final AtomicInteger failures = new AtomicInteger();
+
+	/**
+	 * Create a writer.
+	 * @param threads the number of images to encode at once
+	 * @param queued the number of images that may wait for an encoder
+	 */
+	public ImageWriter(int threads, int queued) {
+
+		threads = Math.max(1, threads);
+		capacity = threads + Math.max(0, queued);
+		// Fair, so that flush is not held off for ever by a steady stream of writes.
+		slots = new Semaphore(capacity, true);
+		encoders = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			int count = 0;
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "png encoder " + (++count));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Write an image to a file, as writeFile does, once an encoder is free.
+	 * Blocks while the queue is full.  A MappedImage is closed once written.
+	 * @param image the image, which must not change until it is written
+	 * @param fileName the output filename
+	 */
+	public void write(final Image image, final String fileName) {
+
+		slots.acquireUninterruptibly();
+		try {
+			encoders.execute(new Runnable() {
+				public void run() {
+					try {
+						writeFile(image, fileName);
+					}
+					catch (Exception e) {
+						failures.incrementAndGet();
+						System.out.println("Error occured while attempting to write file: " + fileName);
+						System.err.println(e);
+					}
+					finally {
+						MappedImage.close(image);
+						slots.release();
+					}
+				}
+			});
+		}
+		catch (RuntimeException e) {
+			MappedImage.close(image);
+			slots.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Wait until every image handed to write so far has been written.
+	 */
+	public void flush() {
+
+		slots.acquireUninterruptibly(capacity);
+		slots.release(capacity);
+	}
+
+	/**
+	 * @return the number of images that could not be written
+	 */
+	public int getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * Wait for every image to be written, then stop the encoder threads.
+	 */
+	public void close() {
+
+		flush();
+		encoders.shutdown();
+	}
+
+	/**
+	 * Write an image to a file right away, in the format its extension names:
+	 * .pfm or .raw for floats, otherwise PNG.
+	 * @param image the image
+	 * @param fileName the output filename
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void writeFile(Image image, String fileName) throws IOException {
+
+		if (fileName.endsWith(".pfm")) {
+			FloatImageIO.writePfm(image, new File(fileName));
+			return;
+		}
+		if (fileName.endsWith(".raw")) {
+			FloatImageIO.writeRaw(image, new File(fileName));
+			return;
+		}
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(fileName)));
+		try {
+			image.write(out);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Write an image the way the options ask: through their writer if they
+	 * have one, otherwise right away.  Either way a MappedImage is closed
+	 * once written.
+	 * @param image the image, which must not change until it is written
+	 * @param fileName the output filename
+	 * @param options the render options
+	 */
+	public static void write(Image image, String fileName, RenderOptions options) {
+
+		if (options.getWriter() != null) {
+			options.getWriter().write(image, fileName);
+			return;
+		}
+		try {
+			if (!fileName.endsWith(".pfm") && !fileName.endsWith(".raw"))
+				image.write(fileName);
+			else
+				writeFile(image, fileName);
+		}
+		catch (IOException e) {
+			System.out.println("Error occured while attempting to write file: " + fileName);
+			System.err.println(e);
+		}
+		finally {
+			MappedImage.close(image);
+		}
+	}
+}
@@ -0,0 +1,311 @@
+package ray;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import ray.math.Color;
+
+/**
+ * An image whose pixels live in a memory mapped file instead of on the
+ * heap, so it can be larger than an array allows, or than memory, and the
+ * operating system pages it in and out as tiles are rendered.  The pixels
+ * are laid out as Image lays out its array, three native order floats per
+ * pixel, top row first, but mapped in segments of whole rows, since one
+ * mapping can hold at most 2 GB.
+ *
+ * Every access is at an absolute index, or through a view made for the
+ * call, so render threads can write their own tiles at the same time just
+ * as they do in an Image.  Images are written as PNGs with PngEncoder, a
+ * row at a time, since one this large has no BufferedImage copy.  Whoever
+ * owns the image calls close once it is written, which unmaps the file and
+ * deletes it; the renderer, ImageWriter, BatchRenderer and RenderServer
+ * all do so for the images they make.  Use it from a scene file as
+ *   &lt;image type="MappedImage"&gt;width height&lt;/image&gt;
+ */
+public class MappedImage extends Image {
+
+	/** Most bytes in one mapping. */
+	protected static final int SEGMENT_BYTES = 1 << 30;
+
+	/** The file holding the pixels. */
+	protected final File file;
+
+	/** The mappings, rowsPerSegment rows in each but the last. */
+	protected MappedByteBuffer[] maps;
+
+	/** The pixels of each mapping. */
+	protected FloatBuffer[] segments;
+
+	/** Rows in each segment. */
+	protected int rowsPerSegment;
+
+	/** Where images without a file of their own keep their pixels, or null for java.io.tmpdir. */
+	protected static volatile File directory = null;
+	public static void setDirectory(File directory) { MappedImage.directory = directory; }
+	public static File getDirectory() { return directory; }
+
+	/**
+	 * Create an image backed by a temporary file in the directory set by
+	 * setDirectory, deleted by close.
+	 * @param inW input width
+	 * @param inH input height
+	 */
+	public MappedImage(int inW, int inH) {
+
+		this(temporaryFile(), inW, inH);
+	}
+
+	/**
+	 * Create an image backed by a file.  Whatever the file held is lost.
+	 * @param file the file to keep the pixels in
+	 * @param inW input width
+	 * @param inH input height
+	 */
+	public MappedImage(File file, int inW, int inH) {
+
+		this.file = file;
+		setSize(inW, inH);
+	}
+
+	private static File temporaryFile() {
+
+		try {
+			return File.createTempFile("image", ".raw", directory);
+		}
+		catch (IOException e) {
+			throw new Error("Could not create a file for a mapped image", e);
+		}
+	}
+
+	/**
+	 * @return the file holding the pixels
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Set the size of the image by mapping a new file of zeros.  Destroys all
+	 * current image data.
+	 * @param newWidth width
+	 * @param newHeight height
+	 */
+	public void setSize(int newWidth, int newHeight) {
+
+		long rowBytes = 12L * newWidth;
+		if (newWidth < 1 || newHeight < 1 || rowBytes > SEGMENT_BYTES)
+			throw new Error("cannot map a " + newWidth + " x " + newHeight + " image");
+		width = newWidth;
+		height = newHeight;
+		data = new float[0];
+		rowsPerSegment = (int) Math.min(newHeight, SEGMENT_BYTES / rowBytes);
+		maps = new MappedByteBuffer[(newHeight + rowsPerSegment - 1) / rowsPerSegment];
+		segments = new FloatBuffer[maps.length];
+		try {
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			try {
+				channel.truncate(0);
+				for (int k = 0; k < segments.length; k++) {
+					int rows = Math.min(rowsPerSegment, newHeight - k * rowsPerSegment);
+					maps[k] = channel.map(FileChannel.MapMode.READ_WRITE, k * rowsPerSegment * rowBytes, rows * rowBytes);
+					segments[k] = maps[k].order(ByteOrder.nativeOrder()).asFloatBuffer();
+				}
+			}
+			finally {
+				// The mappings outlive the channel.
+				channel.close();
+			}
+		}
+		catch (IOException e) {
+			throw new Error("Could not map " + file, e);
+		}
+	}
+
+	/**
+	 * @return the segment holding row y
+	 */
+	private FloatBuffer segment(int y) {
+		return segments[(height - 1 - y) / rowsPerSegment];
+	}
+
+	/**
+	 * @return the index of pixel (x, y) within its segment
+	 */
+	private int index(int x, int y) {
+		return ((height - 1 - y) % rowsPerSegment * width + x) * 3;
+	}
+
+	/**
+	 * @return a view of pixels x0 .. x0+pixels-1 of row y, of its own so its position is this caller's
+	 */
+	private FloatBuffer view(int x0, int y, int pixels) {
+
+		FloatBuffer view = segment(y).duplicate();
+		int start = index(x0, y);
+		view.limit(start + 3 * pixels).position(start);
+		return view;
+	}
+
+	public void getPixelColor(Color outPixel, int inX, int inY) {
+
+		FloatBuffer segment = segment(inY);
+		int idx = index(inX, inY);
+		outPixel.set(segment.get(idx + 0), segment.get(idx + 1), segment.get(idx + 2));
+	}
+
+	public void setPixelColor(Color inPixel, int inX, int inY) {
+
+		setPixelRGB(inPixel.r, inPixel.g, inPixel.b, inX, inY);
+	}
+
+	public void setPixelRGB(double inR, double inG, double inB, int inX, int inY) {
+
+		FloatBuffer segment = segment(inY);
+		int idx = index(inX, inY);
+		segment.put(idx + 0, (float) inR);
+		segment.put(idx + 1, (float) inG);
+		segment.put(idx + 2, (float) inB);
+	}
+
+	public void getRow(int x0, int y, int pixels, FloatBuffer out) {
+
+		out.put(view(x0, y, pixels));
+	}
+
+	public void setRow(int x0, int y, int pixels, FloatBuffer in) {
+
+		FloatBuffer source = in.duplicate();
+		source.limit(source.position() + 3 * pixels);
+		view(x0, y, pixels).put(source);
+		in.position(source.position());
+	}
+
+	/**
+	 * A mapped image cannot be shared as a BufferedImage.
+	 */
+	public BufferedImage asBufferedImage() {
+		throw new Error("a mapped image cannot be shown as a BufferedImage; write it instead");
+	}
+
+	/**
+	 * A mapped image is written a row at a time, never copied whole.
+	 */
+	protected BufferedImage toOutputImage() {
+		throw new Error("a mapped image is written with PngEncoder, not copied to a BufferedImage");
+	}
+
+	/**
+	 * Write this image to the filename as a PNG, a row at a time.
+	 * @param fileName the output filename
+	 */
+	public void write(String fileName) {
+
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName));
+			try {
+				write(out);
+			}
+			finally {
+				out.close();
+			}
+		}
+		catch (Exception e) {
+			System.out.println("Error occured while attempting to write file: "+fileName);
+			System.err.println(e);
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Write this image to a stream as a PNG, a row at a time.
+	 * @param out the stream, which is left open
+	 * @throws IOException if the stream cannot be written
+	 */
+	public void write(OutputStream out) throws IOException {
+
+		PngEncoder png = new PngEncoder(out, width, height);
+		png.writeRows(this);
+		png.finish();
+	}
+
+	/**
+	 * Unmap the pixels and delete the file.  The image holds no pixels
+	 * afterwards, and must not be used again.
+	 */
+	public void close() {
+
+		MappedByteBuffer[] mapped = maps;
+		// Anything that reads the image later fails here rather than touching unmapped memory.
+		maps = new MappedByteBuffer[0];
+		segments = new FloatBuffer[0];
+		for (MappedByteBuffer map : mapped)
+			unmap(map);
+		if (file.exists() && !file.delete())
+			System.out.println("Could not delete " + file);
+	}
+
+	/**
+	 * Close an image if it is a MappedImage, as its owner does once it is written.
+	 * @param image the image, or null
+	 */
+	static void close(Image image) {
+		if (image instanceof MappedImage)
+			((MappedImage) image).close();
+	}
+
+	/**
+	 * Release a mapping now rather than when it is garbage collected.  Java
+	 * has no public way to do this, so it is done through the JDK's own
+	 * cleaner where one can be reached; otherwise the mapping is left for
+	 * the collector, and only the file is deleted at once.
+	 */
+	private static void unmap(MappedByteBuffer map) {
+
+		try {
+			// Java 9 and later.
+			Class<?> unsafe = Class.forName("sun.misc.Unsafe");
+			Field instance = unsafe.getDeclaredField("theUnsafe");
+			instance.setAccessible(true);
+			unsafe.getMethod("invokeCleaner", ByteBuffer.class).invoke(instance.get(null), map);
+		}
+		catch (NoSuchMethodException e) {
+			// Java 8.
+			try {
+				Method cleaner = map.getClass().getMethod("cleaner");
+				cleaner.setAccessible(true);
+				Object clean = cleaner.invoke(map);
+				if (clean != null)
+					clean.getClass().getMethod("clean").invoke(clean);
+			}
+			catch (Exception inner) {
+				// Left for the garbage collector.
+			}
+		}
+		catch (Exception e) {
+			// Left for the garbage collector.
+		}
+	}
+
+	/**
+	 * Force the pixels to the file, so it holds the image even if the
+	 * program stops.
+	 */
+	public void force() {
+
+		for (MappedByteBuffer map : maps)
+			map.force();
+	}
+}
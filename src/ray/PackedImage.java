@@ -0,0 +1,128 @@
+package ray;
+
+import java.awt.image.BufferedImage;
+import java.nio.FloatBuffer;
+
+import ray.math.Color;
+
+/**
+ * An image that keeps its pixels in fewer than the three floats Image
+ * uses, to save memory when many renders share a host.  Subclasses choose
+ * the encoding; pixels are converted as they are set and read, one at a
+ * time, so every pixel a render thread finishes costs one conversion,
+ * which is nothing beside the rays traced for it.  Neither costs an
+ * allocation: rows are decoded straight into the caller's buffer, and
+ * single pixels through a buffer each thread keeps.  Pixels are numbered as
+ * in Image, top row first.  Each pixel is stored separately, so render
+ * threads can set the pixels of their own tiles at the same time.
+ */
+public abstract class PackedImage extends Image {
+
+	/** Each thread's room to decode one pixel into. */
+	private static final ThreadLocal<float[]> RGB = new ThreadLocal<float[]>() {
+		protected float[] initialValue() {
+			return new float[3];
+		}
+	};
+
+	/**
+	 * Create an empty image.
+	 * @param inW input width
+	 * @param inH input height
+	 */
+	protected PackedImage(int inW, int inH) {
+
+		super(inW, inH);
+	}
+
+	/**
+	 * Set the size of the image by recreating it.  Destroys all current image data.
+	 * @param newWidth width
+	 * @param newHeight height
+	 */
+	public void setSize(int newWidth, int newHeight) {
+
+		width = newWidth;
+		height = newHeight;
+		data = new float[0];
+		allocate(newWidth * newHeight);
+	}
+
+	/**
+	 * Make room for a number of pixels, all black.
+	 */
+	protected abstract void allocate(int pixels);
+
+	/**
+	 * Store a pixel.
+	 * @param pixel the pixel's index, counting along rows from the top left
+	 */
+	protected abstract void store(int pixel, float r, float g, float b);
+
+	/**
+	 * Read a pixel.
+	 * @param pixel the pixel's index, counting along rows from the top left
+	 * @param rgb where to put its red, green and blue
+	 * @param offset where in rgb to start
+	 */
+	protected abstract void load(int pixel, float[] rgb, int offset);
+
+	/**
+	 * @return the index of pixel (x, y), counting along rows from the top left
+	 */
+	protected final int pixelIdx(int inX, int inY) {
+
+		return (height - 1 - inY) * width + inX;
+	}
+
+	public void getPixelColor(Color outPixel, int inX, int inY) {
+
+		float[] rgb = RGB.get();
+		load(pixelIdx(inX, inY), rgb, 0);
+		outPixel.set(rgb[0], rgb[1], rgb[2]);
+	}
+
+	public void setPixelColor(Color inPixel, int inX, int inY) {
+
+		store(pixelIdx(inX, inY), (float) inPixel.r, (float) inPixel.g, (float) inPixel.b);
+	}
+
+	public void setPixelRGB(double inR, double inG, double inB, int inX, int inY) {
+
+		store(pixelIdx(inX, inY), (float) inR, (float) inG, (float) inB);
+	}
+
+	public void getRow(int x0, int y, int pixels, FloatBuffer out) {
+
+		int first = pixelIdx(x0, y);
+		if (out.hasArray()) {
+			// Claim the room first, so a buffer too small fails before anything is written.
+			int start = out.arrayOffset() + out.position();
+			out.position(out.position() + 3 * pixels);
+			float[] array = out.array();
+			for (int k = 0; k < pixels; k++)
+				load(first + k, array, start + 3 * k);
+		}
+		else {
+			float[] rgb = RGB.get();
+			for (int k = 0; k < pixels; k++) {
+				load(first + k, rgb, 0);
+				out.put(rgb);
+			}
+		}
+	}
+
+	public void setRow(int x0, int y, int pixels, FloatBuffer in) {
+
+		int first = pixelIdx(x0, y);
+		for (int k = 0; k < pixels; k++)
+			store(first + k, in.get(), in.get(), in.get());
+	}
+
+	/**
+	 * A packed image has no floats to share with a BufferedImage.
+	 */
+	public BufferedImage asBufferedImage() {
+		throw new Error("a packed image cannot be shown as a BufferedImage; write it instead");
+	}
+}
@@ -1,6 +1,7 @@
 package ray;
 
 import java.io.File;
+import java.io.InputStream;
 import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
@@ -107,8 +108,18 @@ public class Parser {
 	/** Java document builder used to parse XML * */
 	private DocumentBuilder db;
 
-	/** Map of references to their names **/
-	public static HashMap<String, Object> references = new HashMap<String, Object>();
+	/** Map of references to their names, for the document being parsed **/
+	public HashMap<String, Object> references = new HashMap<String, Object>();
+
+	/** Class to create images as when the XML does not give a type, or null for Image itself. */
+	protected Class<? extends Image> imageClass = null;
+	public void setImageClass(Class<? extends Image> imageClass) { this.imageClass = imageClass; }
+
+	/** Classes named by type attributes, by base class and attribute value. */
+	private HashMap<String, Class<?>> types = new HashMap<String, Class<?>>();
+
+	/** Methods that take child nodes, by parent class and child name. */
+	private HashMap<Class<?>, HashMap<String, Method>> adders = new HashMap<Class<?>, HashMap<String, Method>>();
 
 	/** Creates a new Parser. */
 	public Parser() {
@@ -167,7 +178,7 @@ public class Parser {
 	 * @param text the text to interpret as an object
 	 * @return the object parsed
 	 */
-	private Object parseObject(Class<?> c, String text) {
+	protected Object parseObject(Class<?> c, String text) {
 
 		if (c == String.class) {
 			return text;
@@ -230,6 +241,8 @@ public class Parser {
 		}
 
 		else if (Image.class.isAssignableFrom(c)) {
+			if (c == Image.class && imageClass != null)
+				c = imageClass;
 			ArrayList<Object> tempArray = parseArray(Integer.TYPE, text);
 			if (tempArray.size() != 2) {
 				throw new Error(
@@ -276,6 +289,169 @@ public class Parser {
 
 	}
 
+	/**
+	 * Find the class a "type" attribute names, which must extend or
+	 * implement the class the node would otherwise be.  Lookups are
+	 * remembered, since scenes name the same few types over and over.
+	 *
+	 * @param c the class the node would otherwise be
+	 * @param className the value of the type attribute
+	 * @return the class to read the node as
+	 */
+	protected Class<?> resolveType(Class<?> c, String className) {
+
+		String key = c.getName() + " " + className;
+		Class<?> known = types.get(key);
+		if (known != null)
+			return known;
+		try {
+			Class<?> possibleClass;
+			// Try to look up the class; if it fails, try looking in the package
+			// of the given base type
+			try {
+				possibleClass = Class.forName(className);
+			} catch (ClassNotFoundException e) {
+				possibleClass = Class.forName(c.getPackage().getName()
+						+ "." + className);
+			}
+			if (!c.isAssignableFrom(possibleClass)) {
+				throw new Error("Type " + className
+						+ " does not extend or implement " + c.getName());
+			}
+			types.put(key, possibleClass);
+			return possibleClass;
+		} catch (ClassNotFoundException e) {
+			throw new Error("Class could not be found: " + className);
+		}
+	}
+
+	/**
+	 * Find the method of Class c that takes a child node: set<name> if there
+	 * is one, otherwise add<name>.  Lookups are remembered.
+	 *
+	 * @param c the class of the parent node
+	 * @param childName the name of the child node
+	 * @return the method, which takes exactly one parameter
+	 */
+	protected Method findAdder(Class<?> c, String childName) {
+
+		HashMap<String, Method> known = adders.get(c);
+		if (known == null) {
+			known = new HashMap<String, Method>();
+			adders.put(c, known);
+		}
+		Method foundMethod = known.get(childName);
+		if (foundMethod != null)
+			return foundMethod;
+
+		// Check setXXX
+		foundMethod = findMethod(c, "set" + childName);
+
+		// If can't find setXXX method, look for addXXX method instead
+		if (foundMethod == null)
+			foundMethod = findMethod(c, "add" + childName);
+
+		// Its an error if no method was found
+		if (foundMethod == null) {
+			throw new Error("Could not find a method to use to add "
+					+ childName + " to the class type " + c.getName()
+					+ ".");
+		}
+
+		// Check that the method has the right number of parameters
+		if (foundMethod.getParameterTypes().length != 1) {
+			throw new Error("Method " + foundMethod.getName()
+					+ " must take exactly one parameter.");
+		}
+		known.put(childName, foundMethod);
+		return foundMethod;
+	}
+
+	/**
+	 * The class to read a child node as, for the method that will take it.
+	 * If the type is primitive, switch to corresponding Object type to parse.
+	 * Method invocation will automatically take care of converting Object
+	 * types back into primitives.
+	 *
+	 * @param method the method found by findAdder
+	 * @return the class of the child node
+	 */
+	protected Class<?> childType(Method method) {
+
+		Class<?> parameterType = method.getParameterTypes()[0];
+		if (parameterType.isPrimitive()) {
+			if (parameterType == Integer.TYPE) {
+				parameterType = Integer.class;
+			} else if (parameterType == Float.TYPE) {
+				parameterType = Float.class;
+			} else if (parameterType == Double.TYPE) {
+				parameterType = Double.class;
+			} else {
+				throw new Error("Cannot parse primitives of type "
+						+ parameterType);
+			}
+		}
+		return parameterType;
+	}
+
+	/**
+	 * @return whether nodes of Class c are read from their text rather than
+	 *         from child nodes
+	 */
+	protected boolean isText(Class<?> c) {
+
+		return (c.isArray() && c.getComponentType().isPrimitive())
+				|| c == String.class || c == Integer.class || c == Double.class
+				|| c == Color.class || Tuple3.class.isAssignableFrom(c)
+				|| Image.class.isAssignableFrom(c);
+	}
+
+	/**
+	 * @return the object stored under a name by an earlier node
+	 */
+	protected Object resolveReference(String name) {
+
+		Object resultingObject = references.get(name);
+		if (resultingObject == null) {
+			throw new Error("Unresolved reference: " + name);
+		}
+		return resultingObject;
+	}
+
+	/**
+	 * @return a new object of Class c made with its zero argument constructor
+	 */
+	protected Object instantiate(Class<?> c) {
+
+		try {
+			return c.getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			throw new Error("Error instantiating object of class: "
+					+ c.getName());
+		}
+	}
+
+	/**
+	 * Call the method found for a child node with the child's value.
+	 *
+	 * @param method the method found by findAdder
+	 * @param parent the object the method belongs to
+	 * @param childValue the parsed value of the child node
+	 */
+	protected void addChild(Method method, Object parent, Object childValue) {
+
+		try {
+
+			//Invoke the setter method
+			method.invoke(parent, new Object[] { childValue });
+
+		} catch (Exception e) {
+			System.err.println("Error invoking the method "
+					+ method.getName() + ".");
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * Parse an object node. The node is assumed to be of Class c and is
 	 * represented by Node n.
@@ -292,52 +468,10 @@ public class Parser {
 		Node nameAttribute = attributes.getNamedItem("name");
 		Node refAttribute = attributes.getNamedItem("ref");
 
-		if (typeAttribute != null) {
-			String className = typeAttribute.getNodeValue();
-			try {
-				Class<?> possibleClass;
-				// Try to look up the class; if it fails, try looking in the package
-				// of the given base type
-				try {
-					possibleClass = Class.forName(className);
-				} catch (ClassNotFoundException e) {
-					possibleClass = Class.forName(c.getPackage().getName()
-							+ "." + className);
-				}
-				if (c.isAssignableFrom(possibleClass)) {
-					c = possibleClass; // Set the current active class to user specified type
-				} else {
-					throw new Error("Type " + className
-							+ " does not extend or implement " + c.getName());
-				}
-			} catch (ClassNotFoundException e) {
-				throw new Error("Class could not be found: " + className);
-			}
-		}
-
 		// If the node specifies a type, check that it is assignable to the current
 		// output type for this node
 		if (typeAttribute != null) {
-			String className = typeAttribute.getNodeValue();
-			try {
-				Class<?> possibleClass;
-				// Try to look up the class; if it fails, try looking in the package
-				// of the given base type
-				try {
-					possibleClass = Class.forName(className);
-				} catch (ClassNotFoundException e) {
-					possibleClass = Class.forName(c.getPackage().getName()
-							+ "." + className);
-				}
-				if (c.isAssignableFrom(possibleClass)) {
-					c = possibleClass; // Set the current active class to user specified type
-				} else {
-					throw new Error("Type " + className
-							+ " does not extend or implement " + c.getName());
-				}
-			} catch (ClassNotFoundException e) {
-				throw new Error("Class could not be found: " + className);
-			}
+			c = resolveType(c, typeAttribute.getNodeValue());
 		}
 
 		// Check that our current type is valid
@@ -350,18 +484,11 @@ public class Parser {
 
 		//If the object is a reference, just return the value referenced
 		if (refAttribute != null) {
-			String name = refAttribute.getNodeValue();
-			resultingObject = references.get(name);
-			if (resultingObject == null) {
-				throw new Error("Unresolved reference: " + name);
-			}
+			resultingObject = resolveReference(refAttribute.getNodeValue());
 		}
 
 		// Check for certain special classes of the current node
-		else if ((c.isArray() && c.getComponentType().isPrimitive())
-				|| c == String.class || c == Integer.class || c == Double.class
-				|| c == Color.class || Tuple3.class.isAssignableFrom(c)
-				|| Image.class.isAssignableFrom(c)) {
+		else if (isText(c)) {
 
 			// Interpret the text values of all children nodes as objects
 			for (int i = 0; i < children.getLength(); i++) {
@@ -380,12 +507,7 @@ public class Parser {
 		else {
 
 			// Create one!
-			try {
-				resultingObject = c.getDeclaredConstructor().newInstance();
-			} catch (Exception e) {
-				throw new Error("Error instantiating object of class: "
-						+ c.getName());
-			}
+			resultingObject = instantiate(c);
 
 			// For each child
 			for (int i = 0; i < children.getLength(); i++) {
@@ -397,62 +519,13 @@ public class Parser {
 				}
 
 				//Find the method to use for adding
-				Method foundMethod = null;
-				String childName = child.getNodeName();
-
-				// Check setXXX
-				foundMethod = findMethod(c, "set" + childName);
-
-				// If can't find setXXX method, look for addXXX method instead
-				if (foundMethod == null)
-					foundMethod = findMethod(c, "add" + childName);
-
-				// Its an error if no method was found
-				if (foundMethod == null) {
-					throw new Error("Could not find a method to use to add "
-							+ childName + " to the class type " + c.getName()
-							+ ".");
-				}
-
-				// Check that the method has the right number of parameters
-				Class<?>[] parameterTypes = foundMethod.getParameterTypes();
-				if (parameterTypes.length != 1) {
-					throw new Error("Method " + foundMethod.getName()
-							+ " must take exactly one parameter.");
-				}
-
-				// If the type is primitive, switch to corresponding Object type
-				// to parse. Method invocation will automatically take care of
-				// converting Object types back into primitives.
-				Class<?> parameterType = parameterTypes[0];
-				if (parameterType.isPrimitive()) {
-					if (parameterType == Integer.TYPE) {
-						parameterType = Integer.class;
-					} else if (parameterType == Float.TYPE) {
-						parameterType = Float.class;
-					} else if (parameterType == Double.TYPE) {
-						parameterType = Double.class;
-					} else {
-						throw new Error("Cannot parse primitives of type "
-								+ parameterType);
-					}
-				}
+				Method foundMethod = findAdder(c, child.getNodeName());
 
 				// Recursively parse value of child element
-				Object childValue = parseObject(parameterType, child);
+				Object childValue = parseObject(childType(foundMethod), child);
 
 				// Call the setter method with the parsed value;
-				try {
-
-					//Invoke the setter method
-					foundMethod.invoke(resultingObject,
-							new Object[] { childValue });
-
-				} catch (Exception e) {
-					System.err.println("Error invoking the method "
-							+ foundMethod.getName() + ".");
-					e.printStackTrace();
-				}
+				addChild(foundMethod, resultingObject, childValue);
 			}
 		}
 
@@ -479,6 +552,7 @@ public class Parser {
 
 		// Parse the XML
 		Object result = null;
+		references = new HashMap<String, Object>();
 		try {
 
 			Document doc = db.parse(file);
@@ -493,4 +567,30 @@ public class Parser {
 		return result;
 	}
 
+	/**
+	 * Parse the XML read from a stream, such as a scene sent over the network,
+	 * as parse(String, Class) does a file.
+	 *
+	 * @param input the XML
+	 * @param c the class of the root node
+	 * @return the object parsed, or null if parsing failed
+	 */
+	public Object parse(InputStream input, Class<?> c) {
+
+		Object result = null;
+		references = new HashMap<String, Object>();
+		try {
+
+			Document doc = db.parse(input);
+			Element root = doc.getDocumentElement();
+			result = parseObject(c, root);
+
+		} catch (Exception e) {
+			System.out.println("Exception occurred while parsing a stream");
+			e.printStackTrace();
+		}
+
+		return result;
+	}
+
 }
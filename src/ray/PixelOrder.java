@@ -0,0 +1,114 @@
+package ray;
+
+/**
+ * The orders in which the cells of a grid (the pixels of a tile, or the tiles
+ * of an image) can be visited.  Visiting neighbours one after another keeps
+ * the parts of the scene their rays touch, and the image rows they are
+ * written to, in cache.
+ *
+ * "column" goes up each column in turn, as the original render loop does;
+ * "row" follows the image's memory layout (rows from the top down, left to
+ * right); "morton" and "hilbert" follow space filling curves, which keep
+ * every run of consecutive cells close together in both directions.
+ */
+public class PixelOrder {
+
+	/** Column by column, bottom to top within each column. */
+	public static final String COLUMN = "column";
+
+	/** Row by row in memory order: top row first, left to right. */
+	public static final String ROW = "row";
+
+	/** Z-order curve. */
+	public static final String MORTON = "morton";
+
+	/** Hilbert curve. */
+	public static final String HILBERT = "hilbert";
+
+	/**
+	 * Check that an order is one of the names above.
+	 * @param order the order
+	 */
+	public static void check(String order) {
+		if (!order.equals(COLUMN) && !order.equals(ROW) && !order.equals(MORTON) && !order.equals(HILBERT))
+			throw new Error("unknown pixel order \"" + order + "\"; use column, row, morton or hilbert");
+	}
+
+	/**
+	 * List the cells of a columns x rows grid in the given order.  Each cell
+	 * is packed as (x << 16) | y, so neither dimension may exceed 65536.
+	 * @param order the order
+	 * @param columns the width of the grid
+	 * @param rows the height of the grid
+	 * @return every cell of the grid, once each
+	 */
+	public static int[] cells(String order, int columns, int rows) {
+
+		check(order);
+		if (columns > 65536 || rows > 65536)
+			throw new Error("cannot order a " + columns + " x " + rows + " grid; neither side may exceed 65536");
+		int[] cells = new int[columns * rows];
+		int k = 0;
+		if (order.equals(COLUMN)) {
+			for (int x = 0; x < columns; x++)
+				for (int y = 0; y < rows; y++)
+					cells[k++] = (x << 16) | y;
+			return cells;
+		}
+		if (order.equals(ROW)) {
+			for (int y = rows - 1; y >= 0; y--)
+				for (int x = 0; x < columns; x++)
+					cells[k++] = (x << 16) | y;
+			return cells;
+		}
+		/*	Walk the curve over the smallest power of two square that covers
+			the grid, keeping the cells that fall inside it. */
+		int n = 1;
+		while (n < columns || n < rows) n *= 2;
+		boolean morton = order.equals(MORTON);
+		for (long d = 0; k < cells.length; d++) {
+			int cell = morton ? mortonCell(d) : hilbertCell(n, d);
+			if ((cell >>> 16) < columns && (cell & 0xffff) < rows)
+				cells[k++] = cell;
+		}
+		return cells;
+	}
+
+	/**
+	 * The cell at position d along the Z-order curve, found by taking the
+	 * even bits of d as x and the odd bits as y.
+	 */
+	private static int mortonCell(long d) {
+
+		int x = 0, y = 0;
+		for (int bit = 0; bit < 16; bit++) {
+			x |= (int) ((d >>> (2 * bit)) & 1) << bit;
+			y |= (int) ((d >>> (2 * bit + 1)) & 1) << bit;
+		}
+		return (x << 16) | y;
+	}
+
+	/**
+	 * The cell at position d along the Hilbert curve over an n x n grid, n a
+	 * power of two.
+	 */
+	private static int hilbertCell(int n, long d) {
+
+		int x = 0, y = 0;
+		for (int s = 1; s < n; s *= 2) {
+			int rx = (int) (1 & (d / 2));
+			int ry = (int) (1 & (d ^ rx));
+			if (ry == 0) {
+				if (rx == 1) {
+					x = s - 1 - x;
+					y = s - 1 - y;
+				}
+				int t = x; x = y; y = t;
+			}
+			x += s * rx;
+			y += s * ry;
+			d /= 4;
+		}
+		return (x << 16) | y;
+	}
+}
@@ -0,0 +1,246 @@
+package ray;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.FloatBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a PNG a few rows at a time, so an image never has to be held in
+ * memory whole.  The header is written when the encoder is created; each
+ * call to writeRows gamma corrects some rows exactly as Image.write does,
+ * filters them and feeds them to a single zlib stream, which goes out as
+ * IDAT chunks whenever CHUNK_BYTES of it are ready; finish ends the stream
+ * and the file.  Only one row of pixels and one chunk are buffered.
+ *
+ * Each row gets whichever PNG filter leaves the smallest sum of absolute
+ * differences, the usual heuristic for photographic images.
+ */
+public class PngEncoder {
+
+	/** Bytes of compressed data in each IDAT chunk. */
+	public static final int CHUNK_BYTES = 1 << 16;
+
+	/** The PNG signature. */
+	private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+
+	/** Where the file goes. */
+	protected final OutputStream out;
+
+	/** Image width and height. */
+	protected final int width, height;
+
+	/** Rows written so far. */
+	protected int rowsWritten;
+
+	/** Compresses the filtered rows. */
+	protected final Deflater deflater;
+
+	/** The IDAT chunk being filled. */
+	protected final byte[] chunk = new byte[CHUNK_BYTES];
+
+	/** Bytes of the chunk filled so far. */
+	protected int chunkLength;
+
+	/** The previous row and the current one, gamma corrected, as red, green, blue bytes. */
+	protected byte[] previous, current;
+
+	/** The pixels of the row being written, as floats. */
+	protected final float[] row;
+
+	/** The current row under each filter, each led by its filter type. */
+	protected final byte[][] filtered = new byte[5][];
+
+	/**
+	 * Start a PNG, writing its signature and header.
+	 * @param out the stream to write to, which is left open
+	 * @param width the image width
+	 * @param height the image height
+	 * @param level the zlib compression level, as for Deflater
+	 * @throws IOException if the stream cannot be written
+	 */
+	public PngEncoder(OutputStream out, int width, int height, int level) throws IOException {
+
+		if (width < 1 || height < 1 || (long) width * 3 + 1 > Integer.MAX_VALUE)
+			throw new Error("cannot write a " + width + " x " + height + " PNG");
+		this.out = out;
+		this.width = width;
+		this.height = height;
+		this.deflater = new Deflater(level);
+		row = new float[3 * width];
+		previous = new byte[3 * width];
+		current = new byte[3 * width];
+		for (int f = 0; f < filtered.length; f++) {
+			filtered[f] = new byte[1 + 3 * width];
+			filtered[f][0] = (byte) f;
+		}
+
+		out.write(SIGNATURE);
+		byte[] header = new byte[13];
+		putInt(header, 0, width);
+		putInt(header, 4, height);
+		header[8] = 8;	// bits per sample
+		header[9] = 2;	// truecolor
+		writeChunk("IHDR", header, header.length);
+	}
+
+	/**
+	 * Start a PNG with the default compression level.
+	 * @see #PngEncoder(OutputStream, int, int, int)
+	 */
+	public PngEncoder(OutputStream out, int width, int height) throws IOException {
+		this(out, width, height, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Write every row of a band of the image, top row first, gamma
+	 * corrected as Image.write does.
+	 * @param band an image as wide as this one, holding the next rows
+	 * @throws IOException if the stream cannot be written
+	 */
+	public void writeRows(Image band) throws IOException {
+
+		if (band.getWidth() != width)
+			throw new Error("band is " + band.getWidth() + " pixels wide, not " + width);
+		if (rowsWritten + band.getHeight() > height)
+			throw new Error("more than " + height + " rows written");
+		FloatBuffer floats = FloatBuffer.wrap(row);
+		// Image rows are numbered from the bottom.
+		for (int y = band.getHeight() - 1; y >= 0; y--) {
+			floats.clear();
+			band.getRow(0, y, width, floats);
+			for (int x = 0; x < current.length; x++)
+				current[x] = (byte) Image.toByte(row[x]);
+			writeRow();
+		}
+	}
+
+	/**
+	 * Filter and compress the current row, then make it the previous one.
+	 */
+	protected void writeRow() throws IOException {
+
+		byte[] best = filter();
+		deflater.setInput(best, 0, best.length);
+		while (!deflater.needsInput())
+			deflate();
+		byte[] swap = previous;
+		previous = current;
+		current = swap;
+		rowsWritten++;
+	}
+
+	/**
+	 * Apply every filter to the current row.
+	 * @return the filtered row with the smallest sum of absolute differences
+	 */
+	private byte[] filter() {
+
+		byte[] none = filtered[0], sub = filtered[1], up = filtered[2], average = filtered[3], paeth = filtered[4];
+		// Before the first row, previous is all zeros, as the row above the first is taken to be.
+		byte[] above = previous;
+		long[] sums = new long[5];
+		for (int x = 0; x < current.length; x++) {
+			int c = current[x] & 0xff;
+			int a = x >= 3 ? current[x - 3] & 0xff : 0;
+			int b = above[x] & 0xff;
+			int d = x >= 3 ? above[x - 3] & 0xff : 0;
+			none[x + 1] = (byte) c;
+			sub[x + 1] = (byte) (c - a);
+			up[x + 1] = (byte) (c - b);
+			average[x + 1] = (byte) (c - ((a + b) >>> 1));
+			paeth[x + 1] = (byte) (c - paethPredictor(a, b, d));
+			sums[0] += Math.abs(none[x + 1]);
+			sums[1] += Math.abs(sub[x + 1]);
+			sums[2] += Math.abs(up[x + 1]);
+			sums[3] += Math.abs(average[x + 1]);
+			sums[4] += Math.abs(paeth[x + 1]);
+		}
+		int best = 0;
+		for (int f = 1; f < sums.length; f++)
+			if (sums[f] < sums[best]) best = f;
+		return filtered[best];
+	}
+
+	/**
+	 * The Paeth predictor: whichever of left, above and upper left is
+	 * closest to left + above - upper left.
+	 */
+	private static int paethPredictor(int a, int b, int c) {
+
+		int p = a + b - c;
+		int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc) return a;
+		return pb <= pc ? b : c;
+	}
+
+	/**
+	 * Move compressed data into the chunk, writing the chunk out when full.
+	 */
+	private void deflate() throws IOException {
+
+		chunkLength += deflater.deflate(chunk, chunkLength, chunk.length - chunkLength);
+		if (chunkLength == chunk.length) {
+			writeChunk("IDAT", chunk, chunkLength);
+			chunkLength = 0;
+		}
+	}
+
+	/**
+	 * @return the number of rows written so far
+	 */
+	public int getRowsWritten() {
+		return rowsWritten;
+	}
+
+	/**
+	 * End the compressed data and the file.  Every row must have been written.
+	 * The stream is flushed but not closed.
+	 * @throws IOException if the stream cannot be written
+	 */
+	public void finish() throws IOException {
+
+		if (rowsWritten != height)
+			throw new Error("only " + rowsWritten + " of " + height + " rows written");
+		deflater.finish();
+		while (!deflater.finished())
+			deflate();
+		if (chunkLength > 0)
+			writeChunk("IDAT", chunk, chunkLength);
+		chunkLength = 0;
+		deflater.end();
+		writeChunk("IEND", chunk, 0);
+		out.flush();
+	}
+
+	/**
+	 * Write a chunk: its length, type, data and the CRC32 of its type and data.
+	 */
+	private void writeChunk(String type, byte[] data, int length) throws IOException {
+
+		byte[] head = new byte[8];
+		putInt(head, 0, length);
+		for (int k = 0; k < 4; k++)
+			head[4 + k] = (byte) type.charAt(k);
+		CRC32 crc = new CRC32();
+		crc.update(head, 4, 4);
+		crc.update(data, 0, length);
+		byte[] check = new byte[4];
+		putInt(check, 0, (int) crc.getValue());
+		out.write(head);
+		out.write(data, 0, length);
+		out.write(check);
+	}
+
+	/**
+	 * Store an int in network order.
+	 */
+	private static void putInt(byte[] bytes, int offset, int value) {
+
+		bytes[offset + 0] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+}
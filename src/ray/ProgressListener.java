@@ -0,0 +1,16 @@
+package ray;
+
+/**
+ * Receives the intermediate images of a progressive render.
+ */
+public interface ProgressListener {
+
+	/**
+	 * Called after each pass of a progressive render, once the gaps between
+	 * the pixels traced so far have been filled in.  The image is the scene's
+	 * own and is written again by the next pass, so copy it to keep it.
+	 * @param image the image rendered so far
+	 * @param stride the spacing of the pixels traced so far; 1 for the final image
+	 */
+	void passComplete(Image image, int stride);
+}
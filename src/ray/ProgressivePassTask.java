@@ -0,0 +1,115 @@
+package ray;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+
+import ray.math.Color;
+
+/**
+ * Fork/join task that renders one pass of a progressive render: the pixels
+ * whose coordinates are both multiples of stride, skipping those already
+ * traced by the previous (coarser) pass.
+ */
+public class ProgressivePassTask extends TileRenderTask {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Spacing of the pixels traced by this pass. */
+	protected final int stride;
+
+	/** Spacing of the pixels traced by the previous pass, or 0 if this is the first. */
+	protected final int coarser;
+
+	/** Each tile's pixels before rendering began, for pixels whose ray misses (see saveBackground). */
+	protected final float[][] background;
+
+	/**
+	 * Create a task that renders one pass over tiles [first, last).
+	 * @param scene the scene
+	 * @param camera the primary rays of the image
+	 * @param options how to render the tiles
+	 * @param tiles the tile list
+	 * @param first the first tile index
+	 * @param last one past the last tile index
+	 * @param stride the spacing of the pixels to trace
+	 * @param coarser the spacing of the pixels already traced, or 0
+	 * @param background each tile's pixels before rendering began, from saveBackground
+	 */
+	public ProgressivePassTask(Scene scene, CameraRayGenerator camera, RenderOptions options, List<Tile> tiles,
+			int first, int last, int stride, int coarser, float[][] background) {
+
+		super(scene, camera, options, tiles, first, last);
+		this.stride = stride;
+		this.coarser = coarser;
+		this.background = background;
+	}
+
+	/**
+	 * Save what each tile of an image holds before a progressive pass paints
+	 * over it.  A tile of a single color, as every tile of a new image is,
+	 * is kept as just that color, so a blank image costs next to nothing
+	 * however large it is, and no copy of the whole image is ever made.
+	 * @param image the image
+	 * @param tiles the tiles it is split into
+	 * @return for each tile index, its pixels a row at a time from the
+	 *         bottom, or the one color of a tile that has one
+	 */
+	public static float[][] saveBackground(Image image, List<Tile> tiles) {
+
+		float[][] background = new float[tiles.size()][];
+		float[] pixels = new float[0];
+		for (Tile tile : tiles) {
+			int floats = 3 * tile.size();
+			if (pixels.length < floats)
+				pixels = new float[floats];
+			FloatBuffer buffer = FloatBuffer.wrap(pixels);
+			for (int y = tile.y0; y < tile.y1; y++)
+				image.getRow(tile.x0, y, tile.x1 - tile.x0, buffer);
+			int k = 3;
+			while (k < floats && Float.floatToRawIntBits(pixels[k]) == Float.floatToRawIntBits(pixels[k % 3]))
+				k++;
+			background[tile.index] = new float[(k < floats) ? floats : 3];
+			System.arraycopy(pixels, 0, background[tile.index], 0, background[tile.index].length);
+		}
+		return background;
+	}
+
+	/**
+	 * Look up what pixel (i, j) of a tile held before rendering began.
+	 */
+	private void background(Tile tile, int i, int j, Color out) {
+
+		float[] pixels = background[tile.index];
+		int k = (pixels.length == 3) ? 0 : 3 * ((j - tile.y0) * (tile.x1 - tile.x0) + i - tile.x0);
+		out.set(pixels[k], pixels[k + 1], pixels[k + 2]);
+	}
+
+	protected TileRenderTask subtask(int first, int last) {
+		return new ProgressivePassTask(scene, camera, options, tiles, first, last, stride, coarser, background);
+	}
+
+	protected long renderTile(Tile tile, RenderScratch scratch) {
+
+		long samples = 0;
+		int i0 = (tile.x0 + stride - 1) / stride * stride;
+		int j0 = (tile.y0 + stride - 1) / stride * stride;
+		for (int i = i0; i < tile.x1; i += stride) {
+			for (int j = j0; j < tile.y1; j += stride) {
+				if (coarser > 0 && i % coarser == 0 && j % coarser == 0) continue;
+				if (options.getMaxSamples() > 1) {
+					background(tile, i, j, scratch.miss);
+					samples += RayTracer.renderPixelAdaptive(scene, camera, options, scratch.miss, i, j, scratch);
+					continue;
+				}
+				/*	The gap filling of earlier passes may have painted over this
+					pixel, so put back what the normal render would leave there. */
+				if (!RayTracer.renderPixel(scene, camera, i, j, scratch)) {
+					background(tile, i, j, scratch.rgb);
+					scene.outputImage.setPixelColor(scratch.rgb, i, j);
+				}
+				samples++;
+			}
+		}
+		return samples;
+	}
+}
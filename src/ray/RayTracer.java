@@ -6,8 +6,18 @@ import ray.math.Point3;
 import ray.math.Ray;
 import ray.math.Vector3;
 import ray.surface.HitRecord;
+import ray.surface.LinearBVH;
+import ray.surface.RayPacket;
+import ray.surface.Surface;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 
 /**
@@ -17,60 +27,193 @@ import java.io.File;
  */
 public class RayTracer {
 
+	/** Spacing of the pixels traced by the first pass of a progressive render. */
+	public static final int PROGRESSIVE_STRIDE = 16;
+
 	/**
 	 * The main method takes all the parameters an assumes they are input files
 	 * for the ray tracer. It tries to render each one and write it out to a PNG
-	 * file named <input_file>.png.
+	 * file named <input_file>.png, or a .pfm or .raw file with -format.  Arguments starting with '-' are render
+	 * options (see RenderOptions) and apply to every input.  Directories are
+	 * searched for XML files, and when there is more than one scene they are
+	 * rendered several at a time (see BatchRenderer).  Scenes that must be
+	 * rendered one at a time have their images written in the background
+	 * (see ImageWriter), and main returns once every image is written.
 	 *
 	 * @param args
 	 */
 	public static final void main(String[] args) {
-        for (String inputString : args)
+        RenderOptions options = new RenderOptions();
+        ArrayList<File> scenes = new ArrayList<File>();
+        for (int k = 0; k < args.length; k++)
         {
-            recursiveXML(inputString);
+            int consumed = options.parse(args, k);
+            if (consumed > 0)
+            {
+                k += consumed - 1;
+            }
+            else
+            {
+                BatchRenderer.findScenes(new File(args[k]), scenes);
+            }
         }
-    }
-    
-    public static void recursiveXML(String inputString)
-    {
-        File inputFile = new File(inputString);
-        if (inputFile.isFile())
+        // Progressive, time limited, checkpointed, distributed and streamed renders each need their own run.
+        if (scenes.size() > 1 && !options.isProgressive() && options.getTimeLimit() == 0
+                && !options.isCheckpoint() && options.getWorkers() == null && options.getBandRows() == 0)
+        {
+            new BatchRenderer(options).render(scenes);
+            return;
+        }
+        // Encode each image in the background while the next scene renders.
+        ImageWriter writer = null;
+        if (scenes.size() > 1 && options.getEncoders() > 0)
         {
-            if (inputFile.getName().endsWith(".xml"))
+            writer = new ImageWriter(options.getEncoders(), options.getEncoders());
+            options.setWriter(writer);
+        }
+        try
+        {
+            for (File scene : scenes)
             {
-                runXML(inputFile.getPath());
+                runXML(scene.getPath(), options);
             }
         }
-        else if (inputFile.isDirectory())
+        finally
         {
-            File[] listing = inputFile.listFiles();
-            if (listing != null)
+            if (writer != null)
             {
-                for (File file : listing)
-                {
-                    recursiveXML(inputString + "/" + file.getName());
-                }
+                writer.close();
+                options.setWriter(null);
             }
         }
-        else
+    }
+    
+    public static void recursiveXML(String inputString)
+    {
+        recursiveXML(inputString, new RenderOptions());
+    }
+
+    public static void recursiveXML(String inputString, RenderOptions options)
+    {
+        ArrayList<File> scenes = new ArrayList<File>();
+        BatchRenderer.findScenes(new File(inputString), scenes);
+        for (File scene : scenes)
         {
-            System.out.println("Input argument \"" + inputString + "\" is neither an XML file nor a directory.");
+            runXML(scene.getPath(), options);
         }
     }
 
     public static void runXML(String inputFilename)
     {
-        Parser parser = new Parser();
-        String outputFilename = inputFilename + ".png";
+        runXML(inputFilename, new RenderOptions());
+    }
+
+    public static void runXML(String inputFilename, RenderOptions options)
+    {
+        Parser parser = options.createParser();
+        // Bands are only ever streamed to a PNG.
+        String outputFilename = inputFilename + "." + (options.getBandRows() > 0 ? "png" : options.getOutputFormat());
         System.out.println(inputFilename);
+        // A streamed image is never held whole, so do not allocate it.
+        if (options.getBandRows() > 0)
+        {
+            parser.setImageClass(StreamedImage.class);
+        }
         // Parse the input file
         Scene scene = (Scene) parser.parse(inputFilename, Scene.class);
 
-        // Render the scene
-        renderImage(scene);
+        // ImageWriter closes a MappedImage once it has written it; any other way out closes it here.
+        boolean handedOver = false;
+        try
+        {
+            // Render the scene
+            if (options.getBandRows() > 0)
+            {
+                try
+                {
+                    OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFilename));
+                    try
+                    {
+                        renderBands(scene, options, out);
+                    }
+                    finally
+                    {
+                        out.close();
+                    }
+                }
+                catch (IOException e)
+                {
+                    System.out.println("Error occured while attempting to write file: " + outputFilename);
+                    System.err.println(e);
+                }
+                return;
+            }
+            else if (options.isProgressive())
+            {
+                final long startTime = System.currentTimeMillis();
+                renderProgressive(scene, options, new ProgressListener() {
+                    public void passComplete(Image image, int stride)
+                    {
+                        System.out.println("Pass with stride " + stride + " done after "
+                                + ((System.currentTimeMillis() - startTime) / 1000.0) + " seconds");
+                    }
+                });
+            }
+            else if (options.getWorkers() != null)
+            {
+                new RenderCoordinator(new File(inputFilename), options).render(scene);
+            }
+            else if (options.getTimeLimit() > 0 || options.isCheckpoint())
+            {
+                RenderControl control = options.getTimeLimit() > 0 ? new RenderControl(options.getTimeLimit()) : null;
+                File checkpointFile = null;
+                long key = 0;
+                if (options.isCheckpoint())
+                {
+                    checkpointFile = new File(inputFilename + ".ckpt");
+                    key = RenderCheckpoint.key(new File(inputFilename), options);
+                }
+                RenderResult result = renderImage(scene, options, control, checkpointFile, key);
+                if (!result.isComplete())
+                {
+                    result.writeCoverage(inputFilename + ".coverage.png");
+                }
+                else if (checkpointFile != null)
+                {
+                    // The checkpoint is only needed until the finished image is saved, so save it now.
+                    try
+                    {
+                        ImageWriter.writeFile(scene.getImage(), outputFilename);
+                    }
+                    catch (IOException e)
+                    {
+                        System.out.println("Error occured while attempting to write file: " + outputFilename);
+                        System.err.println(e);
+                        return;
+                    }
+                    if (!checkpointFile.delete())
+                    {
+                        System.out.println("Could not delete checkpoint " + checkpointFile);
+                    }
+                    return;
+                }
+            }
+            else
+            {
+                renderImage(scene, options);
+            }
 
-        // Write the image out
-        scene.getImage().write(outputFilename);
+            // Write the image out
+            handedOver = true;
+            ImageWriter.write(scene.getImage(), outputFilename, options);
+        }
+        finally
+        {
+            if (!handedOver)
+            {
+                MappedImage.close(scene.getImage());
+            }
+        }
     }
 	
 	/**
@@ -79,13 +222,23 @@ public class RayTracer {
 	 * @return An array containing each vector [u, v, w]
 	 */
 	public static Vector3[] computeBasis(Scene scene) 
+	{
+		return computeBasis(scene.camera);
+	}
+
+	/**
+	 * Compute the basis for a camera's coordinate system (u, v, w)
+	 * @param camera the camera
+	 * @return An array containing each vector [u, v, w]
+	 */
+	public static Vector3[] computeBasis(Camera camera)
 	{
 		// Define the u, v, and w vectors. 
 		Vector3 u = new Vector3();
 		Vector3 v = new Vector3();
-		Vector3 w = new Vector3(scene.camera.projNormal);
+		Vector3 w = new Vector3(camera.projNormal);
 		// To compute the basis, we need to get the cross product between w-> and up->. 
-		u.cross(scene.camera.viewUp, w);
+		u.cross(camera.viewUp, w);
 		// Now that u and w are orthogonal, we need to make sure that v is orthogonal to both.
 		v.cross(w, u);
 		// u, v, and w are all orthogonal to each other. Now we normalize for an orthonormal basis.
@@ -146,35 +299,17 @@ public class RayTracer {
 		long startTime = System.currentTimeMillis();
 
 		/*	Render the image, writing the pixel values into image. */
-		Vector3[] basis = computeBasis(scene);
+		CameraRayGenerator camera = new CameraRayGenerator(scene.camera, image);
+		Vector3[] basis = camera.getBasis();
 		System.out.println("" + basis[0] + basis[1] + basis[2]);
 		System.out.println(image.getHeight());
 		
-		Vector3 direction;
-		Ray ray = new Ray();
-		HitRecord hit;
-		Color rgb = new Color();
+		RenderScratch scratch = new RenderScratch();
 		int i, j;
 		// For ever pixel in thxe image, cast a ray to see what color it intersects with. 
 		for (i = 0; i < scene.outputImage.width; i++) {
 			for (j = 0; j < scene.outputImage.height; j++) {
-				direction = computeRayDirection(scene, basis, i, j);
-			    /*	What and where does the ray intersect with anything in the scene, 
-					if anything at all. */
-				hit = scene.group.hit(direction, scene.camera.viewPoint);
-				/*	If the ray missed all of the objects in the seen, it would return null. 
-					Otherwise, calculate the color of the pixel. */
-				if (hit != null) {
-					ray.set(scene.camera.viewPoint, direction);
-					/*	Reset the color to 0 inbetween each pixel. */
-					rgb.set(0, 0, 0);
-					/*	Calculate how much each light in the scene contributes to the color of that pixel. */
-					for (Light light : scene.lights)
-						rgb.add(light.illuminate(hit, ray, scene.group));
-					rgb.clamp(0, 1);
-					/*	Write the calculated color to the pixel. */
-					scene.outputImage.setPixelColor(rgb, i, j);
-				}
+				renderPixel(scene, camera, i, j, scratch);
 			}
 		}
 		// Output time
@@ -182,4 +317,448 @@ public class RayTracer {
 		System.out.println("Done.  Total rendering time: "
 				+ (totalTime / 1000.0) + " seconds");
 	}
+
+	/**
+	 * Renders the entire scene by splitting the image into tiles and tracing
+	 * them on a pool of worker threads.  Each pixel is computed exactly as in
+	 * renderImage(Scene), so the result is identical to the serial render.
+	 *
+	 * @param scene The scene to be rendered
+	 * @param options the number of threads and tile size to use
+	 */
+	public static void renderImage(Scene scene, RenderOptions options) {
+
+		renderImage(scene, options, null);
+	}
+
+	/**
+	 * Renders the scene as renderImage(Scene, RenderOptions) does, but stops
+	 * starting new tiles once the control says to.  Tiles already started
+	 * are finished, so the image is always made of whole tiles, and the
+	 * result tells which ones.
+	 *
+	 * @param scene The scene to be rendered
+	 * @param options the number of threads and tile size to use
+	 * @param control the deadline or cancellation to obey, or null to render everything
+	 * @return the image and which of its tiles were finished
+	 */
+	public static RenderResult renderImage(Scene scene, RenderOptions options, RenderControl control) {
+
+		return renderImage(scene, options, control, null, 0);
+	}
+
+	/**
+	 * Renders the scene as renderImage(Scene, RenderOptions, RenderControl)
+	 * does, saving each finished tile to a checkpoint file.  If
+	 * options.isResume() and the file holds a checkpoint of the same render,
+	 * its tiles are copied into the image instead of being rendered again.
+	 * The file is left in place; delete it once the image is saved.
+	 *
+	 * @param scene The scene to be rendered
+	 * @param options the number of threads and tile size to use
+	 * @param control the deadline or cancellation to obey, or null to render everything
+	 * @param checkpointFile where to save finished tiles, or null for no checkpoint
+	 * @param key identifies the scene and settings (see RenderCheckpoint.key)
+	 * @return the image and which of its tiles were finished
+	 */
+	public static RenderResult renderImage(Scene scene, RenderOptions options, RenderControl control,
+			File checkpointFile, long key) {
+
+		Image image = scene.getImage();
+		long startTime = System.currentTimeMillis();
+
+		CameraRayGenerator camera = new CameraRayGenerator(scene.camera, image);
+		prepareRoot(scene, options);
+		ArrayList<Tile> tiles = Tile.split(image.getWidth(), image.getHeight(), options.getTileSize(), options.getPixelOrder());
+		boolean[] finished = new boolean[tiles.size()];
+
+		RenderCheckpoint checkpoint = null;
+		long restoredSamples = 0;
+		if (checkpointFile != null) {
+			checkpoint = new RenderCheckpoint(checkpointFile, image, tiles, key, options.isResume());
+			for (Tile tile : tiles)
+				finished[tile.index] = checkpoint.isRestored(tile);
+			restoredSamples = checkpoint.getRestoredSamples();
+			if (checkpoint.getRestoredTiles() > 0)
+				System.out.println("Resumed " + checkpoint.getRestoredTiles() + " of " + tiles.size()
+						+ " tiles from " + checkpointFile);
+		}
+
+		TileRenderTask task = new TileRenderTask(scene, camera, options, tiles, 0, tiles.size());
+		task.setControl(control, finished);
+		task.setCheckpoint(checkpoint);
+		ForkJoinPool pool = pool(options);
+		try {
+			invoke(pool, task);
+		}
+		finally {
+			if (pool != options.getPool())
+				pool.shutdown();
+			if (checkpoint != null)
+				checkpoint.close();
+		}
+
+		long totalTime = (System.currentTimeMillis() - startTime);
+		RenderResult result = new RenderResult(image, tiles, finished, totalTime / 1000.0);
+		if (result.isComplete()) {
+			System.out.println("Done.  Total rendering time: "
+					+ (totalTime / 1000.0) + " seconds (" + options.getThreads() + " threads, "
+					+ tiles.size() + " tiles" + samplesReport(task.getSamples() + restoredSamples, image) + ")");
+		}
+		else {
+			System.out.println("Stopped.  Total rendering time: "
+					+ (totalTime / 1000.0) + " seconds (" + result.getTilesFinished() + " of "
+					+ tiles.size() + " tiles, " + String.format("%.1f", 100 * result.getCoverage()) + "% of pixels)");
+		}
+		return result;
+	}
+
+	/**
+	 * Renders the scene coarse to fine: first every 16th pixel in each
+	 * direction, then every 8th, and so on down to every pixel.  After each
+	 * pass the pixels not yet traced are filled with their nearest traced
+	 * neighbour and the listener is called, so a rough image is available
+	 * almost at once.  Every pixel is traced exactly once, and the final image
+	 * is identical to the one renderImage produces.
+	 *
+	 * @param scene The scene to be rendered
+	 * @param options the number of threads and tile size to use
+	 * @param listener called after every pass, or null
+	 */
+	public static void renderProgressive(Scene scene, RenderOptions options, ProgressListener listener) {
+
+		Image image = scene.getImage();
+		long startTime = System.currentTimeMillis();
+
+		CameraRayGenerator camera = new CameraRayGenerator(scene.camera, image);
+		prepareRoot(scene, options);
+		ArrayList<Tile> tiles = Tile.split(image.getWidth(), image.getHeight(), options.getTileSize(), options.getPixelOrder());
+		float[][] background = ProgressivePassTask.saveBackground(image, tiles);
+		long samples = 0;
+
+		ForkJoinPool pool = pool(options);
+		try {
+			int coarser = 0;
+			for (int stride = PROGRESSIVE_STRIDE; stride >= 1; coarser = stride, stride /= 2) {
+				TileRenderTask pass = new ProgressivePassTask(scene, camera, options, tiles, 0, tiles.size(),
+						stride, coarser, background);
+				invoke(pool, pass);
+				samples += pass.getSamples();
+				if (stride > 1)
+					image.upsampleNearest(stride);
+				if (listener != null)
+					listener.passComplete(image, stride);
+			}
+		}
+		finally {
+			if (pool != options.getPool())
+				pool.shutdown();
+		}
+
+		long totalTime = (System.currentTimeMillis() - startTime);
+		System.out.println("Done.  Total rendering time: "
+				+ (totalTime / 1000.0) + " seconds (" + options.getThreads() + " threads, progressive"
+				+ samplesReport(samples, image) + ")");
+	}
+
+	/**
+	 * Renders the scene a band of options.getBandRows() rows at a time, top
+	 * band first, and writes each band to a PNG as soon as it is done, so
+	 * only one band of pixels is ever held.  The scene's image gives only
+	 * the size, and may be a StreamedImage, which holds no pixels.  Each
+	 * pixel is computed exactly as renderImage computes it.
+	 *
+	 * @param scene The scene to be rendered
+	 * @param options the threads, tile size and band height to use
+	 * @param out the stream to write the PNG to, which is left open
+	 * @throws IOException if the stream cannot be written
+	 */
+	public static void renderBands(Scene scene, RenderOptions options, OutputStream out) throws IOException {
+
+		int width = scene.getImage().getWidth(), height = scene.getImage().getHeight();
+		int bandRows = Math.min(Math.max(1, options.getBandRows()), height);
+		long startTime = System.currentTimeMillis();
+
+		prepareRoot(scene, options);
+		PngEncoder png = new PngEncoder(out, width, height);
+		long samples = 0;
+		ForkJoinPool pool = pool(options);
+		try {
+			// Rows are numbered from the bottom, and the PNG starts at the top.
+			for (int top = height; top > 0; top -= bandRows) {
+				int rows = Math.min(bandRows, top);
+				Image band = new Image(width, rows);
+				CameraRayGenerator camera = new CameraRayGenerator(scene.camera, width, height, top - rows, rows);
+				ArrayList<Tile> tiles = Tile.split(width, rows, options.getTileSize(), options.getPixelOrder());
+				TileRenderTask task = new TileRenderTask(scene.share(scene.camera, band), camera, options, tiles, 0, tiles.size());
+				invoke(pool, task);
+				samples += task.getSamples();
+				png.writeRows(band);
+			}
+		}
+		finally {
+			if (pool != options.getPool())
+				pool.shutdown();
+		}
+		png.finish();
+
+		long totalTime = (System.currentTimeMillis() - startTime);
+		System.out.println("Done.  Total rendering time: "
+				+ (totalTime / 1000.0) + " seconds (" + options.getThreads() + " threads, "
+				+ bandRows + "-row bands" + samplesReport(samples, scene.getImage()) + ")");
+	}
+
+	/**
+	 * @return the options' shared pool, or a new pool of options.getThreads()
+	 *         workers that the caller must shut down
+	 */
+	static ForkJoinPool pool(RenderOptions options) {
+
+		return (options.getPool() != null) ? options.getPool() : new ForkJoinPool(options.getThreads());
+	}
+
+	/**
+	 * Run a task on a pool, directly if this thread is already one of the
+	 * pool's workers (as it is when a batch renders on a shared pool).
+	 */
+	static void invoke(ForkJoinPool pool, ForkJoinTask<?> task) {
+
+		if (ForkJoinTask.getPool() == pool)
+			task.invoke();
+		else
+			pool.invoke(task);
+	}
+
+	/**
+	 * Describe the average number of rays traced per pixel, if it is not one.
+	 */
+	static String samplesReport(long samples, Image image) {
+
+		long pixels = (long) image.getWidth() * image.getHeight();
+		if (samples == pixels) return "";
+		return ", " + String.format("%.2f", (double) samples / pixels) + " samples per pixel";
+	}
+
+	/**
+	 * Choose the surface that rays are traced against, as requested by the
+	 * options.  A scene already prepared for linear traversal, such as one
+	 * RenderServer keeps between requests, keeps its flattened hierarchy.
+	 * @param scene the scene
+	 * @param options the render options
+	 */
+	public static void prepareRoot(Scene scene, RenderOptions options) {
+
+		if (options.getAcceleration().equals("linear")) {
+			if (scene.root instanceof LinearBVH && ((LinearBVH) scene.root).getGroup() == scene.group)
+				return;
+			LinearBVH linear = new LinearBVH(scene.group);
+			System.out.println(linear.memoryReport());
+			scene.setRoot(linear);
+		}
+		else {
+			scene.setRoot(null);
+		}
+	}
+
+	/**
+	 * Render every pixel of a tile into the scene's image, in the tile's
+	 * pixel order.
+	 * @param scene the scene
+	 * @param camera the primary rays of the image
+	 * @param tile the tile to render
+	 * @param scratch the calling thread's working storage
+	 */
+	public static void renderTile(Scene scene, CameraRayGenerator camera, Tile tile, RenderScratch scratch) {
+
+		for (int k = 0; k < tile.size(); k++) {
+			renderPixel(scene, camera, tile.pixelX(k), tile.pixelY(k), scratch);
+		}
+	}
+
+	/**
+	 * Render every pixel of a tile, tracing square blocks of pixels together
+	 * as ray packets.  Each pixel gets exactly the color renderTile gives it.
+	 * @param scene the scene
+	 * @param camera the primary rays of the image
+	 * @param tile the tile to render
+	 * @param packetSize the width and height of a packet, in pixels
+	 * @param scratch the calling thread's working storage
+	 */
+	public static void renderTilePackets(Scene scene, CameraRayGenerator camera, Tile tile, int packetSize, RenderScratch scratch) {
+
+		Surface root = scene.getRoot();
+		RayPacket packet = scratch.packet;
+		for (int i0 = tile.x0; i0 < tile.x1; i0 += packetSize) {
+			for (int j0 = tile.y0; j0 < tile.y1; j0 += packetSize) {
+				int i1 = Math.min(i0 + packetSize, tile.x1);
+				int j1 = Math.min(j0 + packetSize, tile.y1);
+				packet.reset(camera.getOrigin(), (i1 - i0) * (j1 - j0));
+				int k = 0;
+				for (int i = i0; i < i1; i++) {
+					for (int j = j0; j < j1; j++) {
+						camera.direction(i, j, packet.rays[k++].direction);
+					}
+				}
+				packet.prepare();
+				root.hit(packet, 0, Double.POSITIVE_INFINITY);
+				k = 0;
+				for (int i = i0; i < i1; i++) {
+					for (int j = j0; j < j1; j++, k++) {
+						if (packet.hit[k])
+							shadePixel(scene, root, packet.rays[k], packet.hits[k], i, j, scratch);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Trace the ray through pixel (i, j) and write its color into the scene's
+	 * image.  Pixels whose ray misses everything are left untouched.
+	 * @param scene the scene
+	 * @param camera the primary rays of the image
+	 * @param i the column index of the image
+	 * @param j the row index of the image
+	 * @param scratch the calling thread's working storage
+	 * @return true if the ray hit something and the pixel was written
+	 */
+	public static boolean renderPixel(Scene scene, CameraRayGenerator camera, int i, int j, RenderScratch scratch) {
+
+		Surface root = scene.getRoot();
+		Ray ray = scratch.ray;
+		HitRecord hit = scratch.hit;
+		camera.direction(i, j, scratch.direction);
+		ray.set(camera.getOrigin(), scratch.direction);
+		/*	What and where does the ray intersect with anything in front of 
+			the viewpoint, if anything at all. */
+		if (root.hit(ray, 0, Double.POSITIVE_INFINITY, hit)) {
+			shadePixel(scene, root, ray, hit, i, j, scratch);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Light the closest hit of the ray through pixel (i, j) and write the
+	 * color into the scene's image.
+	 * @param scene the scene
+	 * @param root the surface the ray was traced against, for shadow rays
+	 * @param ray the ray
+	 * @param hit its closest hit, with point and normal filled in
+	 * @param i the column index of the image
+	 * @param j the row index of the image
+	 * @param scratch the calling thread's working storage
+	 */
+	public static void shadePixel(Scene scene, Surface root, Ray ray, HitRecord hit, int i, int j, RenderScratch scratch) {
+
+		Color rgb = scratch.rgb;
+		shade(scene, root, ray, hit, rgb);
+		/*	Write the calculated color to the pixel. */
+		scene.outputImage.setPixelColor(rgb, i, j);
+	}
+
+	/**
+	 * Compute the color seen along a ray from its closest hit.
+	 * @param scene the scene
+	 * @param root the surface the ray was traced against, for shadow rays
+	 * @param ray the ray
+	 * @param hit its closest hit, with point and normal filled in
+	 * @param rgb the color to write, clamped to [0, 1]
+	 */
+	public static void shade(Scene scene, Surface root, Ray ray, HitRecord hit, Color rgb) {
+
+		/*	Reset the color to 0 inbetween each pixel. */
+		rgb.set(0, 0, 0);
+		/*	Calculate how much each light in the scene contributes to the color of that pixel. */
+		for (Light light : scene.lights)
+			rgb.add(light.illuminate(hit, ray, root));
+		rgb.clamp(0, 1);
+	}
+
+	/**
+	 * Render every pixel of a tile with adaptive supersampling (see
+	 * renderPixelAdaptive).
+	 * @param scene the scene
+	 * @param camera the primary rays of the image
+	 * @param tile the tile to render
+	 * @param options the sampling settings
+	 * @param scratch the calling thread's working storage
+	 * @return the number of rays traced
+	 */
+	public static long renderTileAdaptive(Scene scene, CameraRayGenerator camera, Tile tile, RenderOptions options, RenderScratch scratch) {
+
+		long samples = 0;
+		for (int k = 0; k < tile.size(); k++) {
+			samples += renderPixelAdaptive(scene, camera, options, null, tile.pixelX(k), tile.pixelY(k), scratch);
+		}
+		return samples;
+	}
+
+	/**
+	 * Render pixel (i, j) by averaging rays through points spread over the
+	 * pixel.  Rays are traced minSamples at a time; once the standard error of
+	 * the mean color falls below the threshold, or maxSamples rays have been
+	 * traced, the pixel is done.  Flat regions stop after minSamples while
+	 * edges and shadow boundaries get more.  The points follow the same
+	 * Halton sequence in every pixel, so results do not depend on threads or
+	 * tiles.  Rays that miss count as the color the pixel had before.
+	 * @param scene the scene
+	 * @param camera the primary rays of the image
+	 * @param options the sampling settings
+	 * @param background the color missed rays see, or null for the pixel's color in the scene's image
+	 * @param i the column index of the image
+	 * @param j the row index of the image
+	 * @param scratch the calling thread's working storage
+	 * @return the number of rays traced
+	 */
+	public static int renderPixelAdaptive(Scene scene, CameraRayGenerator camera, RenderOptions options,
+			Color background, int i, int j, RenderScratch scratch) {
+
+		Image image = scene.outputImage;
+		Surface root = scene.getRoot();
+		Ray ray = scratch.ray;
+		HitRecord hit = scratch.hit;
+		Color rgb = scratch.rgb;
+		Color miss = scratch.miss;
+		if (background != null)
+			miss.set(background);
+		else
+			image.getPixelColor(miss, i, j);
+
+		int batch = Math.min(options.getMinSamples(), options.getMaxSamples());
+		double sumR = 0, sumG = 0, sumB = 0, squaresR = 0, squaresG = 0, squaresB = 0;
+		int n = 0;
+		while (true) {
+			camera.direction(i, j, radicalInverse(2, n + 1) - 0.5, radicalInverse(3, n + 1) - 0.5, scratch.direction);
+			ray.set(camera.getOrigin(), scratch.direction);
+			if (root.hit(ray, 0, Double.POSITIVE_INFINITY, hit))
+				shade(scene, root, ray, hit, rgb);
+			else
+				rgb.set(miss);
+			sumR += rgb.r; squaresR += rgb.r * rgb.r;
+			sumG += rgb.g; squaresG += rgb.g * rgb.g;
+			sumB += rgb.b; squaresB += rgb.b * rgb.b;
+			n++;
+			if (n >= options.getMaxSamples()) break;
+			if (n % batch != 0) continue;
+			/*	Sample variance of the worst channel, and the standard error of the mean. */
+			double variance = Math.max(squaresR - sumR * sumR / n,
+					Math.max(squaresG - sumG * sumG / n, squaresB - sumB * sumB / n)) / (n - 1);
+			if (Math.sqrt(Math.max(variance, 0) / n) <= options.getSampleThreshold()) break;
+		}
+		image.setPixelRGB(sumR / n, sumG / n, sumB / n, i, j);
+		return n;
+	}
+
+	/**
+	 * The radical inverse of index in a base: its digits mirrored about the
+	 * decimal point, giving a well spread sequence in [0, 1).
+	 */
+	private static double radicalInverse(int base, int index) {
+
+		double result = 0, digit = 1.0 / base;
+		for (; index > 0; index /= base, digit /= base)
+			result += (index % base) * digit;
+		return result;
+	}
 }
@@ -0,0 +1,392 @@
+package ray;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file of finished tiles, so that a long render can be picked
+ * up where it left off after a crash.  The file starts with a header that
+ * identifies the render (image size, tiling, and a key for the scene and the
+ * settings that affect pixels), followed by one record per finished tile:
+ * its index, the number of rays traced for it, its pixels as floats, and a
+ * CRC32 of the record.  Reading stops at the first record that is missing
+ * or fails its check, such as one cut short by a crash.
+ *
+ * The file is memory mapped, sized up front to hold a record for every
+ * tile.  Appending a tile copies its pixels into the mapping, with no system
+ * call, so render threads are not held up waiting on the disk; the mapping
+ * is forced to disk at most every FORCE_INTERVAL milliseconds, and when the
+ * checkpoint is closed.  One mapping holds at most 2 GB, so a checkpoint
+ * larger than SEGMENT_BYTES is mapped in segments of that size.  No record
+ * spans two: one starts in a segment only if the largest record would fit
+ * in what is left of it, and otherwise at the start of the next.
+ */
+public class RenderCheckpoint {
+
+	/** Marks the start of a checkpoint file. */
+	protected static final int FILE_MAGIC = 0x5254434b;
+
+	/** Marks the start of a tile record. */
+	protected static final int TILE_MAGIC = 0x54494c45;
+
+	/** Format version written in the header. */
+	protected static final int VERSION = 1;
+
+	/** Bytes in the header. */
+	protected static final int HEADER_BYTES = 32;
+
+	/** Most milliseconds between forcing appended tiles to disk. */
+	public static final long FORCE_INTERVAL = 5000;
+
+	/** Most bytes in one mapping of the file. */
+	protected static final int SEGMENT_BYTES = 1 << 30;
+
+	/** The file. */
+	protected final File file;
+
+	/** The file, open while the checkpoint is. */
+	protected final FileChannel channel;
+
+	/** The file, mapped into memory a segment at a time. */
+	protected final MappedByteBuffer[] maps;
+
+	/** Bytes in each segment but the last; the whole file if there is one. */
+	protected final int segmentBytes;
+
+	/** Bytes in the file. */
+	protected final long size;
+
+	/** Bytes in the largest record. */
+	protected final int maxRecord;
+
+	/** Offset at which the next record goes; guarded by this. */
+	protected long end;
+
+	/** Tiles found in the file when it was opened, by index. */
+	protected final boolean[] restored;
+
+	/** Rays traced for the tiles found in the file. */
+	protected long restoredSamples;
+
+	/** Number of tiles found in the file. */
+	protected int restoredTiles;
+
+	/** When the mapping was last forced to disk, from System.nanoTime(); guarded by this. */
+	protected long lastForce = System.nanoTime();
+
+	/**
+	 * Open a checkpoint for a render.  If resume is true and the file holds a
+	 * checkpoint of the same render, its tiles are copied into the image and
+	 * reported by isRestored; otherwise the file is started afresh.
+	 * @param file the checkpoint file
+	 * @param image the image being rendered
+	 * @param tiles the tiles it is split into
+	 * @param key identifies the scene and the settings that affect its pixels
+	 * @param resume whether to pick up an existing checkpoint
+	 */
+	public RenderCheckpoint(File file, Image image, List<Tile> tiles, long key, boolean resume) {
+
+		this(file, image, tiles, key, resume, SEGMENT_BYTES);
+	}
+
+	/**
+	 * Open a checkpoint whose file is mapped in segments of the given size.
+	 * @param file the checkpoint file
+	 * @param image the image being rendered
+	 * @param tiles the tiles it is split into
+	 * @param key identifies the scene and the settings that affect its pixels
+	 * @param resume whether to pick up an existing checkpoint
+	 * @param segment the most bytes in one mapping
+	 */
+	protected RenderCheckpoint(File file, Image image, List<Tile> tiles, long key, boolean resume, int segment) {
+
+		this.file = file;
+		this.restored = new boolean[tiles.size()];
+		long total = HEADER_BYTES;
+		int largest = 0;
+		for (Tile tile : tiles) {
+			total += recordBytes(tile);
+			largest = Math.max(largest, recordBytes(tile));
+		}
+		maxRecord = largest;
+		if (HEADER_BYTES + (long) maxRecord > segment)
+			throw new Error("tiles are too large to checkpoint (" + maxRecord + " bytes each)");
+		int count = 1;
+		if (total <= segment) {
+			segmentBytes = (int) total;
+		}
+		else {
+			/*	Every segment but the last is left with less than one record
+				unused, so this many are always enough. */
+			segmentBytes = segment;
+			count = (int) ((total + segment - maxRecord) / (segment - maxRecord + 1));
+		}
+		size = (long) count * segmentBytes;
+		ByteBuffer header = header(image, tiles, key, (count > 1) ? segmentBytes : 0);
+		boolean same = false;
+		try {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			if (resume && channel.size() == size) {
+				ByteBuffer existing = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+				channel.read(existing, 0);
+				existing.flip();
+				same = existing.equals(header);
+			}
+			if (resume && !same && channel.size() > 0)
+				System.out.println("Checkpoint " + file + " is for a different render; starting over.");
+			if (!same)
+				channel.truncate(0);
+			maps = new MappedByteBuffer[count];
+			for (int k = 0; k < count; k++) {
+				maps[k] = channel.map(FileChannel.MapMode.READ_WRITE, (long) k * segmentBytes, segmentBytes);
+				maps[k].order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+		catch (IOException e) {
+			throw new Error("Could not open checkpoint " + file, e);
+		}
+		if (!same) {
+			maps[0].put(header);
+			maps[0].clear();
+		}
+		end = restore(image, tiles);
+		/*	A new file is all zeros.  When resuming, clear anything past the last
+			good record, so records left over from the earlier run can never be
+			read back after the new ones.  Zeros are only read, not written, so
+			the untouched parts of a large file stay unallocated. */
+		if (same) {
+			for (long offset = end; offset < size; offset = next(offset)) {
+				MappedByteBuffer map = maps[segment(offset)];
+				int k = within(offset);
+				for (; k + 8 <= map.limit(); k += 8)
+					if (map.getLong(k) != 0) map.putLong(k, 0);
+				for (; k < map.limit(); k++)
+					map.put(k, (byte) 0);
+			}
+		}
+	}
+
+	/**
+	 * Compute the key that tells a checkpoint of this render from one of a
+	 * different scene or with settings that change its pixels or its tiles.
+	 * @param sceneFile the scene's XML file
+	 * @param options the render options
+	 * @return the key
+	 */
+	public static long key(File sceneFile, RenderOptions options) {
+
+		CRC32 crc = new CRC32();
+		try {
+			crc.update(Files.readAllBytes(sceneFile.toPath()));
+		}
+		catch (IOException e) {
+			throw new Error("Could not read " + sceneFile, e);
+		}
+		String settings = options.getTileSize() + " " + options.getPixelOrder() + " " + options.getMaxSamples()
+				+ " " + options.getMinSamples() + " " + options.getSampleThreshold() + " " + options.getPixelFormat();
+		return (crc.getValue() << 32) ^ (settings.hashCode() & 0xffffffffL);
+	}
+
+	/**
+	 * Build the header that identifies this render.
+	 */
+	private static ByteBuffer header(Image image, List<Tile> tiles, long key, int segment) {
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(FILE_MAGIC);
+		header.putInt(VERSION);
+		header.putInt(image.getWidth());
+		header.putInt(image.getHeight());
+		header.putInt(tiles.size());
+		// The segment size when there are several, as it decides where records go.
+		header.putInt(segment);
+		header.putLong(key);
+		header.flip();
+		return header;
+	}
+
+	/**
+	 * @return the bytes in the record of a tile: a 16 byte head, the pixels and the check
+	 */
+	private static int recordBytes(Tile tile) {
+		return 16 + 12 * tile.size() + 4;
+	}
+
+	/**
+	 * @return the segment holding a file offset
+	 */
+	private int segment(long offset) {
+		return (int) (offset / segmentBytes);
+	}
+
+	/**
+	 * @return the position of a file offset within its segment
+	 */
+	private int within(long offset) {
+		return (int) (offset % segmentBytes);
+	}
+
+	/**
+	 * @return the offset of the start of the segment after the one holding offset
+	 */
+	private long next(long offset) {
+		return (long) (segment(offset) + 1) * segmentBytes;
+	}
+
+	/**
+	 * @return where the record after one ending at offset starts
+	 */
+	private long place(long offset) {
+		if (maps.length == 1 || within(offset) + (long) maxRecord <= segmentBytes) return offset;
+		return next(offset);
+	}
+
+	/**
+	 * Copy every intact tile record into the image.
+	 * @return the offset just past the last intact record
+	 */
+	private long restore(Image image, List<Tile> tiles) {
+
+		long offset = place(HEADER_BYTES);
+		while (offset + 16 <= size) {
+			MappedByteBuffer map = maps[segment(offset)];
+			int at = within(offset);
+			if (map.getInt(at) != TILE_MAGIC) break;
+			int index = map.getInt(at + 4);
+			if (index < 0 || index >= tiles.size()) break;
+			Tile tile = tiles.get(index);
+			int length = recordBytes(tile);
+			if (at + length > map.limit() || checksum(map, at, length) != map.getInt(at + length - 4)) break;
+
+			FloatBuffer pixels = pixels(map, at);
+			for (int y = tile.y0; y < tile.y1; y++)
+				image.setRow(tile.x0, y, tile.x1 - tile.x0, pixels);
+			if (!restored[index]) {
+				restored[index] = true;
+				restoredTiles++;
+				restoredSamples += map.getLong(at + 8);
+			}
+			offset = place(offset + length);
+		}
+		return offset;
+	}
+
+	/**
+	 * @return a view of the pixels of the record at position at of a segment, one row of the tile after another
+	 */
+	private static FloatBuffer pixels(MappedByteBuffer map, int at) {
+
+		ByteBuffer bytes = map.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		bytes.position(at + 16);
+		return bytes.asFloatBuffer();
+	}
+
+	/**
+	 * @return the CRC32 of a record, excluding the check at its end
+	 */
+	private static int checksum(MappedByteBuffer map, int at, int length) {
+
+		ByteBuffer body = map.duplicate();
+		body.limit(at + length - 4).position(at);
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * @param tile a tile of the render
+	 * @return true if the tile was read back from the file and need not be rendered
+	 */
+	public boolean isRestored(Tile tile) {
+		return restored[tile.index];
+	}
+
+	/**
+	 * @return the number of tiles read back from the file
+	 */
+	public int getRestoredTiles() {
+		return restoredTiles;
+	}
+
+	/**
+	 * @return the number of rays that were traced for the tiles read back
+	 */
+	public long getRestoredSamples() {
+		return restoredSamples;
+	}
+
+	/**
+	 * @return the checkpoint file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Append a finished tile.  Safe to call from several render threads: each
+	 * call claims the next record under a lock, then fills it in on its own.
+	 * @param tile the tile
+	 * @param image the image holding its pixels
+	 * @param samples the number of rays traced for it
+	 */
+	public void append(Tile tile, Image image, long samples) {
+
+		int length = recordBytes(tile);
+		long offset;
+		synchronized (this) {
+			offset = place(end);
+			end = offset + length;
+		}
+		if (offset + length > size)
+			throw new Error("checkpoint " + file + " is full; was a tile appended twice?");
+		MappedByteBuffer map = maps[segment(offset)];
+		int at = within(offset);
+		FloatBuffer pixels = pixels(map, at);
+		for (int y = tile.y0; y < tile.y1; y++)
+			image.getRow(tile.x0, y, tile.x1 - tile.x0, pixels);
+		map.putInt(at, TILE_MAGIC);
+		map.putInt(at + 4, tile.index);
+		map.putLong(at + 8, samples);
+		map.putInt(at + length - 4, checksum(map, at, length));
+
+		long now = System.nanoTime();
+		synchronized (this) {
+			if (now - lastForce >= FORCE_INTERVAL * 1000000L) {
+				lastForce = now;
+				force();
+			}
+		}
+	}
+
+	/**
+	 * Force every segment to disk.
+	 */
+	private void force() {
+		for (MappedByteBuffer map : maps)
+			map.force();
+	}
+
+	/**
+	 * Force everything to disk and close the file.  The mapping itself stays
+	 * valid until it is garbage collected, as Java has no way to unmap it.
+	 */
+	public synchronized void close() {
+		force();
+		try {
+			channel.close();
+		}
+		catch (IOException e) {
+			throw new Error("Could not close checkpoint " + file, e);
+		}
+	}
+}
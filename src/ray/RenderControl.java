@@ -0,0 +1,60 @@
+package ray;
+
+/**
+ * Lets the caller of a render stop it early, either by cancelling it from
+ * another thread or by giving it a deadline.  Renders check the control
+ * before starting each tile; tiles already started are finished, so a render
+ * stops within about one tile's time of being asked to.
+ */
+public class RenderControl {
+
+	/** System.nanoTime() at which to stop, or Long.MAX_VALUE for no deadline. */
+	protected final long deadline;
+
+	/** Set once the render has been cancelled. */
+	protected volatile boolean cancelled;
+
+	/**
+	 * Create a control with no deadline, stopped only by cancel().
+	 */
+	public RenderControl() {
+		deadline = Long.MAX_VALUE;
+	}
+
+	/**
+	 * Create a control whose deadline is a time budget from now.
+	 * @param budgetMillis the number of milliseconds the render may take
+	 */
+	public RenderControl(long budgetMillis) {
+		deadline = System.nanoTime() + budgetMillis * 1000000L;
+	}
+
+	/**
+	 * Ask the render to stop.  Safe to call from any thread.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * @return true if cancel() has been called
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Called from the rendering thread once each tile is finished.  Does
+	 * nothing here; subclasses may watch progress, or cancel, from it.
+	 * @param tile the finished tile
+	 */
+	public void tileFinished(Tile tile) {
+	}
+
+	/**
+	 * @return true if the render should not start any more work
+	 */
+	public boolean shouldStop() {
+		return cancelled || (deadline != Long.MAX_VALUE && System.nanoTime() - deadline >= 0);
+	}
+}
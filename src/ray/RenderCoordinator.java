@@ -0,0 +1,255 @@
+package ray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Renders a scene on a set of RenderWorkers.  The coordinator parses the
+ * scene once itself, to know its image and tiles, and sends the workers the
+ * XML it was read from, which is far smaller than the parsed scene and
+ * needs nothing from its classes to be sent.  Each worker is kept busy with
+ * a few more tiles than it has threads; whenever it returns one, the next
+ * waiting tile is sent.  If a worker dies or its connection breaks, the
+ * tiles it had not returned go back to the front of the queue for the
+ * others, and if every worker is lost the coordinator renders what is left
+ * itself.
+ */
+public class RenderCoordinator {
+
+	/** Milliseconds to wait for a worker to accept a connection. */
+	public static final int CONNECT_TIMEOUT = 5000;
+
+	/** Milliseconds a worker may go without returning a tile before it is given up on. */
+	public static final int READ_TIMEOUT = 10 * 60 * 1000;
+
+	/** Tiles kept in flight on a worker for each of its threads. */
+	public static final int TILES_PER_THREAD = 2;
+
+	/** The scene file's contents, sent to every worker. */
+	protected final byte[] xml;
+
+	/** How to render. */
+	protected final RenderOptions options;
+
+	/** The workers. */
+	protected final List<InetSocketAddress> workers;
+
+	/** Tiles waiting to be sent to a worker. */
+	protected final LinkedBlockingDeque<Tile> pending = new LinkedBlockingDeque<Tile>();
+
+	/** Tiles not yet returned. */
+	protected final AtomicInteger remaining = new AtomicInteger();
+
+	/** Rays traced by the workers. */
+	protected final AtomicLong samples = new AtomicLong();
+
+	/** For each tile index, set once its pixels are in the image. */
+	protected boolean[] finished;
+
+	/**
+	 * Create a coordinator for a scene.
+	 * @param xml the XML the scene was parsed from
+	 * @param options how to render; the workers use their own thread counts
+	 * @param workers the addresses of the workers
+	 */
+	public RenderCoordinator(byte[] xml, RenderOptions options, List<InetSocketAddress> workers) {
+
+		this.xml = xml;
+		this.options = options;
+		this.workers = workers;
+	}
+
+	/**
+	 * Create a coordinator for a scene file.
+	 * @param sceneFile the scene's XML file
+	 * @param options how to render; the workers are options.getWorkers()
+	 */
+	public RenderCoordinator(File sceneFile, RenderOptions options) {
+
+		this(read(sceneFile), options, addresses(options.getWorkers()));
+	}
+
+	/**
+	 * @return the contents of a file
+	 */
+	private static byte[] read(File file) {
+		try {
+			return Files.readAllBytes(file.toPath());
+		}
+		catch (IOException e) {
+			throw new Error("Could not read " + file, e);
+		}
+	}
+
+	/**
+	 * Parse a list of workers.
+	 * @param list comma separated host:port pairs; the port defaults to RenderWorker.DEFAULT_PORT
+	 * @return the addresses
+	 */
+	public static List<InetSocketAddress> addresses(String list) {
+
+		ArrayList<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		for (String worker : list.split(",")) {
+			worker = worker.trim();
+			if (worker.isEmpty()) continue;
+			int colon = worker.lastIndexOf(':');
+			if (colon < 0)
+				addresses.add(new InetSocketAddress(worker, RenderWorker.DEFAULT_PORT));
+			else
+				addresses.add(new InetSocketAddress(worker.substring(0, colon), Integer.parseInt(worker.substring(colon + 1))));
+		}
+		if (addresses.isEmpty())
+			throw new Error("no workers in \"" + list + "\"");
+		return addresses;
+	}
+
+	/**
+	 * Render a scene, which must have been parsed from this coordinator's
+	 * XML, on the workers.
+	 * @param scene the scene
+	 * @return the image and which of its tiles were finished, which is all of them
+	 */
+	public RenderResult render(final Scene scene) {
+
+		final Image image = scene.getImage();
+		long startTime = System.currentTimeMillis();
+		final ArrayList<Tile> tiles = Tile.split(image.getWidth(), image.getHeight(), options.getTileSize(), options.getPixelOrder());
+		finished = new boolean[tiles.size()];
+		pending.clear();
+		pending.addAll(tiles);
+		remaining.set(tiles.size());
+		samples.set(0);
+
+		ExecutorService connections = Executors.newFixedThreadPool(workers.size());
+		try {
+			for (final InetSocketAddress worker : workers) {
+				connections.execute(new Runnable() {
+					public void run() {
+						serve(worker, image);
+					}
+				});
+			}
+			connections.shutdown();
+			connections.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			throw new Error("Interrupted while rendering", e);
+		}
+		finally {
+			connections.shutdownNow();
+		}
+
+		long local = 0;
+		if (remaining.get() > 0) {
+			ArrayList<Tile> left = new ArrayList<Tile>();
+			for (Tile tile : tiles)
+				if (!finished[tile.index]) left.add(tile);
+			System.out.println("All workers lost; rendering the last " + left.size() + " tiles here.");
+			CameraRayGenerator camera = new CameraRayGenerator(scene.camera, image);
+			RayTracer.prepareRoot(scene, options);
+			TileRenderTask task = new TileRenderTask(scene, camera, options, left, 0, left.size());
+			task.setControl(null, finished);
+			ForkJoinPool pool = new ForkJoinPool(options.getThreads());
+			try {
+				pool.invoke(task);
+			}
+			finally {
+				pool.shutdown();
+			}
+			local = task.getSamples();
+		}
+
+		long totalTime = (System.currentTimeMillis() - startTime);
+		System.out.println("Done.  Total rendering time: "
+				+ (totalTime / 1000.0) + " seconds (" + workers.size() + " workers, "
+				+ tiles.size() + " tiles" + RayTracer.samplesReport(samples.get() + local, image) + ")");
+		return new RenderResult(image, tiles, finished, totalTime / 1000.0);
+	}
+
+	/**
+	 * Hand tiles to one worker until there are none left or it is lost.
+	 * @param worker the worker's address
+	 * @param image the image to copy the returned tiles into
+	 */
+	protected void serve(InetSocketAddress worker, Image image) {
+
+		HashMap<Integer, Tile> inFlight = new HashMap<Integer, Tile>();
+		Socket socket = new Socket();
+		try {
+			socket.connect(worker, CONNECT_TIMEOUT);
+			socket.setSoTimeout(READ_TIMEOUT);
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeInt(RenderWorker.MAGIC);
+			out.writeInt(RenderWorker.VERSION);
+			RenderWorker.writeOptions(out, options);
+			out.writeInt(xml.length);
+			out.write(xml);
+			out.flush();
+			if (in.readInt() != RenderWorker.MAGIC)
+				throw new IOException("not a render worker");
+			int window = TILES_PER_THREAD * Math.max(1, in.readInt());
+
+			while (remaining.get() > 0) {
+				while (inFlight.size() < window) {
+					Tile tile = pending.poll();
+					if (tile == null) break;
+					inFlight.put(tile.index, tile);
+					out.writeInt(tile.index);
+				}
+				out.flush();
+				if (inFlight.isEmpty()) {
+					/*	Nothing to send, but another worker may yet be lost and
+						its tiles come back to the queue. */
+					Tile tile = pending.poll(20, TimeUnit.MILLISECONDS);
+					if (tile != null) pending.addFirst(tile);
+					continue;
+				}
+				int index = in.readInt();
+				Tile tile = inFlight.remove(index);
+				if (tile == null)
+					throw new IOException("returned tile " + index + ", which it was not sent");
+				long traced = in.readLong();
+				byte[] pixels = new byte[12 * tile.size()];
+				in.readFully(pixels);
+				RenderWorker.copyPixels(image, tile, pixels);
+				samples.addAndGet(traced);
+				finished[tile.index] = true;
+				remaining.decrementAndGet();
+			}
+			out.writeInt(RenderWorker.DONE);
+			out.flush();
+		}
+		catch (IOException e) {
+			System.out.println("Lost worker " + worker + " (" + e + "); handing its "
+					+ inFlight.size() + " tiles to the others.");
+			for (Tile tile : inFlight.values())
+				pending.addFirst(tile);
+		}
+		catch (InterruptedException e) {
+			for (Tile tile : inFlight.values())
+				pending.addFirst(tile);
+		}
+		finally {
+			RenderWorker.closeQuietly(socket);
+		}
+	}
+}
@@ -0,0 +1,295 @@
+package ray;
+
+import java.io.File;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Settings that control how the RayTracer schedules the work of rendering an
+ * image.  Apart from the number of samples per pixel, and -pixels, which
+ * keeps pixels at lower precision, none of these change what the image
+ * looks like, only how fast it is produced and where it is kept.
+ */
+public class RenderOptions {
+
+	/** Number of worker threads used to render tiles. */
+	protected int threads = Runtime.getRuntime().availableProcessors();
+	public void setThreads(int threads) { this.threads = Math.max(1, threads); }
+	public int getThreads() { return this.threads; }
+
+	/** Width and height (in pixels) of the square tiles handed to workers. */
+	protected int tileSize = 32;
+	public void setTileSize(int tileSize) { this.tileSize = Math.max(1, tileSize); }
+	public int getTileSize() { return this.tileSize; }
+
+	/** Acceleration structure to trace against: "bvh" (the group's own) or "linear". */
+	protected String acceleration = "bvh";
+	public void setAcceleration(String acceleration) {
+		if (!acceleration.equals("bvh") && !acceleration.equals("linear"))
+			throw new Error("acceleration \"" + acceleration + "\" must be bvh or linear");
+		this.acceleration = acceleration;
+	}
+	public String getAcceleration() { return this.acceleration; }
+
+	/** Width and height of the square pixel blocks traced as ray packets; 1 traces single rays. */
+	protected int packetSize = 1;
+	public void setPacketSize(int packetSize) {
+		if (packetSize != 1 && packetSize != 2 && packetSize != 4)
+			throw new Error("packet size " + packetSize + " must be 1, 2 or 4");
+		this.packetSize = packetSize;
+	}
+	public int getPacketSize() { return this.packetSize; }
+
+	/** Whether to render coarse to fine (see RayTracer.renderProgressive). */
+	protected boolean progressive = false;
+	public void setProgressive(boolean progressive) { this.progressive = progressive; }
+	public boolean isProgressive() { return this.progressive; }
+
+	/** Most rays traced through one pixel; 1 traces one ray through each pixel's center. */
+	protected int maxSamples = 1;
+	public void setMaxSamples(int maxSamples) { this.maxSamples = Math.max(1, maxSamples); }
+	public int getMaxSamples() { return this.maxSamples; }
+
+	/** Rays traced through every pixel, and added at a time, when supersampling. */
+	protected int minSamples = 4;
+	public void setMinSamples(int minSamples) { this.minSamples = Math.max(2, minSamples); }
+	public int getMinSamples() { return this.minSamples; }
+
+	/** A supersampled pixel is done once the standard error of its mean color is below this. */
+	protected double sampleThreshold = 0.01;
+	public void setSampleThreshold(double sampleThreshold) { this.sampleThreshold = sampleThreshold; }
+	public double getSampleThreshold() { return this.sampleThreshold; }
+
+	/** Order to visit tiles and the pixels within them in (see PixelOrder). */
+	protected String pixelOrder = PixelOrder.COLUMN;
+	public void setPixelOrder(String pixelOrder) {
+		PixelOrder.check(pixelOrder);
+		this.pixelOrder = pixelOrder;
+	}
+	public String getPixelOrder() { return this.pixelOrder; }
+
+	/** Milliseconds a render may take before it stops starting tiles, or 0 for no limit. */
+	protected long timeLimit = 0;
+	public void setTimeLimit(long timeLimit) { this.timeLimit = Math.max(0, timeLimit); }
+	public long getTimeLimit() { return this.timeLimit; }
+
+	/** Whether to save finished tiles to a checkpoint file as they are rendered (see RenderCheckpoint). */
+	protected boolean checkpoint = false;
+	public void setCheckpoint(boolean checkpoint) { this.checkpoint = checkpoint; }
+	public boolean isCheckpoint() { return this.checkpoint || this.resume; }
+
+	/** Whether to pick up the tiles saved in an existing checkpoint instead of rendering them again. */
+	protected boolean resume = false;
+	public void setResume(boolean resume) { this.resume = resume; }
+	public boolean isResume() { return this.resume; }
+
+	/** Comma separated host:port addresses of RenderWorkers to render on, or null to render here. */
+	protected String workers = null;
+	public void setWorkers(String workers) { this.workers = workers; }
+	public String getWorkers() { return this.workers; }
+
+	/** Number of scenes a batch or a render server works on at once. */
+	protected int jobs = 4;
+	public void setJobs(int jobs) { this.jobs = Math.max(1, jobs); }
+	public int getJobs() { return this.jobs; }
+
+	/** Threads a batch reads scenes and writes images on, apart from the render threads, or 0 to use the render threads. */
+	protected int ioThreads = 0;
+	public void setIoThreads(int ioThreads) { this.ioThreads = Math.max(0, ioThreads); }
+	public int getIoThreads() { return this.ioThreads; }
+
+	/** Threads that encode and write finished images in the background when several scenes are rendered one after another; 0 writes each before starting the next. */
+	protected int encoders = 1;
+	public void setEncoders(int encoders) { this.encoders = Math.max(0, encoders); }
+	public int getEncoders() { return this.encoders; }
+
+	/** Writes finished images in the background, or null to write each as soon as it is rendered. */
+	protected ImageWriter writer = null;
+	public void setWriter(ImageWriter writer) { this.writer = writer; }
+	public ImageWriter getWriter() { return this.writer; }
+
+	/** Rows rendered at a time when an image is streamed to its file (see RayTracer.renderBands), or 0 to render it whole. */
+	protected int bandRows = 0;
+	public void setBandRows(int bandRows) { this.bandRows = Math.max(0, bandRows); }
+	public int getBandRows() { return this.bandRows; }
+
+	/** Whether to keep images in memory mapped files (see MappedImage) rather than on the heap. */
+	protected boolean mapped = false;
+	public void setMapped(boolean mapped) { this.mapped = mapped; }
+	public boolean isMapped() { return this.mapped; }
+
+	/** Directory mapped images keep their files in, or null for java.io.tmpdir; shared by the whole program (see MappedImage.setDirectory). */
+	public void setMappedDirectory(File directory) { MappedImage.setDirectory(directory); }
+	public File getMappedDirectory() { return MappedImage.getDirectory(); }
+
+	/** How images keep their pixels: "float" (Image), "half" (HalfImage) or "rgbe" (RgbeImage). */
+	protected String pixelFormat = "float";
+	public void setPixelFormat(String pixelFormat) {
+		if (!pixelFormat.equals("float") && !pixelFormat.equals("half") && !pixelFormat.equals("rgbe"))
+			throw new Error("pixel format \"" + pixelFormat + "\" must be float, half or rgbe");
+		this.pixelFormat = pixelFormat;
+	}
+	public String getPixelFormat() { return this.pixelFormat; }
+
+	/** What finished images are written as: "png", or linear floats as "pfm" or "raw" (see FloatImageIO). */
+	protected String outputFormat = "png";
+	public void setOutputFormat(String outputFormat) {
+		if (!outputFormat.equals("png") && !outputFormat.equals("pfm") && !outputFormat.equals("raw"))
+			throw new Error("output format \"" + outputFormat + "\" must be png, pfm or raw");
+		this.outputFormat = outputFormat;
+	}
+	public String getOutputFormat() { return this.outputFormat; }
+
+	/**
+	 * @return the class scene files should create their images as, or null
+	 *         for Image itself; mapped takes precedence over the pixel format
+	 */
+	public Class<? extends Image> getImageClass() {
+		if (mapped) return MappedImage.class;
+		if (pixelFormat.equals("half")) return HalfImage.class;
+		if (pixelFormat.equals("rgbe")) return RgbeImage.class;
+		return null;
+	}
+
+	/**
+	 * @return a new image of the class getImageClass names
+	 */
+	public Image createImage(int width, int height) {
+		if (mapped) return new MappedImage(width, height);
+		if (pixelFormat.equals("half")) return new HalfImage(width, height);
+		if (pixelFormat.equals("rgbe")) return new RgbeImage(width, height);
+		return new Image(width, height);
+	}
+
+	/** Whether scene files are read a tag at a time (see StreamingParser) rather than as a whole DOM tree. */
+	protected boolean streamingParser = false;
+	public void setStreamingParser(boolean streamingParser) { this.streamingParser = streamingParser; }
+	public boolean isStreamingParser() { return this.streamingParser; }
+
+	/**
+	 * @return a parser for scene files, as these options ask
+	 */
+	public Parser createParser() {
+		Parser parser = streamingParser ? new StreamingParser() : new Parser();
+		parser.setImageClass(getImageClass());
+		return parser;
+	}
+
+	/** Pool shared by several renders, or null to start a pool of getThreads() workers for each render. */
+	protected ForkJoinPool pool = null;
+	public void setPool(ForkJoinPool pool) { this.pool = pool; }
+	public ForkJoinPool getPool() { return this.pool; }
+
+	/**
+	 * Default constructor.  Uses one thread per available processor.
+	 */
+	public RenderOptions() { }
+
+	/**
+	 * Consume the option starting at args[k], if it is one we recognize.
+	 * @param args the command line arguments
+	 * @param k the index of the argument to look at
+	 * @return the number of arguments consumed, or 0 if args[k] is not an option
+	 */
+	public int parse(String[] args, int k) {
+
+		if (args[k].equals("-threads") && k + 1 < args.length) {
+			setThreads(Integer.parseInt(args[k + 1]));
+			return 2;
+		}
+		else if (args[k].equals("-tile") && k + 1 < args.length) {
+			setTileSize(Integer.parseInt(args[k + 1]));
+			return 2;
+		}
+		else if (args[k].equals("-packets") && k + 1 < args.length) {
+			setPacketSize(Integer.parseInt(args[k + 1]));
+			return 2;
+		}
+		else if (args[k].equals("-samples") && k + 1 < args.length) {
+			setMaxSamples(Integer.parseInt(args[k + 1]));
+			return 2;
+		}
+		else if (args[k].equals("-minSamples") && k + 1 < args.length) {
+			setMinSamples(Integer.parseInt(args[k + 1]));
+			return 2;
+		}
+		else if (args[k].equals("-sampleThreshold") && k + 1 < args.length) {
+			setSampleThreshold(Double.parseDouble(args[k + 1]));
+			return 2;
+		}
+		else if (args[k].equals("-order") && k + 1 < args.length) {
+			setPixelOrder(args[k + 1]);
+			return 2;
+		}
+		else if (args[k].equals("-timeLimit") && k + 1 < args.length) {
+			setTimeLimit(Long.parseLong(args[k + 1]));
+			return 2;
+		}
+		else if (args[k].equals("-progressive")) {
+			setProgressive(true);
+			return 1;
+		}
+		else if (args[k].equals("-jobs") && k + 1 < args.length) {
+			setJobs(Integer.parseInt(args[k + 1]));
+			return 2;
+		}
+		else if (args[k].equals("-ioThreads") && k + 1 < args.length) {
+			setIoThreads(Integer.parseInt(args[k + 1]));
+			return 2;
+		}
+		else if (args[k].equals("-encoders") && k + 1 < args.length) {
+			setEncoders(Integer.parseInt(args[k + 1]));
+			return 2;
+		}
+		else if (args[k].equals("-bands") && k + 1 < args.length) {
+			setBandRows(Integer.parseInt(args[k + 1]));
+			return 2;
+		}
+		else if (args[k].equals("-mapped")) {
+			setMapped(true);
+			return 1;
+		}
+		else if (args[k].equals("-mapdir") && k + 1 < args.length) {
+			setMappedDirectory(new File(args[k + 1]));
+			setMapped(true);
+			return 2;
+		}
+		else if (args[k].equals("-pixels") && k + 1 < args.length) {
+			setPixelFormat(args[k + 1]);
+			return 2;
+		}
+		else if (args[k].equals("-stream")) {
+			setStreamingParser(true);
+			return 1;
+		}
+		else if (args[k].equals("-format") && k + 1 < args.length) {
+			setOutputFormat(args[k + 1]);
+			return 2;
+		}
+		else if (args[k].equals("-workers") && k + 1 < args.length) {
+			setWorkers(args[k + 1]);
+			return 2;
+		}
+		else if (args[k].equals("-checkpoint")) {
+			setCheckpoint(true);
+			return 1;
+		}
+		else if (args[k].equals("-resume")) {
+			setResume(true);
+			return 1;
+		}
+		else if (args[k].equals("-accel") && k + 1 < args.length) {
+			setAcceleration(args[k + 1]);
+			return 2;
+		}
+		return 0;
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "render options: " + threads + " threads " + tileSize + "px tiles " + pixelOrder + " order " + packetSize + "px packets " + maxSamples + " samples " + acceleration + (progressive ? " progressive" : "")
+				+ (timeLimit > 0 ? " " + timeLimit + "ms limit" : "") + (resume ? " resume" : checkpoint ? " checkpoint" : "")
+				+ (workers != null ? " workers " + workers : "") + (bandRows > 0 ? " " + bandRows + "-row bands" : "") + (mapped ? " mapped" : "") + (!pixelFormat.equals("float") ? " " + pixelFormat + " pixels" : "") + (!outputFormat.equals("png") ? " " + outputFormat + " output" : "") + (streamingParser ? " streamed xml" : "") + " end";
+	}
+}
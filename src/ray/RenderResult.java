@@ -0,0 +1,196 @@
+package ray;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.FloatBuffer;
+import java.util.List;
+
+/**
+ * What a render that may have been stopped early produced: the image, and
+ * which of its tiles (and so which pixels) were finished.  Pixels outside
+ * the finished tiles keep whatever the image held before.  Coverage is kept
+ * per tile, never per pixel, so it costs the same however large the image.
+ */
+public class RenderResult {
+
+	/** The image rendered into. */
+	protected final Image image;
+
+	/** The tiles the image was split into. */
+	protected final List<Tile> tiles;
+
+	/** For each tile index, whether that tile was finished. */
+	protected final boolean[] finished;
+
+	/** Number of finished tiles. */
+	protected final int tilesFinished;
+
+	/** Number of pixels in finished tiles. */
+	protected final long pixelsFinished;
+
+	/** Wall clock time of the render, in seconds. */
+	protected final double seconds;
+
+	/** The width and height of the tiles, which lie on a grid of this spacing. */
+	protected final int tileWidth, tileHeight;
+
+	/** Tile index of each cell of the grid, a row of cells at a time from the bottom. */
+	protected final int[] grid;
+
+	/** Number of columns of the grid. */
+	protected final int columns;
+
+	/**
+	 * Summarize a render.
+	 * @param image the image rendered into
+	 * @param tiles the tiles it was split into
+	 * @param finished for each tile index, whether the tile was finished
+	 * @param seconds how long the render took
+	 */
+	public RenderResult(Image image, List<Tile> tiles, boolean[] finished, double seconds) {
+
+		this.image = image;
+		this.tiles = tiles;
+		this.finished = finished;
+		this.seconds = seconds;
+		int count = 0;
+		long pixels = 0;
+		for (Tile tile : tiles) {
+			if (finished[tile.index]) {
+				count++;
+				pixels += tile.size();
+			}
+		}
+		tilesFinished = count;
+		pixelsFinished = pixels;
+
+		int w = 1, h = 1;
+		for (Tile tile : tiles) {
+			w = Math.max(w, tile.x1 - tile.x0);
+			h = Math.max(h, tile.y1 - tile.y0);
+		}
+		tileWidth = w;
+		tileHeight = h;
+		columns = (image.getWidth() + w - 1) / w;
+		grid = new int[columns * ((image.getHeight() + h - 1) / h)];
+		for (Tile tile : tiles)
+			grid[tile.y0 / h * columns + tile.x0 / w] = tile.index;
+	}
+
+	/**
+	 * @return the image, complete or not
+	 */
+	public Image getImage() {
+		return image;
+	}
+
+	/**
+	 * @return true if every tile was finished
+	 */
+	public boolean isComplete() {
+		return tilesFinished == tiles.size();
+	}
+
+	/**
+	 * @return the tiles the image was split into
+	 */
+	public List<Tile> getTiles() {
+		return tiles;
+	}
+
+	/**
+	 * @param tile a tile of this render
+	 * @return true if the tile was finished
+	 */
+	public boolean isFinished(Tile tile) {
+		return finished[tile.index];
+	}
+
+	/**
+	 * @return the number of finished tiles
+	 */
+	public int getTilesFinished() {
+		return tilesFinished;
+	}
+
+	/**
+	 * @return the fraction of the image's pixels that were rendered
+	 */
+	public double getCoverage() {
+		return (double) pixelsFinished / ((long) image.getWidth() * image.getHeight());
+	}
+
+	/**
+	 * @return how long the render took, in seconds
+	 */
+	public double getSeconds() {
+		return seconds;
+	}
+
+	/**
+	 * @param x the column
+	 * @param y the row
+	 * @return true if pixel (x, y) was rendered
+	 */
+	public boolean isCovered(int x, int y) {
+		return finished[grid[y / tileHeight * columns + x / tileWidth]];
+	}
+
+	/**
+	 * Write the coverage as a PNG: white where pixels were rendered, black
+	 * elsewhere.  It is drawn a row at a time, so no image of the whole mask
+	 * is made.
+	 * @param fileName the output filename
+	 */
+	public void writeCoverage(String fileName) {
+
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName));
+			try {
+				writeCoverage(out);
+			}
+			finally {
+				out.close();
+			}
+		}
+		catch (Exception e) {
+			System.out.println("Error occured while attempting to write file: "+fileName);
+			System.err.println(e);
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Write the coverage to a stream as a PNG, as writeCoverage(String) does
+	 * to a file.
+	 * @param out the stream, which is left open
+	 * @throws IOException if the stream cannot be written
+	 */
+	public void writeCoverage(OutputStream out) throws IOException {
+
+		int width = image.getWidth(), height = image.getHeight();
+		PngEncoder png = new PngEncoder(out, width, height);
+		Image band = new Image(width, 1);
+		float[] row = new float[3 * width];
+		for (int y = height - 1; y >= 0; y--) {
+			for (int x0 = 0; x0 < width; x0 += tileWidth) {
+				float value = isCovered(x0, y) ? 1 : 0;
+				for (int k = 3 * x0; k < 3 * Math.min(width, x0 + tileWidth); k++)
+					row[k] = value;
+			}
+			band.setRow(0, 0, width, FloatBuffer.wrap(row));
+			png.writeRows(band);
+		}
+		png.finish();
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "render result " + tilesFinished + "/" + tiles.size() + " tiles "
+				+ String.format("%.1f", 100 * getCoverage()) + "% " + seconds + "s end";
+	}
+}
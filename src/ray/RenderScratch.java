@@ -0,0 +1,37 @@
+package ray;
+
+import ray.math.Color;
+import ray.math.Ray;
+import ray.math.Vector3;
+import ray.surface.HitRecord;
+import ray.surface.RayPacket;
+
+/**
+ * Per-thread working storage for rendering.  Every render worker owns one of
+ * these so that no mutable state is shared between threads while tracing.
+ */
+public class RenderScratch {
+
+	/** The direction of the primary ray being traced. */
+	public final Vector3 direction = new Vector3();
+
+	/** The ray being traced. */
+	public final Ray ray = new Ray();
+
+	/** The closest hit of the ray being traced. */
+	public final HitRecord hit = new HitRecord();
+
+	/** The rays being traced together in packet mode. */
+	public final RayPacket packet = new RayPacket();
+
+	/** The color being accumulated for the current pixel. */
+	public final Color rgb = new Color();
+
+	/** The color seen by rays that miss everything, when supersampling. */
+	public final Color miss = new Color();
+
+	/**
+	 * Default constructor.
+	 */
+	public RenderScratch() { }
+}
@@ -0,0 +1,413 @@
+package ray;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import ray.math.Point3;
+import ray.math.Vector3;
+
+/**
+ * A long running render server, so that many small renders do not each pay
+ * for starting a JVM, warming up the JIT, parsing the scene and building its
+ * hierarchy.  Scenes are POSTed to /render, either as the body of the
+ * request or as file=path naming a file the server can read, and the
+ * rendered image comes back as a PNG.  Parsed scenes, with their hierarchies
+ * built, are kept in a cache keyed by the SHA-256 of their XML, so sending
+ * the same scene again costs only the ray tracing.
+ *
+ * Query parameters override the scene's camera (viewPoint, viewDir, viewUp
+ * and projNormal as "x,y,z"; projDistance, viewWidth and viewHeight), set
+ * the image size (width, height), or set render options by their command
+ * line names without the dash (samples, order, tile, timeLimit, ...).
+ * format=pfm or format=raw returns linear floats instead of a PNG (see
+ * FloatImageIO), with the size in X-Image-Width and X-Image-Height.
+ * Requests for more than MAX_PIXELS pixels or MAX_THREADS threads, or with
+ * values that cannot be parsed, are refused with 400.  For example
+ *   curl --data-binary @scene.xml -o out.png "localhost:8465/render?viewPoint=0,2,6&samples=4"
+ *
+ * Render options on the server's command line apply to every request,
+ * including -stream for the parser and -pixels, -mapped or -mapdir for
+ * the images rendered into.  The server only listens on the loopback interface.  Run as
+ *   java ray.RenderServer [port] [-jobs n] [render options]
+ */
+public class RenderServer implements HttpHandler {
+
+	/** Port the server listens on unless told otherwise. */
+	public static final int DEFAULT_PORT = 8465;
+
+	/** Number of parsed scenes kept. */
+	public static final int CACHE_SIZE = 16;
+
+	/** Most pixels a request may render, so that one cannot exhaust the server's memory or disk. */
+	public static final long MAX_PIXELS = 1L << 26;
+
+	/** Most threads a request may ask for. */
+	public static final int MAX_THREADS = 256;
+
+	/** Render options that only apply to runs from the command line, so requests may not set them. */
+	protected static final String[] COMMAND_LINE_ONLY = { "jobs", "ioThreads", "encoders", "bands", "workers", "mapdir" };
+
+	/** The server. */
+	protected final HttpServer server;
+
+	/** Runs the requests. */
+	protected final ExecutorService jobs;
+
+	/** Render options every request starts from. */
+	protected final String[] defaults;
+
+	/** Parsed scenes by hash, least recently used first; guarded by itself. */
+	protected final LinkedHashMap<String, Scene> cache = new LinkedHashMap<String, Scene>(CACHE_SIZE, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		protected boolean removeEldestEntry(Map.Entry<String, Scene> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	/** Number of requests whose scene was found in the cache, and not. */
+	protected int hits, misses;
+
+	/**
+	 * Create a server.  Call start to begin serving.
+	 * @param port the port, or 0 for any free port
+	 * @param jobs the number of renders to run at once
+	 * @param defaults render options, as on the command line, that every request starts from
+	 */
+	public RenderServer(int port, int jobs, String[] defaults) {
+
+		this.defaults = defaults;
+		this.jobs = Executors.newFixedThreadPool(Math.max(1, jobs));
+		try {
+			server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		}
+		catch (IOException e) {
+			throw new Error("Could not listen on port " + port, e);
+		}
+		server.createContext("/render", this);
+		server.setExecutor(this.jobs);
+	}
+
+	/**
+	 * Start serving requests.
+	 */
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Stop serving requests, waiting for those already running.
+	 */
+	public void stop() {
+		server.stop(0);
+		jobs.shutdown();
+	}
+
+	/**
+	 * @return the port the server listens on
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * @return a description of how well the cache has worked
+	 */
+	public synchronized String cacheReport() {
+		return cache.size() + " scenes cached, " + hits + " hits, " + misses + " misses";
+	}
+
+	/**
+	 * Serve one request.
+	 * @see HttpHandler#handle(HttpExchange)
+	 */
+	public void handle(HttpExchange exchange) throws IOException {
+
+		// Closed however the request ends, since a MappedImage's file is as big as the image.
+		Image image = null;
+		try {
+			if (!exchange.getRequestMethod().equals("POST")) {
+				reply(exchange, 405, "POST a scene to /render\n");
+				return;
+			}
+			long startTime = System.currentTimeMillis();
+			HashMap<String, String> params = query(exchange.getRequestURI().getRawQuery());
+			byte[] xml = readAll(exchange.getRequestBody());
+			String file = params.remove("file");
+			if (xml.length == 0 && file != null)
+				xml = Files.readAllBytes(new File(file).toPath());
+			if (xml.length == 0) {
+				reply(exchange, 400, "no scene: send it as the body, or give file=path\n");
+				return;
+			}
+
+			Scene view;
+			RenderOptions options;
+			String hash;
+			boolean hit;
+			try {
+				options = options(params);
+				hash = hash(xml) + "/" + options.getAcceleration();
+				Scene scene;
+				synchronized (cache) {
+					scene = cache.get(hash);
+				}
+				hit = (scene != null);
+				if (scene == null)
+					scene = load(xml, hash, options);
+				Camera camera = new Camera(scene.getCamera());
+				int width = intParam(params, "width", scene.getImage().getWidth());
+				int height = intParam(params, "height", scene.getImage().getHeight());
+				if ((long) width * height > MAX_PIXELS)
+					throw new Error("a " + width + " x " + height + " image is more than " + MAX_PIXELS + " pixels");
+				setCamera(camera, params);
+				if (!params.isEmpty())
+					throw new Error("unknown parameters " + params.keySet());
+				image = options.createImage(width, height);
+				view = scene.share(camera, image);
+			}
+			catch (Error e) {
+				reply(exchange, 400, e.getMessage() + "\n");
+				return;
+			}
+			synchronized (this) {
+				if (hit) hits++; else misses++;
+			}
+
+			long prepared = System.currentTimeMillis();
+			RenderControl control = options.getTimeLimit() > 0 ? new RenderControl(options.getTimeLimit()) : null;
+			RenderResult result = RayTracer.renderImage(view, options, control);
+			String format = options.getOutputFormat();
+			exchange.getResponseHeaders().set("Content-Type", format.equals("png") ? "image/png"
+					: format.equals("pfm") ? "image/x-portable-floatmap" : "application/octet-stream");
+			exchange.getResponseHeaders().set("X-Image-Width", String.valueOf(view.getImage().getWidth()));
+			exchange.getResponseHeaders().set("X-Image-Height", String.valueOf(view.getImage().getHeight()));
+			exchange.getResponseHeaders().set("X-Scene-Hash", hash);
+			exchange.getResponseHeaders().set("X-Scene-Cache", hit ? "hit" : "miss");
+			exchange.getResponseHeaders().set("X-Render-Coverage", String.valueOf(result.getCoverage()));
+			exchange.sendResponseHeaders(200, 0);
+			OutputStream out = exchange.getResponseBody();
+			if (format.equals("pfm"))
+				FloatImageIO.writePfm(view.getImage(), out);
+			else if (format.equals("raw"))
+				FloatImageIO.writeRaw(view.getImage(), out);
+			else
+				view.getImage().write(out);
+			out.close();
+			System.out.println("Rendered " + hash + " (" + (hit ? "cached" : "parsed") + ") in "
+					+ (System.currentTimeMillis() - startTime) + " ms, "
+					+ (prepared - startTime) + " ms before tracing");
+		}
+		catch (Throwable e) {
+			System.out.println("Error while serving a render: " + e);
+			e.printStackTrace();
+			if (exchange.getResponseCode() < 0)
+				reply(exchange, 500, "could not render: " + e + "\n");
+		}
+		finally {
+			MappedImage.close(image);
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Parse a scene, build its hierarchy, and add it to the cache.
+	 */
+	private Scene load(byte[] xml, String hash, RenderOptions options) {
+
+		Parser parser = options.createParser();
+		// Each request renders into an image of its own, so the scene's only gives the default size.
+		parser.setImageClass(StreamedImage.class);
+		Scene scene = (Scene) parser.parse(new ByteArrayInputStream(xml), Scene.class);
+		if (scene == null || scene.getCamera() == null || scene.getImage() == null)
+			throw new Error("could not parse the scene, or it has no camera or image");
+		RayTracer.prepareRoot(scene, options);
+		scene.getGroup().getBVH();
+		synchronized (cache) {
+			Scene other = cache.get(hash);
+			if (other != null)
+				return other;
+			cache.put(hash, scene);
+		}
+		return scene;
+	}
+
+	/**
+	 * Build the render options for a request, removing the parameters used.
+	 * A value that cannot be parsed, or more than MAX_THREADS threads, is an Error.
+	 */
+	private RenderOptions options(HashMap<String, String> params) {
+
+		for (String name : COMMAND_LINE_ONLY)
+			if (params.containsKey(name))
+				throw new Error(name + " cannot be set for one request");
+		RenderOptions options = new RenderOptions();
+		int k = 0;
+		while (k < defaults.length)
+			k += Math.max(1, options.parse(defaults, k));
+		for (String name : new ArrayList<String>(params.keySet())) {
+			String[] arg = { "-" + name, params.get(name) };
+			try {
+				if (options.parse(arg, 0) == 2)
+					params.remove(name);
+			}
+			catch (RuntimeException e) {
+				// A malformed value, such as samples=abc, is the request's fault.
+				throw new Error("bad value \"" + params.get(name) + "\" for " + name + ": " + e);
+			}
+			if (name.equals("threads") && options.getThreads() > MAX_THREADS)
+				throw new Error("threads may be at most " + MAX_THREADS);
+		}
+		return options;
+	}
+
+	/**
+	 * Apply the camera parameters of a request, removing them.
+	 */
+	private static void setCamera(Camera camera, HashMap<String, String> params) {
+
+		String value;
+		if ((value = params.remove("viewPoint")) != null) camera.setViewPoint(new Point3(triple(value)));
+		if ((value = params.remove("viewDir")) != null) camera.setViewDir(new Vector3(triple(value)));
+		if ((value = params.remove("viewUp")) != null) camera.setViewUp(new Vector3(triple(value)));
+		if ((value = params.remove("projNormal")) != null) camera.setProjNormal(new Vector3(triple(value)));
+		if ((value = params.remove("projDistance")) != null) camera.setprojDistance(number(value));
+		if ((value = params.remove("viewWidth")) != null) camera.setViewWidth(number(value));
+		if ((value = params.remove("viewHeight")) != null) camera.setViewHeight(number(value));
+	}
+
+	/**
+	 * @return three numbers separated by commas or spaces, as a Point3
+	 */
+	private static Point3 triple(String value) {
+
+		StringTokenizer t = new StringTokenizer(value, ", ");
+		if (t.countTokens() != 3)
+			throw new Error("\"" + value + "\" is not three numbers");
+		return new Point3(number(t.nextToken()), number(t.nextToken()), number(t.nextToken()));
+	}
+
+	/**
+	 * @return value as a number
+	 */
+	private static double number(String value) {
+		try {
+			return Double.parseDouble(value);
+		}
+		catch (NumberFormatException e) {
+			throw new Error("\"" + value + "\" is not a number");
+		}
+	}
+
+	/**
+	 * Remove an integer parameter, returning its value or a default.
+	 */
+	private static int intParam(HashMap<String, String> params, String name, int otherwise) {
+
+		String value = params.remove(name);
+		if (value == null) return otherwise;
+		int n = (int) number(value);
+		if (n < 1)
+			throw new Error(name + " must be positive");
+		return n;
+	}
+
+	/**
+	 * Split a URL query into its parameters.
+	 */
+	private static HashMap<String, String> query(String query) throws IOException {
+
+		HashMap<String, String> params = new HashMap<String, String>();
+		if (query == null) return params;
+		for (String pair : query.split("&")) {
+			if (pair.isEmpty()) continue;
+			int equals = pair.indexOf('=');
+			String name = equals < 0 ? pair : pair.substring(0, equals);
+			String value = equals < 0 ? "" : pair.substring(equals + 1);
+			params.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+		}
+		return params;
+	}
+
+	/**
+	 * @return the SHA-256 of some bytes, in hexadecimal
+	 */
+	public static String hash(byte[] bytes) {
+
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest)
+				hex.append(String.format("%02x", b & 0xff));
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new Error("SHA-256 is not available", e);
+		}
+	}
+
+	/**
+	 * @return everything left in a stream
+	 */
+	private static byte[] readAll(InputStream in) throws IOException {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		for (int n = in.read(buffer); n > 0; n = in.read(buffer))
+			bytes.write(buffer, 0, n);
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Send a short text reply.
+	 */
+	private static void reply(HttpExchange exchange, int status, String message) throws IOException {
+
+		byte[] body = message.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		exchange.getResponseBody().write(body);
+	}
+
+	public static void main(String[] args) {
+
+		int port = DEFAULT_PORT;
+		List<String> defaults = new ArrayList<String>();
+		RenderOptions check = new RenderOptions();
+		for (int k = 0; k < args.length; k++) {
+			int consumed = check.parse(args, k);
+			if (consumed > 0) {
+				for (int j = 0; j < consumed; j++)
+					defaults.add(args[k + j]);
+				k += consumed - 1;
+			}
+			else {
+				port = Integer.parseInt(args[k]);
+			}
+		}
+		RenderServer server = new RenderServer(port, check.getJobs(), defaults.toArray(new String[defaults.size()]));
+		server.start();
+		System.out.println("Render server listening on localhost:" + server.getPort() + " (" + check + ")");
+	}
+}
@@ -0,0 +1,327 @@
+package ray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A render node.  The worker listens on a TCP port; a RenderCoordinator
+ * connects to it, sends a scene (as the XML it was read from) and the render
+ * options, then sends tile indices, and the worker renders each tile and
+ * sends its pixels back.  Tiles are rendered on a pool of threads, so
+ * several can be in flight at once.  Each connection is one job, and the
+ * worker keeps serving jobs until it is closed.  Run as
+ *   java ray.RenderWorker [port] [-bind address] [-threads n]
+ *
+ * Workers do not authenticate coordinators, and build whatever objects a
+ * scene names, so by default they only listen on the loopback interface;
+ * give -bind an address (0.0.0.0 for every interface) on a trusted network
+ * to serve other hosts.  Scenes larger than MAX_SCENE_BYTES are refused.
+ *
+ * The conversation on a connection is, with everything in network order:
+ *   coordinator: MAGIC, VERSION, the options (see writeOptions), the XML
+ *                length and bytes
+ *   worker:      MAGIC, its thread count
+ *   coordinator: tile indices, then DONE
+ *   worker:      for each tile, in any order, its index, the rays traced,
+ *                and its pixels as floats, one row of the tile after another
+ */
+public class RenderWorker implements Runnable {
+
+	/** Starts every job and every worker's reply to it. */
+	public static final int MAGIC = 0x52415931;
+
+	/** Version of the conversation above. */
+	public static final int VERSION = 2;
+
+	/** Sent in place of a tile index when there are no more tiles. */
+	public static final int DONE = -1;
+
+	/** Port the worker listens on unless told otherwise. */
+	public static final int DEFAULT_PORT = 4465;
+
+	/** Largest scene, in bytes of XML, a worker will accept. */
+	public static final int MAX_SCENE_BYTES = 1 << 28;
+
+	/** Starts the name of every thread a worker renders tiles on. */
+	public static final String THREAD_NAME = "render worker";
+
+	/** Accepts connections from coordinators. */
+	protected final ServerSocket server;
+
+	/** Number of tiles rendered at once for each job. */
+	protected final int threads;
+
+	/**
+	 * Create a worker listening on a port of the loopback interface.
+	 * @param port the port, or 0 for any free port
+	 * @param threads the number of tiles to render at once
+	 */
+	public RenderWorker(int port, int threads) {
+
+		this(InetAddress.getLoopbackAddress(), port, threads);
+	}
+
+	/**
+	 * Create a worker listening on a port.
+	 * @param bind the address to listen on, or null for every interface
+	 * @param port the port, or 0 for any free port
+	 * @param threads the number of tiles to render at once
+	 */
+	public RenderWorker(InetAddress bind, int port, int threads) {
+
+		this.threads = Math.max(1, threads);
+		try {
+			server = new ServerSocket(port, 0, bind);
+		}
+		catch (IOException e) {
+			throw new Error("Could not listen on port " + port, e);
+		}
+	}
+
+	/**
+	 * @return the port the worker listens on
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * @return the address a coordinator on this host can reach the worker at
+	 */
+	public InetSocketAddress getAddress() {
+		InetAddress bound = server.getInetAddress();
+		return new InetSocketAddress(bound.isAnyLocalAddress() ? InetAddress.getLoopbackAddress() : bound, getPort());
+	}
+
+	/**
+	 * Serve jobs, each on its own thread, until the worker is closed.
+	 */
+	public void run() {
+
+		while (!server.isClosed()) {
+			final Socket socket;
+			try {
+				socket = server.accept();
+			}
+			catch (IOException e) {
+				if (!server.isClosed())
+					System.out.println("Worker stopped accepting jobs: " + e);
+				return;
+			}
+			Thread job = new Thread(new Runnable() {
+				public void run() {
+					try {
+						serve(socket);
+					}
+					catch (IOException e) {
+						System.out.println("Worker lost its coordinator: " + e);
+					}
+					finally {
+						closeQuietly(socket);
+					}
+				}
+			}, "render job " + socket.getRemoteSocketAddress());
+			job.setDaemon(true);
+			job.start();
+		}
+	}
+
+	/**
+	 * Stop accepting jobs.  Jobs already running finish.
+	 */
+	public void close() {
+		closeQuietly(server);
+	}
+
+	/**
+	 * Run one job.
+	 * @param socket the connection to the coordinator
+	 */
+	protected void serve(final Socket socket) throws IOException {
+
+		socket.setTcpNoDelay(true);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		if (in.readInt() != MAGIC || in.readInt() != VERSION)
+			throw new IOException("not a render job, or from a different version");
+		final RenderOptions options = readOptions(in);
+		int length = in.readInt();
+		if (length < 0 || length > MAX_SCENE_BYTES)
+			throw new IOException("a scene of " + length + " bytes is not accepted");
+		byte[] xml = new byte[length];
+		in.readFully(xml);
+
+		final Scene scene = (Scene) options.createParser().parse(new ByteArrayInputStream(xml), Scene.class);
+		if (scene == null)
+			throw new IOException("could not parse the scene");
+		final Image image = scene.getImage();
+		final CameraRayGenerator camera = new CameraRayGenerator(scene.camera, image);
+		RayTracer.prepareRoot(scene, options);
+		final ArrayList<Tile> tiles = Tile.split(image.getWidth(), image.getHeight(), options.getTileSize(), options.getPixelOrder());
+		out.writeInt(MAGIC);
+		out.writeInt(threads);
+		out.flush();
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			int count = 0;
+			public synchronized Thread newThread(Runnable r) {
+				return new Thread(r, THREAD_NAME + " " + (++count));
+			}
+		});
+		try {
+			for (int index = in.readInt(); index != DONE; index = in.readInt()) {
+				if (index < 0 || index >= tiles.size())
+					throw new IOException("no tile " + index);
+				final Tile tile = tiles.get(index);
+				pool.execute(new Runnable() {
+					public void run() {
+						try {
+							TileRenderTask task = new TileRenderTask(scene, camera, options, tiles, tile.index, tile.index + 1);
+							task.invoke();
+							byte[] pixels = pixels(image, tile);
+							synchronized (out) {
+								out.writeInt(tile.index);
+								out.writeLong(task.getSamples());
+								out.write(pixels);
+								out.flush();
+							}
+						}
+						catch (IOException e) {
+							// The coordinator is gone; the loop reading tile indices finds out too.
+						}
+						catch (Throwable e) {
+							/*	The tile will never be sent, so hang up rather than leave the
+								coordinator waiting for it; it gives the tiles to others. */
+							System.out.println("Worker failed to render tile " + tile.index + ": " + e);
+							closeQuietly(socket);
+						}
+					}
+				});
+			}
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			throw new IOException("interrupted", e);
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * The pixels of a tile, as sent to the coordinator.
+	 */
+	private static byte[] pixels(Image image, Tile tile) {
+
+		ByteBuffer bytes = ByteBuffer.allocate(12 * tile.size());
+		FloatBuffer floats = bytes.asFloatBuffer();
+		for (int y = tile.y0; y < tile.y1; y++)
+			image.getRow(tile.x0, y, tile.x1 - tile.x0, floats);
+		return bytes.array();
+	}
+
+	/**
+	 * Copy the pixels of a tile, as sent by a worker, into an image.
+	 * @param image the image
+	 * @param tile the tile
+	 * @param pixels the pixels, as produced by a worker
+	 */
+	public static void copyPixels(Image image, Tile tile, byte[] pixels) {
+
+		FloatBuffer floats = ByteBuffer.wrap(pixels).asFloatBuffer();
+		for (int y = tile.y0; y < tile.y1; y++)
+			image.setRow(tile.x0, y, tile.x1 - tile.x0, floats);
+	}
+
+	/**
+	 * Send the options that affect which tiles there are and what is in
+	 * them.  The worker chooses its own thread count.
+	 * @param out the connection to a worker
+	 * @param options the options
+	 */
+	public static void writeOptions(DataOutputStream out, RenderOptions options) throws IOException {
+
+		out.writeInt(options.getTileSize());
+		out.writeUTF(options.getPixelOrder());
+		out.writeInt(options.getPacketSize());
+		out.writeInt(options.getMaxSamples());
+		out.writeInt(options.getMinSamples());
+		out.writeDouble(options.getSampleThreshold());
+		out.writeUTF(options.getAcceleration());
+		out.writeBoolean(options.isStreamingParser());
+	}
+
+	/**
+	 * Read the options sent by writeOptions.
+	 * @param in the connection to the coordinator
+	 * @return the options
+	 */
+	public static RenderOptions readOptions(DataInputStream in) throws IOException {
+
+		RenderOptions options = new RenderOptions();
+		options.setTileSize(in.readInt());
+		options.setPixelOrder(in.readUTF());
+		options.setPacketSize(in.readInt());
+		options.setMaxSamples(in.readInt());
+		options.setMinSamples(in.readInt());
+		options.setSampleThreshold(in.readDouble());
+		options.setAcceleration(in.readUTF());
+		options.setStreamingParser(in.readBoolean());
+		return options;
+	}
+
+	/**
+	 * Close a socket, ignoring any error.
+	 */
+	static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		}
+		catch (IOException e) {
+			// Nothing more to do with it.
+		}
+	}
+
+	public static void main(String[] args) {
+
+		RenderOptions options = new RenderOptions();
+		int port = DEFAULT_PORT;
+		InetAddress bind = InetAddress.getLoopbackAddress();
+		for (int k = 0; k < args.length; k++) {
+			int consumed = options.parse(args, k);
+			if (consumed > 0)
+				k += consumed - 1;
+			else if (args[k].equals("-bind") && k + 1 < args.length) {
+				try {
+					bind = InetAddress.getByName(args[++k]);
+				}
+				catch (IOException e) {
+					throw new Error("Unknown address " + args[k], e);
+				}
+			}
+			else
+				port = Integer.parseInt(args[k]);
+		}
+		RenderWorker worker = new RenderWorker(bind, port, options.getThreads());
+		System.out.println("Render worker listening on " + bind.getHostAddress() + ":" + worker.getPort()
+				+ " with " + options.getThreads() + " threads");
+		worker.run();
+	}
+}
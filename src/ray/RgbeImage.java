@@ -0,0 +1,77 @@
+package ray;
+
+/**
+ * An image that keeps each pixel in one int, as Ward's RGBE: an 8 bit
+ * mantissa for each of red, green and blue and an exponent they share, in
+ * a quarter of the memory of an Image.  Each component is kept to 1/256
+ * of the pixel's largest component, so a dim component of a bright,
+ * saturated pixel can come out a few levels off once gamma corrected;
+ * grey and dark pixels keep their precision.  Negative components become
+ * 0.  Use it from a scene file as
+ *   &lt;image type="RgbeImage"&gt;width height&lt;/image&gt;
+ * or with -pixels rgbe.
+ */
+public class RgbeImage extends PackedImage {
+
+	/** For every exponent byte, the value of one step of the mantissas; 0 for black. */
+	private static final float[] SCALES = new float[256];
+	static {
+		for (int e = 1; e < SCALES.length; e++)
+			SCALES[e] = Math.scalb(1f, e - (128 + 8));
+	}
+
+	/** One packed pixel each, top row first: red, green, blue and exponent, high byte first. */
+	protected int[] pixels;
+
+	/**
+	 * Create an empty image.
+	 * @param inW input width
+	 * @param inH input height
+	 */
+	public RgbeImage(int inW, int inH) {
+
+		super(inW, inH);
+	}
+
+	protected void allocate(int count) {
+		pixels = new int[count];
+	}
+
+	protected void store(int pixel, float r, float g, float b) {
+		pixels[pixel] = toRgbe(r, g, b);
+	}
+
+	protected void load(int pixel, float[] rgb, int offset) {
+
+		int rgbe = pixels[pixel];
+		float scale = SCALES[rgbe & 0xff];
+		rgb[offset + 0] = (rgbe >>> 24) * scale;
+		rgb[offset + 1] = ((rgbe >>> 16) & 0xff) * scale;
+		rgb[offset + 2] = ((rgbe >>> 8) & 0xff) * scale;
+	}
+
+	/**
+	 * Pack a color.
+	 * @return the color as RGBE
+	 */
+	public static int toRgbe(float r, float g, float b) {
+
+		// Comparisons with NaN fail, so NaN becomes 0 along with negatives.
+		r = r > 0 ? r : 0;
+		g = g > 0 ? g : 0;
+		b = b > 0 ? b : 0;
+		float max = Math.max(r, Math.max(g, b));
+		if (max < 1e-32f)
+			return 0;
+		if (max > 1e38f)
+			max = 1e38f;
+		// The exponent that puts max in [0.5, 1).
+		int exponent = Math.getExponent(max) + 1;
+		float scale = Math.scalb(256f, -exponent);
+		/*	Round each mantissa, rather than truncating and reading back the
+			middle of the step as Ward does, so that 0 stays exactly 0; the
+			largest may round up to 256, and is held at 255. */
+		return (Math.min(255, (int) (r * scale + 0.5f)) << 24) | (Math.min(255, (int) (g * scale + 0.5f)) << 16)
+				| (Math.min(255, (int) (b * scale + 0.5f)) << 8) | (exponent + 128);
+	}
+}
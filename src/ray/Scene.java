@@ -33,6 +33,11 @@ public class Scene {
 	public void addSurface(Surface toAdd) { group.add(toAdd); }
 	public Group getGroup() { return this.group; }
 	
+	/** The surface rays are traced against: the group itself unless an acceleration structure wraps it. */
+	protected Surface root;
+	public void setRoot(Surface root) { this.root = root; }
+	public Surface getRoot() { return (this.root != null) ? this.root : this.group; }
+	
 	/** The list of materials in the scene . */
 	protected ArrayList<Material> materials = new ArrayList<Material>();
 	public void addMaterial(Material toAdd) { materials.add(toAdd); }
@@ -42,6 +47,25 @@ public class Scene {
 	public Image getImage() { return this.outputImage; }
 	public void setImage(Image outputImage) { this.outputImage = outputImage; }
 	
+	/**
+	 * Make a scene that shares this one's surfaces, lights, materials and
+	 * acceleration structure but has its own camera and image, so that
+	 * several views of it can be rendered at once.
+	 * @param camera the camera of the new scene
+	 * @param image the image of the new scene
+	 * @return the new scene
+	 */
+	public Scene share(Camera camera, Image image) {
+		Scene view = new Scene();
+		view.camera = camera;
+		view.lights = lights;
+		view.group = group;
+		view.root = root;
+		view.materials = materials;
+		view.outputImage = image;
+		return view;
+	}
+	
 	/** Ambient Light Source **/
 	protected static Color ambientColor = new Color(1.0, 1.0, 1.0);
 	public static Color getAmbientIntensity() { return ambientColor; }
@@ -0,0 +1,31 @@
+package ray;
+
+/**
+ * Stands in for an image too large to hold in memory, which is rendered a
+ * band of rows at a time and written out as it goes (see
+ * RayTracer.renderBands).  It has a width and height but no pixels.
+ */
+public class StreamedImage extends Image {
+
+	/**
+	 * Create an image with a size but no pixels.
+	 * @param inW input width
+	 * @param inH input height
+	 */
+	public StreamedImage(int inW, int inH) {
+
+		super(inW, inH);
+	}
+
+	/**
+	 * Change the size of the image.  No pixels are allocated.
+	 * @param newWidth width
+	 * @param newHeight height
+	 */
+	public void setSize(int newWidth, int newHeight) {
+
+		width = newWidth;
+		height = newHeight;
+		data = new float[0];
+	}
+}
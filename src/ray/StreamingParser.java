@@ -0,0 +1,185 @@
+package ray;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * A Parser that reads the XML as a stream of StAX events rather than
+ * building a DOM tree first, so that memory grows with the objects in the
+ * scene and not with the XML.  Every node is turned into an object and
+ * handed to its parent as soon as its end tag is read, by exactly the
+ * rules Parser uses: set and add methods, the type, name and ref
+ * attributes, the special text types and the image class.
+ *
+ * Text is gathered from all of a text node's character data, so comments
+ * inside it are skipped rather than rejected.  The children of a node
+ * with a ref attribute are skipped, as Parser ignores them.
+ */
+public class StreamingParser extends Parser {
+
+	/** Makes the stream readers. */
+	private final XMLInputFactory factory;
+
+	/** Creates a new StreamingParser. */
+	public StreamingParser() {
+
+		factory = XMLInputFactory.newInstance();
+		// Deliver each run of text as one event.
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		// Scenes have no use for DTDs, so do not go looking for them.
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		// Parser's DocumentBuilder ignores namespaces too, and names nodes by their whole tag.
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+	}
+
+	/**
+	 * Parses a given file to generate an object of the given class.
+	 *
+	 * @param filename the name of the XML file to parse
+	 * @param c the class of the object to parse
+	 * @return a new object of the given class, or null if parsing failed
+	 */
+	public Object parse(String filename, Class<?> c) {
+
+		Object result = null;
+		try {
+			InputStream input = new BufferedInputStream(new FileInputStream(filename), 1 << 16);
+			try {
+				result = parseStream(input, c);
+			}
+			finally {
+				input.close();
+			}
+		} catch (Exception e) {
+			System.out.println("Exception occurred while parsing: " + filename);
+			e.printStackTrace();
+		}
+		return result;
+	}
+
+	/**
+	 * Parse the XML read from a stream, as parse(String, Class) does a file.
+	 *
+	 * @param input the XML, which is left open
+	 * @param c the class of the root node
+	 * @return the object parsed, or null if parsing failed
+	 */
+	public Object parse(InputStream input, Class<?> c) {
+
+		Object result = null;
+		try {
+			result = parseStream(input, c);
+		} catch (Exception e) {
+			System.out.println("Exception occurred while parsing a stream");
+			e.printStackTrace();
+		}
+		return result;
+	}
+
+	/**
+	 * Read the root node of a document.
+	 */
+	private Object parseStream(InputStream input, Class<?> c) throws XMLStreamException {
+
+		references = new HashMap<String, Object>();
+		XMLStreamReader reader = factory.createXMLStreamReader(input);
+		try {
+			while (reader.next() != XMLStreamConstants.START_ELEMENT) { }
+			return parseElement(c, reader);
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Parse the element the reader is at the start of, leaving the reader at
+	 * its end.  The element is assumed to be of Class c.
+	 *
+	 * @param c Class type to read from the element
+	 * @param reader the reader, at a START_ELEMENT event
+	 * @return the object read
+	 */
+	private Object parseElement(Class<?> c, XMLStreamReader reader) throws XMLStreamException {
+
+		Object resultingObject = null;
+		String typeAttribute = reader.getAttributeValue(null, "type");
+		String nameAttribute = reader.getAttributeValue(null, "name");
+		String refAttribute = reader.getAttributeValue(null, "ref");
+
+		// If the node specifies a type, check that it is assignable to the current
+		// output type for this node
+		if (typeAttribute != null) {
+			c = resolveType(c, typeAttribute);
+		}
+
+		// Check that our current type is valid
+		if (c.isArray() && !c.getComponentType().isPrimitive()) {
+			throw new Error("Cannot parse arrays of non-primitive types");
+		}
+
+		//If the object is a reference, just return the value referenced
+		if (refAttribute != null) {
+			resultingObject = resolveReference(refAttribute);
+			skipElement(reader);
+		}
+
+		// Check for certain special classes of the current node
+		else if (isText(c)) {
+			String text = null;
+			for (int event = reader.next(); event != XMLStreamConstants.END_ELEMENT; event = reader.next()) {
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					throw new Error("Found a non-text node while trying to parse a " + c.getName());
+				}
+				if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+						|| event == XMLStreamConstants.SPACE) {
+					text = (text == null) ? reader.getText() : text + reader.getText();
+				}
+			}
+			// As in Parser, an empty element gives null.
+			if (text != null) {
+				resultingObject = parseObject(c, text);
+			}
+		}
+
+		// Otherwise the node represents a general object
+		else {
+			resultingObject = instantiate(c);
+			for (int event = reader.next(); event != XMLStreamConstants.END_ELEMENT; event = reader.next()) {
+				if (event != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+				Method foundMethod = findAdder(c, reader.getLocalName());
+				Object childValue = parseElement(childType(foundMethod), reader);
+				addChild(foundMethod, resultingObject, childValue);
+			}
+		}
+
+		//Place the object in the reference list
+		if (nameAttribute != null) {
+			references.put(nameAttribute, resultingObject);
+		}
+
+		return resultingObject;
+	}
+
+	/**
+	 * Move the reader from the start of an element to its end.
+	 */
+	private void skipElement(XMLStreamReader reader) throws XMLStreamException {
+
+		for (int depth = 1; depth > 0; ) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) depth++;
+			else if (event == XMLStreamConstants.END_ELEMENT) depth--;
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package ray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A rectangular block of pixels [x0, x1) x [y0, y1) of an image.  Tiles are the
+ * unit of work handed to render threads.
+ */
+public class Tile {
+
+	/** Index of this tile in the list produced by split. */
+	public final int index;
+
+	/** First column of the tile. */
+	public final int x0;
+
+	/** First row of the tile. */
+	public final int y0;
+
+	/** One past the last column of the tile. */
+	public final int x1;
+
+	/** One past the last row of the tile. */
+	public final int y1;
+
+	/** The order to visit the pixels in, as cells packed by PixelOrder, or null for column by column. */
+	protected final int[] order;
+
+	/**
+	 * The explicit constructor.
+	 * @param index the index of the tile
+	 * @param x0 first column
+	 * @param y0 first row
+	 * @param x1 one past the last column
+	 * @param y1 one past the last row
+	 */
+	public Tile(int index, int x0, int y0, int x1, int y1) {
+
+		this(index, x0, y0, x1, y1, null);
+	}
+
+	/**
+	 * Create a tile whose pixels are visited in a given order.
+	 * @param index the index of the tile
+	 * @param x0 first column
+	 * @param y0 first row
+	 * @param x1 one past the last column
+	 * @param y1 one past the last row
+	 * @param order the pixels as produced by PixelOrder.cells, or null for column by column
+	 */
+	public Tile(int index, int x0, int y0, int x1, int y1, int[] order) {
+
+		this.order = order;
+		this.index = index;
+		this.x0 = x0;
+		this.y0 = y0;
+		this.x1 = x1;
+		this.y1 = y1;
+	}
+
+	/**
+	 * @return the number of pixels in this tile
+	 */
+	public int size() {
+
+		return (x1 - x0) * (y1 - y0);
+	}
+
+	/**
+	 * @param k the position of a pixel in this tile's visiting order, from 0 to size() - 1
+	 * @return the column of the k-th pixel to visit
+	 */
+	public int pixelX(int k) {
+
+		return (order == null) ? x0 + k / (y1 - y0) : x0 + (order[k] >>> 16);
+	}
+
+	/**
+	 * @param k the position of a pixel in this tile's visiting order, from 0 to size() - 1
+	 * @return the row of the k-th pixel to visit
+	 */
+	public int pixelY(int k) {
+
+		return (order == null) ? y0 + k % (y1 - y0) : y0 + (order[k] & 0xffff);
+	}
+
+	/**
+	 * Cover a width x height image with tiles of at most tileSize x tileSize
+	 * pixels, in row order.
+	 * @param width image width
+	 * @param height image height
+	 * @param tileSize the edge length of a full tile
+	 * @return the list of tiles
+	 */
+	public static ArrayList<Tile> split(int width, int height, int tileSize) {
+
+		ArrayList<Tile> tiles = new ArrayList<Tile>();
+		for (int y = 0; y < height; y += tileSize) {
+			for (int x = 0; x < width; x += tileSize) {
+				tiles.add(new Tile(tiles.size(), x, y,
+						Math.min(x + tileSize, width), Math.min(y + tileSize, height)));
+			}
+		}
+		return tiles;
+	}
+
+	/**
+	 * Cover a width x height image with tiles of at most tileSize x tileSize
+	 * pixels.  For "morton" and "hilbert" the tiles, and the pixels within
+	 * each tile, follow that curve; for "row" the pixels of each tile are
+	 * visited in memory order; for "column" this is split(width, height,
+	 * tileSize).
+	 * @param width image width
+	 * @param height image height
+	 * @param tileSize the edge length of a full tile
+	 * @param pixelOrder one of the PixelOrder names
+	 * @return the list of tiles, in the order they should be rendered
+	 */
+	public static ArrayList<Tile> split(int width, int height, int tileSize, String pixelOrder) {
+
+		PixelOrder.check(pixelOrder);
+		if (pixelOrder.equals(PixelOrder.COLUMN))
+			return split(width, height, tileSize);
+		int columns = (width + tileSize - 1) / tileSize;
+		int rows = (height + tileSize - 1) / tileSize;
+		int[] grid;
+		if (pixelOrder.equals(PixelOrder.ROW)) {
+			/*	Tiles stay in the order split gives them; only the pixels within them change. */
+			grid = new int[columns * rows];
+			for (int k = 0; k < grid.length; k++)
+				grid[k] = ((k % columns) << 16) | (k / columns);
+		}
+		else {
+			grid = PixelOrder.cells(pixelOrder, columns, rows);
+		}
+		/*	Edge tiles are smaller, so there are at most four distinct orders. */
+		HashMap<Integer, int[]> orders = new HashMap<Integer, int[]>();
+		ArrayList<Tile> tiles = new ArrayList<Tile>();
+		for (int cell : grid) {
+			int x = (cell >>> 16) * tileSize, y = (cell & 0xffff) * tileSize;
+			int x1 = Math.min(x + tileSize, width), y1 = Math.min(y + tileSize, height);
+			Integer shape = ((x1 - x) << 16) | (y1 - y);
+			int[] order = orders.get(shape);
+			if (order == null) {
+				order = PixelOrder.cells(pixelOrder, x1 - x, y1 - y);
+				orders.put(shape, order);
+			}
+			tiles.add(new Tile(tiles.size(), x, y, x1, y1, order));
+		}
+		return tiles;
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "tile " + index + " [" + x0 + "," + y0 + "]-[" + x1 + "," + y1 + "] end";
+	}
+}
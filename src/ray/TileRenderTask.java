@@ -0,0 +1,141 @@
+package ray;
+
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork/join task that renders a contiguous range of tiles.  Ranges are split
+ * in half until a single tile remains, so idle workers can steal the other
+ * halves from busy ones.
+ */
+public class TileRenderTask extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	/** The scene being rendered. */
+	protected final Scene scene;
+
+	/** The primary rays of the image. */
+	protected final CameraRayGenerator camera;
+
+	/** How to render the tiles. */
+	protected final RenderOptions options;
+
+	/** All of the tiles in the image. */
+	protected final List<Tile> tiles;
+
+	/** First tile in this task's range. */
+	protected final int first;
+
+	/** One past the last tile in this task's range. */
+	protected final int last;
+
+	/** Number of rays traced through pixels by this task, once it is done. */
+	protected long samples;
+
+	/** Tells the task to stop starting tiles, or null. */
+	protected RenderControl control;
+
+	/** For each tile index, set once the tile is rendered, or null. */
+	protected boolean[] finished;
+
+	/** Where to save each finished tile, or null. */
+	protected RenderCheckpoint checkpoint;
+
+	/**
+	 * Create a task that renders tiles [first, last).
+	 * @param scene the scene
+	 * @param camera the primary rays of the image
+	 * @param options how to render the tiles
+	 * @param tiles the tile list
+	 * @param first the first tile index
+	 * @param last one past the last tile index
+	 */
+	public TileRenderTask(Scene scene, CameraRayGenerator camera, RenderOptions options, List<Tile> tiles, int first, int last) {
+
+		this.scene = scene;
+		this.camera = camera;
+		this.options = options;
+		this.tiles = tiles;
+		this.first = first;
+		this.last = last;
+	}
+
+	/**
+	 * Make this task, and the tasks it splits into, obey a control and record
+	 * the tiles they finish.
+	 * @param control tells the task to stop starting tiles, or null
+	 * @param finished set to true at each finished tile's index, or null
+	 */
+	public void setControl(RenderControl control, boolean[] finished) {
+		this.control = control;
+		this.finished = finished;
+	}
+
+	/**
+	 * Make this task, and the tasks it splits into, save each tile they
+	 * finish to a checkpoint.
+	 * @param checkpoint the checkpoint, or null
+	 */
+	public void setCheckpoint(RenderCheckpoint checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+	protected void compute() {
+
+		if (control != null && control.shouldStop()) return;
+		if (last - first > 1) {
+			int mid = (first + last) >>> 1;
+			TileRenderTask low = subtask(first, mid), high = subtask(mid, last);
+			low.setControl(control, finished);
+			high.setControl(control, finished);
+			low.setCheckpoint(checkpoint);
+			high.setCheckpoint(checkpoint);
+			invokeAll(low, high);
+			samples = low.samples + high.samples;
+			return;
+		}
+		if (last > first) {
+			Tile tile = tiles.get(first);
+			/*	Tiles restored from a checkpoint are marked finished before the render starts. */
+			if (finished != null && finished[tile.index]) return;
+			samples = renderTile(tile, new RenderScratch());
+			if (checkpoint != null) checkpoint.append(tile, scene.getImage(), samples);
+			if (finished != null) finished[tile.index] = true;
+			if (control != null) control.tileFinished(tile);
+		}
+	}
+
+	/**
+	 * @return the number of rays traced through pixels, once the task is done
+	 */
+	public long getSamples() {
+		return samples;
+	}
+
+	/**
+	 * Create a task of the same kind for part of this task's range.
+	 * @param first the first tile index
+	 * @param last one past the last tile index
+	 * @return the new task
+	 */
+	protected TileRenderTask subtask(int first, int last) {
+		return new TileRenderTask(scene, camera, options, tiles, first, last);
+	}
+
+	/**
+	 * Render one tile.
+	 * @param tile the tile
+	 * @param scratch working storage for this tile
+	 * @return the number of rays traced through pixels
+	 */
+	protected long renderTile(Tile tile, RenderScratch scratch) {
+		if (options.getMaxSamples() > 1)
+			return RayTracer.renderTileAdaptive(scene, camera, tile, options, scratch);
+		if (options.getPacketSize() > 1)
+			RayTracer.renderTilePackets(scene, camera, tile, options.getPacketSize(), scratch);
+		else
+			RayTracer.renderTile(scene, camera, tile, scratch);
+		return tile.size();
+	}
+}
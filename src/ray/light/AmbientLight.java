@@ -2,8 +2,8 @@ package ray.light;
 
 import ray.math.Color;
 import ray.math.Ray;
-import ray.surface.Group;
 import ray.surface.HitRecord;
+import ray.surface.Surface;
 
 /**
  * This class represents an ambient light which illuminates every surface the same 
@@ -23,7 +23,7 @@ public class AmbientLight extends Light {
 	public AmbientLight() { }
 
 
-	public Color illuminate(HitRecord hit, Ray ray, Group group) {
+	public Color illuminate(HitRecord hit, Ray ray, Surface group) {
 		/*	intensity * hit.surface.material.color
 			element-wise multiply */
 		double r, g, b;
@@ -3,8 +3,8 @@ package ray.light;
 
 import ray.math.Color;
 import ray.math.Ray;
-import ray.surface.Group;
 import ray.surface.HitRecord;
+import ray.surface.Surface;
 
 /**
  * This class represents a constant light source which reveals the surface color.
@@ -18,7 +18,7 @@ public class ConstantLight extends Light {
 	 */
 	public ConstantLight() { }
 
-	public Color illuminate(HitRecord hit, Ray ray, Group group) {
+	public Color illuminate(HitRecord hit, Ray ray, Surface group) {
 		return new Color(hit.surface.getMaterial().getColor());
 	}
 	
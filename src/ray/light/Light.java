@@ -2,8 +2,8 @@ package ray.light;
 
 import ray.math.Color;
 import ray.math.Ray;
-import ray.surface.Group;
 import ray.surface.HitRecord;
+import ray.surface.Surface;
 
 /**
  * This is the abstract parent class which all lights are child of.
@@ -12,5 +12,5 @@ import ray.surface.HitRecord;
  * @author parryrm
  */
 public abstract class Light {
-    public abstract Color illuminate(HitRecord hit, Ray ray, Group group);
+    public abstract Color illuminate(HitRecord hit, Ray ray, Surface group);
 }
\ No newline at end of file
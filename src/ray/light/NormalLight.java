@@ -2,8 +2,8 @@ package ray.light;
 
 import ray.math.Color;
 import ray.math.Ray;
-import ray.surface.Group;
 import ray.surface.HitRecord;
+import ray.surface.Surface;
 
 /**
  * This class represents a "normal" light which reveals the normal vector on the surface.
@@ -17,7 +17,7 @@ public class NormalLight extends Light {
 	 */
 	public NormalLight() { }
 
-	public Color illuminate(HitRecord hit, Ray ray, Group group) {
+	public Color illuminate(HitRecord hit, Ray ray, Surface group) {
 		double r, g, b;
 		r = (hit.normal.x + 1) / 2;
 		g = (hit.normal.y + 1) / 2;
@@ -4,8 +4,8 @@ import ray.math.Color;
 import ray.math.Point3;
 import ray.math.Ray;
 import ray.math.Vector3;
-import ray.surface.Group;
 import ray.surface.HitRecord;
+import ray.surface.Surface;
 
 /**
  * This class represents a basic point light which is infinitely small and emits
@@ -30,10 +30,11 @@ public class PointLight extends Light {
 	public PointLight() { }
 
 	/**	light dot normal / distance^2 */
-	public Color illuminate(HitRecord hit, Ray ray, Group group) {
-		Point3 hitpoint = ray.evaluate(hit.t);
+	public Color illuminate(HitRecord hit, Ray ray, Surface group) {
+		Point3 hitpoint = hit.point;
 		Vector3 light = new Vector3();
 		light.sub(position, hitpoint);
+		double distance = light.length();
 		light.normalize();
 		/*	{vec{ l } cdot vec { n }} over d^2 */
 		double geometric = Math.max(light.dot(hit.normal) / position.distanceSquared(hitpoint), 0);
@@ -41,9 +42,9 @@ public class PointLight extends Light {
 		/*	Shadows: 
 			hitpoint + t * light
 			remember to normalize light if not already
-			if light ray intersects with groups and 1e-4 < t < 1, is shadow. */
-		HitRecord shadow_hit = group.hit(light, hitpoint);
-		if (shadow_hit != null && 1e-4 < shadow_hit.t) 
+			if anything lies on the light ray with 1e-4 < t < distance to the light, 
+			the hitpoint is in shadow. Any blocker will do, so stop at the first. */
+		if (group.occluded(hitpoint, light, 1e-4, distance)) 
 			return new Color(0, 0, 0);
 		else return hit.surface.getMaterial().evaluate(hit, new Color(geometric * intensity.r, geometric * intensity.g, geometric * intensity.b), light, ray);
 	}
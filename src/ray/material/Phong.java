@@ -26,7 +26,7 @@ public class Phong extends Material {
 		Vector3 h = new Vector3(), view = new Vector3();
 		Color L_r = new Color(color);
 		/*	Draw a normalized vector from the hitpoint towards the camera. */
-		view.sub(ray.origin, ray.evaluate(hit.t));
+		view.sub(ray.origin, hit.point);
 		view.normalize();
 		/*	h = (l + v) / || l + v || */
 		h.add(view, light);
@@ -0,0 +1,592 @@
+package ray.surface;
+
+import java.util.List;
+
+import ray.math.Point3;
+import ray.math.Ray;
+import ray.math.Vector3;
+
+/**
+ * A bounding volume hierarchy over the surfaces of a Group.  Bounded surfaces
+ * are organized into a binary tree of bounding boxes built with the surface
+ * area heuristic (SAH); unbounded ones, such as planes, are kept in a side
+ * list that every ray tests.
+ *
+ * Hits are reported exactly as a linear scan of the group would report them:
+ * the closest hit with t > 0, and among equally close hits the one belonging
+ * to the surface that was added to the group first.
+ */
+public class BVH {
+
+	/** Leaves never hold more surfaces than this unless they cannot be split. */
+	public static final int MAX_LEAF_SIZE = 4;
+
+	/** Number of buckets used to evaluate candidate SAH splits along each axis. */
+	protected static final int BINS = 16;
+
+	/** Cost of visiting a node, relative to intersecting one surface. */
+	protected static final double TRAVERSAL_COST = 1.0;
+
+	/** Beyond this depth nodes are split in half without evaluating the SAH. */
+	protected static final int MAX_SAH_DEPTH = 64;
+
+	/** The bounded surfaces, ordered so that each leaf's surfaces are contiguous. */
+	protected final Surface[] surfaces;
+
+	/** For each entry of surfaces, its position in the group. */
+	protected final int[] indices;
+
+	/** The surfaces without bounds, tested by every ray. */
+	protected final Surface[] unbounded;
+
+	/** For each entry of unbounded, its position in the group. */
+	protected final int[] unboundedIndices;
+
+	/** The root of the tree, or null if there are no bounded surfaces. */
+	protected final BVHNode root;
+
+	/** Number of nodes in the tree. */
+	protected int nodeCount;
+
+	/* Scratch storage used only while building. */
+	private double[] primBounds;
+	private double[] centroids;
+	private int[] order;
+
+	/**
+	 * Build a hierarchy over a list of surfaces.
+	 * @param list the surfaces, in the order they were added to the group
+	 */
+	public BVH(List<Surface> list) {
+
+		int n = list.size();
+		BoundingBox box = new BoundingBox();
+		int boundedCount = 0;
+		boolean[] bounded = new boolean[n];
+		double[] allBounds = new double[6 * n];
+		for (int k = 0; k < n; k++) {
+			box.setEmpty();
+			bounded[k] = list.get(k).computeBounds(box) && !box.isEmpty();
+			if (bounded[k]) {
+				allBounds[6 * k + 0] = box.min.x;
+				allBounds[6 * k + 1] = box.min.y;
+				allBounds[6 * k + 2] = box.min.z;
+				allBounds[6 * k + 3] = box.max.x;
+				allBounds[6 * k + 4] = box.max.y;
+				allBounds[6 * k + 5] = box.max.z;
+				boundedCount++;
+			}
+		}
+
+		// Split the surfaces into the bounded ones, which go in the tree, and the rest.
+		Surface[] prims = new Surface[boundedCount];
+		int[] primIndices = new int[boundedCount];
+		unbounded = new Surface[n - boundedCount];
+		unboundedIndices = new int[n - boundedCount];
+		primBounds = new double[6 * boundedCount];
+		centroids = new double[3 * boundedCount];
+		int b = 0, u = 0;
+		for (int k = 0; k < n; k++) {
+			if (bounded[k]) {
+				prims[b] = list.get(k);
+				primIndices[b] = k;
+				System.arraycopy(allBounds, 6 * k, primBounds, 6 * b, 6);
+				for (int axis = 0; axis < 3; axis++)
+					centroids[3 * b + axis] = 0.5 * (allBounds[6 * k + axis] + allBounds[6 * k + 3 + axis]);
+				b++;
+			}
+			else {
+				unbounded[u] = list.get(k);
+				unboundedIndices[u] = k;
+				u++;
+			}
+		}
+
+		// Build the tree over a permutation of the bounded surfaces, then apply it.
+		order = new int[boundedCount];
+		for (int k = 0; k < boundedCount; k++)
+			order[k] = k;
+		root = boundedCount > 0 ? build(0, boundedCount, 0) : null;
+
+		surfaces = new Surface[boundedCount];
+		indices = new int[boundedCount];
+		for (int k = 0; k < boundedCount; k++) {
+			surfaces[k] = prims[order[k]];
+			indices[k] = primIndices[order[k]];
+		}
+		primBounds = null;
+		centroids = null;
+		order = null;
+	}
+
+	/**
+	 * Recursively build the subtree over order[start, end).
+	 * @param start first entry of order
+	 * @param end one past the last entry of order
+	 * @param depth depth of the new node
+	 * @return the new node
+	 */
+	private BVHNode build(int start, int end, int depth) {
+
+		BVHNode node = new BVHNode();
+		nodeCount++;
+		BoundingBox centroidBox = new BoundingBox();
+		for (int k = start; k < end; k++) {
+			int p = order[k];
+			node.box.expand(primBounds[6 * p + 0], primBounds[6 * p + 1], primBounds[6 * p + 2]);
+			node.box.expand(primBounds[6 * p + 3], primBounds[6 * p + 4], primBounds[6 * p + 5]);
+			centroidBox.expand(centroids[3 * p + 0], centroids[3 * p + 1], centroids[3 * p + 2]);
+		}
+
+		int n = end - start;
+		if (n <= MAX_LEAF_SIZE) {
+			return makeLeaf(node, start, n);
+		}
+
+		int mid = -1;
+		if (depth < MAX_SAH_DEPTH) {
+			mid = splitSAH(node.box, centroidBox, start, end);
+		}
+		if (mid < 0) {
+			// All centroids coincide, the SAH prefers a leaf we cannot afford,
+			// or the tree is too deep: split the range in half.
+			mid = (start + end) >>> 1;
+		}
+		else if (mid == start) {
+			return makeLeaf(node, start, n);
+		}
+
+		node.left = build(start, mid, depth + 1);
+		node.right = build(mid, end, depth + 1);
+		return node;
+	}
+
+	/**
+	 * Turn a node into a leaf.
+	 */
+	private BVHNode makeLeaf(BVHNode node, int start, int count) {
+
+		node.start = start;
+		node.count = count;
+		return node;
+	}
+
+	/**
+	 * Find the cheapest binned SAH split of order[start, end) and partition the
+	 * range around it.
+	 * @param nodeBox bounds of the range
+	 * @param centroidBox bounds of the centroids of the range
+	 * @param start first entry of order
+	 * @param end one past the last entry of order
+	 * @return the partition point, start if a leaf is cheaper than any split
+	 *         of a small range, or -1 if no useful split was found
+	 */
+	private int splitSAH(BoundingBox nodeBox, BoundingBox centroidBox, int start, int end) {
+
+		int n = end - start;
+		int[] counts = new int[BINS];
+		BoundingBox[] bins = new BoundingBox[BINS];
+		BoundingBox[] rightBoxes = new BoundingBox[BINS];
+		for (int k = 0; k < BINS; k++) {
+			bins[k] = new BoundingBox();
+			rightBoxes[k] = new BoundingBox();
+		}
+		BoundingBox sweep = new BoundingBox();
+
+		double bestCost = Double.POSITIVE_INFINITY;
+		int bestAxis = -1, bestSplit = -1;
+		double parentArea = nodeBox.area();
+
+		for (int axis = 0; axis < 3; axis++) {
+			double cmin = centroidBox.getMin(axis);
+			double extent = centroidBox.getMax(axis) - cmin;
+			if (!(extent > 0)) continue;
+
+			for (int k = 0; k < BINS; k++) {
+				counts[k] = 0;
+				bins[k].setEmpty();
+			}
+			for (int k = start; k < end; k++) {
+				int p = order[k];
+				int bin = binOf(centroids[3 * p + axis], cmin, extent);
+				counts[bin]++;
+				bins[bin].expand(primBounds[6 * p + 0], primBounds[6 * p + 1], primBounds[6 * p + 2]);
+				bins[bin].expand(primBounds[6 * p + 3], primBounds[6 * p + 4], primBounds[6 * p + 5]);
+			}
+
+			// Sweep from the right to get the bounds of every suffix of bins.
+			sweep.setEmpty();
+			for (int k = BINS - 1; k > 0; k--) {
+				sweep.expand(bins[k]);
+				rightBoxes[k].set(sweep);
+			}
+			// Sweep from the left and evaluate each split between bins k-1 and k.
+			sweep.setEmpty();
+			int leftCount = 0;
+			for (int k = 1; k < BINS; k++) {
+				sweep.expand(bins[k - 1]);
+				leftCount += counts[k - 1];
+				int rightCount = n - leftCount;
+				if (leftCount == 0 || rightCount == 0) continue;
+				double cost = TRAVERSAL_COST
+						+ (sweep.area() * leftCount + rightBoxes[k].area() * rightCount) / parentArea;
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestAxis = axis;
+					bestSplit = k;
+				}
+			}
+		}
+
+		if (bestAxis < 0) return -1;
+		if (bestCost >= n && n <= 4 * MAX_LEAF_SIZE) return start;
+
+		// Partition the range so that surfaces in bins below bestSplit come first.
+		double cmin = centroidBox.getMin(bestAxis);
+		double extent = centroidBox.getMax(bestAxis) - cmin;
+		int i = start, j = end - 1;
+		while (i <= j) {
+			if (binOf(centroids[3 * order[i] + bestAxis], cmin, extent) < bestSplit) {
+				i++;
+			}
+			else {
+				int t = order[i]; order[i] = order[j]; order[j] = t;
+				j--;
+			}
+		}
+		return (i == start || i == end) ? -1 : i;
+	}
+
+	/**
+	 * @return the bin that a centroid coordinate falls into
+	 */
+	private static int binOf(double c, double cmin, double extent) {
+
+		int bin = (int) ((c - cmin) / extent * BINS);
+		return bin < 0 ? 0 : (bin >= BINS ? BINS - 1 : bin);
+	}
+
+	/**
+	 * @return the number of nodes in the tree
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * @return the number of surfaces in the tree (not counting unbounded ones)
+	 */
+	public int getBoundedCount() {
+		return surfaces.length;
+	}
+
+	/**
+	 * Estimate the heap used by the tree, assuming a 64-bit JVM with
+	 * compressed references: each node is a BVHNode (32 bytes), its
+	 * BoundingBox (24 bytes) and two Point3s (40 bytes each), and each
+	 * surface costs a reference and an index.
+	 * @return the estimated size of the tree in bytes
+	 */
+	public long estimateMemoryBytes() {
+		return (long) nodeCount * (32 + 24 + 2 * 40)
+				+ (long) surfaces.length * (4 + 4);
+	}
+
+	/**
+	 * Find the closest intersection of a ray with the surfaces.
+	 * @param direction the ray direction
+	 * @param origin the ray origin
+	 * @return the closest hit with t > 0, or null if there is none
+	 */
+	public HitRecord hit(Vector3 direction, Point3 origin) {
+
+		Traversal state = new Traversal(direction, origin);
+		for (int k = 0; k < unbounded.length; k++) {
+			state.consider(unbounded[k].hit(direction, origin), unboundedIndices[k]);
+		}
+		if (root != null) {
+			visit(root, state);
+		}
+		return state.closest;
+	}
+
+	/**
+	 * Find the closest intersection of a ray with the surfaces in (tMin, tMax)
+	 * without allocating.  Among equally close hits the surface added to the
+	 * group first wins.  Like Surface.intersect, only the distance is found.
+	 * @param ray the ray
+	 * @param tMin the ray starts just after this distance
+	 * @param tMax the ray ends just before this distance
+	 * @param out the record to fill in; only modified if true is returned
+	 * @return true if the ray hits a surface
+	 */
+	public boolean intersect(Ray ray, double tMin, double tMax, HitRecord out) {
+
+		int best = -1;
+		for (int k = 0; k < unbounded.length; k++) {
+			best = consider(unbounded[k], unboundedIndices[k], ray, tMin, tMax, out, best);
+		}
+		if (root != null) {
+			Vector3 d = ray.direction;
+			best = visit(root, ray, 1 / d.x, 1 / d.y, 1 / d.z, tMin, tMax, out, best);
+		}
+		return best >= 0;
+	}
+
+	/**
+	 * Closest-hit traversal of a subtree, nearer child first.
+	 * @return the group index of the closest surface hit so far, or -1
+	 */
+	private int visit(BVHNode node, Ray ray, double invX, double invY, double invZ,
+			double tMin, double tMax, HitRecord out, int best) {
+
+		if (node.isLeaf()) {
+			for (int k = node.start; k < node.start + node.count; k++) {
+				best = consider(surfaces[k], indices[k], ray, tMin, tMax, out, best);
+			}
+			return best;
+		}
+		Point3 o = ray.origin;
+		double limit = (best >= 0) ? out.t : tMax;
+		double tLeft = node.left.box.intersect(o.x, o.y, o.z, invX, invY, invZ, tMin, limit);
+		double tRight = node.right.box.intersect(o.x, o.y, o.z, invX, invY, invZ, tMin, limit);
+		BVHNode near = node.left, far = node.right;
+		double tNear = tLeft;
+		if (tRight < tLeft) {
+			near = node.right;
+			far = node.left;
+			tNear = tRight;
+		}
+		if (tNear == Double.POSITIVE_INFINITY) return best;
+		best = visit(near, ray, invX, invY, invZ, tMin, tMax, out, best);
+		limit = (best >= 0) ? out.t : tMax;
+		if (far.box.intersect(o.x, o.y, o.z, invX, invY, invZ, tMin, limit) != Double.POSITIVE_INFINITY)
+			best = visit(far, ray, invX, invY, invZ, tMin, tMax, out, best);
+		return best;
+	}
+
+	/**
+	 * Find the closest hit of every ray in a packet, exactly as intersect(Ray,
+	 * double, double, HitRecord) finds it for each ray.  Coherent packets
+	 * walk the tree together, rejecting a node for all of their rays with one
+	 * box test where possible; divergent packets, and rays that end up alone
+	 * in a subtree, are traced one at a time.
+	 * @param packet the rays, prepared
+	 * @param tMin the rays start just after this distance
+	 * @param tMax the rays end just before this distance
+	 */
+	public void intersect(RayPacket packet, double tMin, double tMax) {
+
+		int size = packet.size();
+		for (int k = 0; k < unbounded.length; k++) {
+			for (int r = 0; r < size; r++) {
+				packet.best[r] = consider(unbounded[k], unboundedIndices[k],
+						packet.rays[r], tMin, tMax, packet.hits[r], packet.best[r]);
+			}
+		}
+		if (root != null) {
+			if (packet.isCoherent())
+				visit(root, packet, packet.allRays(), tMin, tMax);
+			else
+				visitEach(root, packet, packet.allRays(), tMin, tMax);
+		}
+		for (int r = 0; r < size; r++) {
+			packet.hit[r] = packet.best[r] >= 0;
+		}
+	}
+
+	/**
+	 * Closest-hit traversal of a subtree by the active rays of a packet
+	 * (those whose bits are set), nearer child first.
+	 */
+	private void visit(BVHNode node, RayPacket packet, int active, double tMin, double tMax) {
+
+		if (Integer.bitCount(active) < 2) {
+			visitEach(node, packet, active, tMin, tMax);
+			return;
+		}
+		if (node.isLeaf()) {
+			for (int k = node.start; k < node.start + node.count; k++) {
+				for (int r = 0; r < packet.size; r++) {
+					if ((active & (1 << r)) == 0) continue;
+					packet.best[r] = consider(surfaces[k], indices[k],
+							packet.rays[r], tMin, tMax, packet.hits[r], packet.best[r]);
+				}
+			}
+			return;
+		}
+		int left = enter(node.left.box, packet, active, tMin, tMax);
+		double tLeft = packet.entry;
+		int right = enter(node.right.box, packet, active, tMin, tMax);
+		double tRight = packet.entry;
+		BVHNode near = node.left, far = node.right;
+		int nearRays = left, farRays = right;
+		if (tRight < tLeft) {
+			near = node.right;
+			far = node.left;
+			nearRays = right;
+			farRays = left;
+		}
+		if (nearRays != 0) visit(near, packet, nearRays, tMin, tMax);
+		if (farRays != 0) {
+			/*	Hits found in the near child may put the far one out of reach. */
+			farRays = enter(far.box, packet, farRays, tMin, tMax);
+			if (farRays != 0) visit(far, packet, farRays, tMin, tMax);
+		}
+	}
+
+	/**
+	 * Finish a subtree with single-ray traversal for each of the active rays.
+	 */
+	private void visitEach(BVHNode node, RayPacket packet, int active, double tMin, double tMax) {
+
+		for (int r = 0; r < packet.size; r++) {
+			if ((active & (1 << r)) == 0) continue;
+			packet.best[r] = visit(node, packet.rays[r], packet.invX[r], packet.invY[r], packet.invZ[r],
+					tMin, tMax, packet.hits[r], packet.best[r]);
+		}
+	}
+
+	/**
+	 * Test the active rays of a packet against a box, each ray only as far as
+	 * its closest hit so far.  A single conservative test first rejects the
+	 * box for the whole packet when no ray can reach it; otherwise the rays
+	 * are tested in turn until one enters, and the whole packet goes in with
+	 * it (the surfaces in the box are tested exactly for each ray, so this
+	 * only costs time, never changes a hit).  Sets packet.entry to the entry
+	 * distance of that ray.
+	 * @return the active rays if any of them enters the box, otherwise 0
+	 */
+	private static int enter(BoundingBox box, RayPacket packet, int active, double tMin, double tMax) {
+
+		packet.entry = Double.POSITIVE_INFINITY;
+		double reach = tMin;
+		for (int r = 0; r < packet.size; r++) {
+			if ((active & (1 << r)) == 0) continue;
+			reach = Math.max(reach, packet.best[r] >= 0 ? packet.hits[r].t : tMax);
+		}
+		if (packet.isCoherent() && !packet.mayHit(box, tMin, reach)) return 0;
+		Point3 o = packet.origin;
+		for (int r = 0; r < packet.size; r++) {
+			if ((active & (1 << r)) == 0) continue;
+			double limit = packet.best[r] >= 0 ? packet.hits[r].t : tMax;
+			double t = box.intersect(o.x, o.y, o.z, packet.invX[r], packet.invY[r], packet.invZ[r], tMin, limit);
+			if (t != Double.POSITIVE_INFINITY) {
+				packet.entry = t;
+				return active;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Intersect one surface, accepting it if it is closer than the best hit so
+	 * far, or exactly as close and earlier in the group.
+	 * @return the group index of the closest surface hit so far, or -1
+	 */
+	private static int consider(Surface surface, int index, Ray ray,
+			double tMin, double tMax, HitRecord out, int best) {
+
+		double limit = tMax;
+		if (best >= 0)
+			limit = (index < best) ? Math.nextUp(out.t) : out.t;
+		return surface.intersect(ray, tMin, limit, out) ? index : best;
+	}
+
+	/**
+	 * Answer whether any surface lies on the ray in (tMin, tMax), stopping at
+	 * the first one found.
+	 * @param origin the ray origin
+	 * @param direction the ray direction
+	 * @param tMin the ray starts just after this distance
+	 * @param tMax the ray ends just before this distance
+	 * @return true if the ray is blocked
+	 */
+	public boolean occluded(Point3 origin, Vector3 direction, double tMin, double tMax) {
+
+		for (int k = 0; k < unbounded.length; k++) {
+			if (unbounded[k].occluded(origin, direction, tMin, tMax)) return true;
+		}
+		return root != null && occluded(root, origin, direction,
+				1 / direction.x, 1 / direction.y, 1 / direction.z, tMin, tMax);
+	}
+
+	/**
+	 * Any-hit traversal of a subtree.
+	 */
+	private boolean occluded(BVHNode node, Point3 origin, Vector3 direction,
+			double invX, double invY, double invZ, double tMin, double tMax) {
+
+		if (node.box.intersect(origin.x, origin.y, origin.z, invX, invY, invZ, tMin, tMax) == Double.POSITIVE_INFINITY)
+			return false;
+		if (node.isLeaf()) {
+			for (int k = node.start; k < node.start + node.count; k++) {
+				if (surfaces[k].occluded(origin, direction, tMin, tMax)) return true;
+			}
+			return false;
+		}
+		return occluded(node.left, origin, direction, invX, invY, invZ, tMin, tMax)
+				|| occluded(node.right, origin, direction, invX, invY, invZ, tMin, tMax);
+	}
+
+	/**
+	 * Visit a subtree, nearer child first, skipping any node whose box starts
+	 * beyond the closest hit found so far.
+	 */
+	private void visit(BVHNode node, Traversal state) {
+
+		if (node.isLeaf()) {
+			for (int k = node.start; k < node.start + node.count; k++) {
+				state.consider(surfaces[k].hit(state.direction, state.origin), indices[k]);
+			}
+			return;
+		}
+		double tLeft = state.enter(node.left.box);
+		double tRight = state.enter(node.right.box);
+		if (tRight < tLeft) {
+			if (tRight != Double.POSITIVE_INFINITY) visit(node.right, state);
+			if (state.enter(node.left.box) != Double.POSITIVE_INFINITY) visit(node.left, state);
+		}
+		else {
+			if (tLeft != Double.POSITIVE_INFINITY) visit(node.left, state);
+			if (state.enter(node.right.box) != Double.POSITIVE_INFINITY) visit(node.right, state);
+		}
+	}
+
+	/**
+	 * The state of a single closest-hit query.
+	 */
+	private static class Traversal {
+
+		final Vector3 direction;
+		final Point3 origin;
+		final double invX, invY, invZ;
+
+		HitRecord closest;
+		double closestT = Double.POSITIVE_INFINITY;
+		int closestIndex = Integer.MAX_VALUE;
+
+		Traversal(Vector3 direction, Point3 origin) {
+			this.direction = direction;
+			this.origin = origin;
+			invX = 1 / direction.x;
+			invY = 1 / direction.y;
+			invZ = 1 / direction.z;
+		}
+
+		/** @return where the ray enters box before the closest hit, or infinity */
+		double enter(BoundingBox box) {
+			return box.intersect(origin.x, origin.y, origin.z, invX, invY, invZ, 0, closestT);
+		}
+
+		/** Keep hit if it is in front of the origin and closer (or as close and added earlier). */
+		void consider(HitRecord hit, int index) {
+			if (hit != null && hit.t > 0
+					&& (hit.t < closestT || (hit.t == closestT && index < closestIndex))) {
+				closest = hit;
+				closestT = hit.t;
+				closestIndex = index;
+			}
+		}
+	}
+}
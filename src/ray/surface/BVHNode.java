@@ -0,0 +1,32 @@
+package ray.surface;
+
+/**
+ * A node of a BVH.  Interior nodes have two children; leaves refer to a
+ * contiguous range of the BVH's surface array.
+ */
+public class BVHNode {
+
+	/** Bounds of everything below this node. */
+	public final BoundingBox box = new BoundingBox();
+
+	/** The child nodes, or null for a leaf. */
+	public BVHNode left, right;
+
+	/** First surface of a leaf. */
+	public int start;
+
+	/** Number of surfaces in a leaf, 0 for interior nodes. */
+	public int count;
+
+	/**
+	 * Default constructor.
+	 */
+	public BVHNode() { }
+
+	/**
+	 * @return true if this node is a leaf
+	 */
+	public boolean isLeaf() {
+		return left == null;
+	}
+}
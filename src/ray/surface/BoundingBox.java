@@ -0,0 +1,184 @@
+package ray.surface;
+
+import ray.math.Point3;
+
+/**
+ * An axis aligned bounding box stored as its minimum and maximum corners.
+ * An empty box has min > max on every axis.
+ */
+public class BoundingBox {
+
+	/** The corner with the smallest x, y, and z components. */
+	public final Point3 min = new Point3();
+
+	/** The corner with the largest x, y, and z components. */
+	public final Point3 max = new Point3();
+
+	/**
+	 * Default constructor.  Produces an empty box.
+	 */
+	public BoundingBox() {
+
+		setEmpty();
+	}
+
+	/**
+	 * Make this box empty, so that expanding it by anything gives that thing's bounds.
+	 */
+	public void setEmpty() {
+
+		min.set(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+		max.set(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+	}
+
+	/**
+	 * Set this box to the given corners.
+	 * @param minX smallest x
+	 * @param minY smallest y
+	 * @param minZ smallest z
+	 * @param maxX largest x
+	 * @param maxY largest y
+	 * @param maxZ largest z
+	 */
+	public void set(double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+
+		min.set(minX, minY, minZ);
+		max.set(maxX, maxY, maxZ);
+	}
+
+	/**
+	 * Sets this box to have the contents of another box.
+	 * @param box the input box
+	 */
+	public void set(BoundingBox box) {
+
+		min.set(box.min);
+		max.set(box.max);
+	}
+
+	/**
+	 * Grow this box to contain the given point.
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param z the z coordinate
+	 */
+	public void expand(double x, double y, double z) {
+
+		if (x < min.x) min.x = x;
+		if (y < min.y) min.y = y;
+		if (z < min.z) min.z = z;
+		if (x > max.x) max.x = x;
+		if (y > max.y) max.y = y;
+		if (z > max.z) max.z = z;
+	}
+
+	/**
+	 * Grow this box to contain another box.
+	 * @param box the box to contain
+	 */
+	public void expand(BoundingBox box) {
+
+		if (box.isEmpty()) return;
+		expand(box.min.x, box.min.y, box.min.z);
+		expand(box.max.x, box.max.y, box.max.z);
+	}
+
+	/**
+	 * Grow this box on every side by a small amount relative to its
+	 * coordinates, so that points computed with rounding error on the
+	 * surface of the bounded object still fall inside.
+	 */
+	public void pad() {
+
+		double scale = Math.max(Math.max(Math.abs(min.x), Math.abs(max.x)),
+				Math.max(Math.max(Math.abs(min.y), Math.abs(max.y)),
+						Math.max(Math.abs(min.z), Math.abs(max.z))));
+		double eps = 1e-9 * (1 + scale);
+		min.set(min.x - eps, min.y - eps, min.z - eps);
+		max.set(max.x + eps, max.y + eps, max.z + eps);
+	}
+
+	/**
+	 * @return true if the box contains no points
+	 */
+	public boolean isEmpty() {
+
+		return !(min.x <= max.x && min.y <= max.y && min.z <= max.z);
+	}
+
+	/**
+	 * @return the surface area of the box, or 0 if it is empty
+	 */
+	public double area() {
+
+		if (isEmpty()) return 0;
+		double dx = max.x - min.x;
+		double dy = max.y - min.y;
+		double dz = max.z - min.z;
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+
+	/**
+	 * @param axis 0, 1, or 2 for x, y, or z
+	 * @return the smallest coordinate along the axis
+	 */
+	public double getMin(int axis) {
+
+		return axis == 0 ? min.x : (axis == 1 ? min.y : min.z);
+	}
+
+	/**
+	 * @param axis 0, 1, or 2 for x, y, or z
+	 * @return the largest coordinate along the axis
+	 */
+	public double getMax(int axis) {
+
+		return axis == 0 ? max.x : (axis == 1 ? max.y : max.z);
+	}
+
+	/**
+	 * Intersect a ray with this box using the slab method.  The ray is given
+	 * by its origin and the reciprocal of its direction.  Comparisons are
+	 * written so that NaNs (a zero direction component with the origin on a
+	 * slab plane) never cause a miss.
+	 * @param ox origin x
+	 * @param oy origin y
+	 * @param oz origin z
+	 * @param invX 1 / direction x
+	 * @param invY 1 / direction y
+	 * @param invZ 1 / direction z
+	 * @param tMin start of the ray interval
+	 * @param tMax end of the ray interval
+	 * @return the entry distance, or positive infinity if the ray misses the box in [tMin, tMax]
+	 */
+	public double intersect(double ox, double oy, double oz,
+			double invX, double invY, double invZ, double tMin, double tMax) {
+
+		double t1 = (min.x - ox) * invX;
+		double t2 = (max.x - ox) * invX;
+		if (t1 > t2) { double t = t1; t1 = t2; t2 = t; }
+		if (t1 > tMin) tMin = t1;
+		if (t2 < tMax) tMax = t2;
+
+		t1 = (min.y - oy) * invY;
+		t2 = (max.y - oy) * invY;
+		if (t1 > t2) { double t = t1; t1 = t2; t2 = t; }
+		if (t1 > tMin) tMin = t1;
+		if (t2 < tMax) tMax = t2;
+
+		t1 = (min.z - oz) * invZ;
+		t2 = (max.z - oz) * invZ;
+		if (t1 > t2) { double t = t1; t1 = t2; t2 = t; }
+		if (t1 > tMin) tMin = t1;
+		if (t2 < tMax) tMax = t2;
+
+		return tMin <= tMax ? tMin : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "bounds " + min + " " + max + " end";
+	}
+}
@@ -1,6 +1,7 @@
 package ray.surface;
 
 import ray.math.Point3;
+import ray.math.Ray;
 import ray.math.Vector3;
 
 public class Box extends Surface {
@@ -51,7 +52,7 @@ public class Box extends Surface {
 		else if (t_enter == tz1) normal = new Vector3( 0,  0,  1);
 		else if (t_enter == tz2) normal = new Vector3( 0,  0, -1);
 		// We know our normal, t value, and normal. Return the HitRecord. 
-		return new HitRecord(this, t_enter, normal);
+		return new HitRecord(this, t_enter, normal).at(origin, direction);
 	}
 
 	public Box() { }
@@ -63,6 +64,77 @@ public class Box extends Surface {
 		return true;
 	}
 
+	public boolean intersect(Ray ray, double tMin, double tMax, HitRecord out) {
+		Point3 origin = ray.origin;
+		Vector3 direction = ray.direction;
+		double tx1 = (maxPt.x - origin.x) / direction.x;
+		double tx2 = (minPt.x - origin.x) / direction.x;
+		double ty1 = (maxPt.y - origin.y) / direction.y;
+		double ty2 = (minPt.y - origin.y) / direction.y;
+		double tz1 = (maxPt.z - origin.z) / direction.z;
+		double tz2 = (minPt.z - origin.z) / direction.z;
+		double t_enter = enter(tx1, tx2, ty1, ty2, tz1, tz2);
+		if (!(t_enter > tMin && t_enter < tMax)) return false;
+		out.surface = this;
+		out.t = t_enter;
+		//	The entry point is on the face whose slab distance it came from.
+		if      (t_enter == tx1) out.face = 0;
+		else if (t_enter == tx2) out.face = 1;
+		else if (t_enter == ty1) out.face = 2;
+		else if (t_enter == ty2) out.face = 3;
+		else if (t_enter == tz1) out.face = 4;
+		else                     out.face = 5;
+		return true;
+	}
+
+	public void computeShading(Ray ray, HitRecord hit) {
+		switch (hit.face) {
+		case 0:  hit.normal.set( 1,  0,  0); break;
+		case 1:  hit.normal.set(-1,  0,  0); break;
+		case 2:  hit.normal.set( 0,  1,  0); break;
+		case 3:  hit.normal.set( 0, -1,  0); break;
+		case 4:  hit.normal.set( 0,  0,  1); break;
+		default: hit.normal.set( 0,  0, -1); break;
+		}
+	}
+
+	/*	Max of the per-axis minimums if it does not exceed the min of the
+		per-axis maximums, NaN otherwise. */
+	private static double enter(double tx1, double tx2, double ty1, double ty2, double tz1, double tz2) {
+		double t_enter = Double.NEGATIVE_INFINITY, t_exit = Double.POSITIVE_INFINITY;
+		double lo, hi;
+		lo = (tx1 < tx2) ? tx1 : tx2; hi = (tx1 > tx2) ? tx1 : tx2;
+		if (lo > t_enter) t_enter = lo;
+		if (hi < t_exit) t_exit = hi;
+		lo = (ty1 < ty2) ? ty1 : ty2; hi = (ty1 > ty2) ? ty1 : ty2;
+		if (lo > t_enter) t_enter = lo;
+		if (hi < t_exit) t_exit = hi;
+		lo = (tz1 < tz2) ? tz1 : tz2; hi = (tz1 > tz2) ? tz1 : tz2;
+		if (lo > t_enter) t_enter = lo;
+		if (hi < t_exit) t_exit = hi;
+		return (t_enter > t_exit) ? Double.NaN : t_enter;
+	}
+
+	/*	Same slab test as hit, reporting the entry point only. */
+	public boolean occluded(Point3 origin, Vector3 direction, double tMin, double tMax) {
+		double tx1 = (maxPt.x - origin.x) / direction.x;
+		double tx2 = (minPt.x - origin.x) / direction.x;
+		double ty1 = (maxPt.y - origin.y) / direction.y;
+		double ty2 = (minPt.y - origin.y) / direction.y;
+		double tz1 = (maxPt.z - origin.z) / direction.z;
+		double tz2 = (minPt.z - origin.z) / direction.z;
+		double t_enter = enter(tx1, tx2, ty1, ty2, tz1, tz2);
+		return t_enter > tMin && t_enter < tMax;
+	}
+
+	public boolean computeBounds(BoundingBox out) {
+		out.setEmpty();
+		out.expand(minPt.x, minPt.y, minPt.z);
+		out.expand(maxPt.x, maxPt.y, maxPt.z);
+		out.pad();
+		return true;
+	}
+
 	/**
 	 * @see Object#toString()
 	 */
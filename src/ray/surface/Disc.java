@@ -1,6 +1,7 @@
 package ray.surface;
 
 import ray.math.Point3;
+import ray.math.Ray;
 import ray.math.Vector3;
 
 /**
@@ -38,6 +39,40 @@ public class Disc extends Plane {
 		return null;
 	}
 
+	public boolean intersect(Ray ray, double tMin, double tMax, HitRecord out) {
+		double t = intersectPlane(ray.origin, ray.direction);
+		if (!(t > tMin && t < tMax) || !withinRadius(ray.origin, ray.direction, t)) return false;
+		out.surface = this;
+		out.t = t;
+		return true;
+	}
+
+	public boolean occluded(Point3 origin, Vector3 direction, double tMin, double tMax) {
+		double t = intersectPlane(origin, direction);
+		return t > tMin && t < tMax && withinRadius(origin, direction, t);
+	}
+
+	/**
+	 * @return true if the point o + td is no farther than radius from the center
+	 */
+	private boolean withinRadius(Point3 origin, Vector3 direction, double t) {
+		double dx = origin.x + t * direction.x - point.x;
+		double dy = origin.y + t * direction.y - point.y;
+		double dz = origin.z + t * direction.z - point.z;
+		return Math.sqrt(dx * dx + dy * dy + dz * dz) <= radius;
+	}
+
+	/**
+	 * The disc lies within radius of its center, which is a loose but cheap
+	 * bound that does not depend on the normal.
+	 */
+	public boolean computeBounds(BoundingBox out) {
+		out.set(point.x - radius, point.y - radius, point.z - radius,
+				point.x + radius, point.y + radius, point.z + radius);
+		out.pad();
+		return true;
+	}
+
 	/**
 	 * @see Object#toString()
 	 */
@@ -2,30 +2,94 @@ package ray.surface;
 import java.util.ArrayList;
 import ray.math.*;
 /**
- * A group of surfaces.
+ * A group of surfaces.  Rays are intersected with the group through a
+ * bounding volume hierarchy that is built the first time the group is hit
+ * after surfaces were added.
  * @author parryrm
  *
  */
 public class Group extends Surface {
 	protected ArrayList<Surface> surfaces = new ArrayList<Surface>();
-	
+
+	/** Acceleration structure over surfaces, or null if it needs to be (re)built. */
+	protected volatile BVH bvh;
+
 	public void add(Surface toAdd) {
 		this.surfaces.add(toAdd);
+		this.bvh = null;
 	}
 
-	public HitRecord hit(Vector3 ray, Point3 viewpoint) {
-		HitRecord hit;
-		HitRecord closestHit = surfaces.get(0).hit(ray, viewpoint);
-		double smallest = Double.POSITIVE_INFINITY;
-		/*	For every surface in the group of surfaces, see 
-			which intersection is closest and return that color. */
-		for (Surface surface : surfaces) {
-			hit = surface.hit(ray, viewpoint);
-			if (hit != null && hit.t > 0 && hit.t < smallest) {
-				closestHit = new HitRecord(hit);
-				smallest = closestHit.t;
+	/**
+	 * @return the surfaces in this group, in the order they were added
+	 */
+	public ArrayList<Surface> getSurfaces() {
+		return surfaces;
+	}
+
+	/**
+	 * Return the acceleration structure over this group, building it if
+	 * surfaces have been added since it was last built.  Safe to call from
+	 * several render threads at once.
+	 * @return the bounding volume hierarchy
+	 */
+	public BVH getBVH() {
+		BVH tree = bvh;
+		if (tree == null) {
+			synchronized (this) {
+				tree = bvh;
+				if (tree == null) {
+					tree = new BVH(surfaces);
+					bvh = tree;
+				}
 			}
 		}
+		return tree;
+	}
+
+	public HitRecord hit(Vector3 ray, Point3 viewpoint) {
+		if (surfaces.isEmpty()) return null;
+		/*	The hierarchy finds the closest intersection in front of the viewpoint,
+			exactly as checking every surface in the group would. */
+		HitRecord closestHit = getBVH().hit(ray, viewpoint);
+		/*	If nothing is in front of the viewpoint, report whatever the first
+			surface reports, as the original linear scan did. */
+		if (closestHit == null)
+			closestHit = surfaces.get(0).hit(ray, viewpoint);
 		return closestHit;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Find the closest surface hit in (tMin, tMax) through the group's
+	 * hierarchy, without allocating once the hierarchy is built.  The record
+	 * names the surface hit, which computes its own shading data.
+	 */
+	public boolean intersect(Ray ray, double tMin, double tMax, HitRecord out) {
+		return !surfaces.isEmpty() && getBVH().intersect(ray, tMin, tMax, out);
+	}
+
+	/**
+	 * Trace a packet of rays through the group's hierarchy together.
+	 */
+	public void intersect(RayPacket packet, double tMin, double tMax) {
+		if (surfaces.isEmpty()) {
+			super.intersect(packet, tMin, tMax);
+			return;
+		}
+		getBVH().intersect(packet, tMin, tMax);
+	}
+
+	public boolean occluded(Point3 origin, Vector3 direction, double tMin, double tMax) {
+		return !surfaces.isEmpty() && getBVH().occluded(origin, direction, tMin, tMax);
+	}
+
+	public boolean computeBounds(BoundingBox out) {
+		BoundingBox box = new BoundingBox();
+		out.setEmpty();
+		for (Surface surface : surfaces) {
+			if (!surface.computeBounds(box))
+				return false;
+			out.expand(box);
+		}
+		return !out.isEmpty();
+	}
+}
@@ -1,5 +1,6 @@
 package ray.surface;
 
+import ray.math.Point3;
 import ray.math.Vector3;
 
 public class HitRecord {
@@ -7,12 +8,52 @@ public class HitRecord {
     public double t;
     public Vector3 normal;
 
+    /** The hit point o + td, filled in by Surface.hit(Ray, double, double, HitRecord) and by at. */
+    public final Point3 point = new Point3();
+
+    /** Which face of a many-sided surface (such as a Box) was hit, for computing its normal. */
+    public int face;
+
+    /**
+     * Create an empty record to be filled in by Surface.hit(Ray, double, double, HitRecord).
+     * The record owns its normal, so it can be reused for any number of rays.
+     */
+    public HitRecord() {
+        this.normal = new Vector3();
+    }
     public HitRecord(Surface surface, double t, Vector3 normal) {
         this.surface = surface; this.t = t; this.normal = normal;
     }
+    /**
+     * Fill in the hit point o + td, as the surfaces' hit(Vector3, Point3) do
+     * for the records they make.
+     * @param origin the ray origin
+     * @param direction the ray direction
+     * @return this record
+     */
+    public HitRecord at(Point3 origin, Vector3 direction) {
+        this.point.set(origin);
+        this.point.scaleAdd(t, direction);
+        return this;
+    }
+
     public HitRecord(HitRecord copyMe) {
         this.surface = copyMe.surface;
         this.t = copyMe.t;
         this.normal = copyMe.normal;
+        this.point.set(copyMe.point);
+        this.face = copyMe.face;
+    }
+
+    /**
+     * Copy another record's values into this one, without sharing its normal.
+     * @param copyMe the record to copy
+     */
+    public void set(HitRecord copyMe) {
+        this.surface = copyMe.surface;
+        this.t = copyMe.t;
+        this.normal.set(copyMe.normal);
+        this.point.set(copyMe.point);
+        this.face = copyMe.face;
     }
 }
@@ -0,0 +1,489 @@
+package ray.surface;
+
+import java.util.ArrayList;
+
+import ray.math.Point3;
+import ray.math.Ray;
+import ray.math.Vector3;
+
+/**
+ * A flattened, array based copy of a Group's bounding volume hierarchy.
+ * Nodes are stored in depth-first order in primitive arrays: six floats of
+ * bounds and two ints per node.  The first child of an interior node
+ * immediately follows it; the second child's position is stored explicitly.
+ * Traversal uses a fixed int[] stack per thread and does not allocate per
+ * node.  The plain spheres of each leaf are packed into one SphereSet, so
+ * that they are tested together rather than one at a time.
+ *
+ * The flattened copy is rebuilt whenever the group's own hierarchy changes,
+ * and hits are reported exactly as Group.hit reports them.
+ */
+public class LinearBVH extends Surface {
+
+	/** Bytes of bounds and links stored per node. */
+	public static final int BYTES_PER_NODE = 6 * 4 + 2 * 4;
+
+	/** The group whose hierarchy is flattened. */
+	protected final Group group;
+
+	/** The flattened hierarchy, or null before the first hit. */
+	protected volatile Flat flat;
+
+	/** Each render thread's traversal stack. */
+	protected final ThreadLocal<int[]> stacks = new ThreadLocal<int[]>();
+
+	/**
+	 * Wrap a group.  The hierarchy is flattened lazily on the first hit.
+	 * @param group the group to trace
+	 */
+	public LinearBVH(Group group) {
+		this.group = group;
+	}
+
+	/**
+	 * @return the group whose hierarchy is flattened
+	 */
+	public Group getGroup() {
+		return group;
+	}
+
+	/**
+	 * Return the flattened hierarchy, rebuilding it if the group's hierarchy
+	 * was rebuilt since the last call.
+	 * @return the flattened hierarchy
+	 */
+	protected Flat getFlat() {
+		BVH source = group.getBVH();
+		Flat current = flat;
+		if (current == null || current.source != source) {
+			synchronized (this) {
+				current = flat;
+				if (current == null || current.source != source) {
+					current = new Flat(source);
+					flat = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	public HitRecord hit(Vector3 direction, Point3 origin) {
+		if (group.getSurfaces().isEmpty()) return null;
+		Flat f = getFlat();
+
+		double ox = origin.x, oy = origin.y, oz = origin.z;
+		double invX = 1 / direction.x, invY = 1 / direction.y, invZ = 1 / direction.z;
+		HitRecord closest = null;
+		double closestT = Double.POSITIVE_INFINITY;
+		int closestIndex = Integer.MAX_VALUE;
+
+		for (int k = 0; k < f.unbounded.length; k++) {
+			HitRecord hit = f.unbounded[k].hit(direction, origin);
+			int index = f.unboundedIndices[k];
+			if (hit != null && hit.t > 0 && (hit.t < closestT || (hit.t == closestT && index < closestIndex))) {
+				closest = hit; closestT = hit.t; closestIndex = index;
+			}
+		}
+
+		if (f.nodeCount > 0) {
+			int[] stack = getStack(f);
+			float[] bounds = f.bounds;
+			int[] links = f.links;
+			int top = 0;
+			int node = 0;
+			while (true) {
+				int count = links[2 * node];
+				if (count > 0) {
+					// Leaf: test its surfaces.
+					int start = links[2 * node + 1];
+					for (int k = start; k < start + count; k++) {
+						// A set's spheres are asked one by one, as this path is not the one it speeds up.
+						int[] members = f.members[k];
+						int n = (members == null) ? 1 : members.length;
+						for (int m = 0; m < n; m++) {
+							Surface surface = (members == null) ? f.surfaces[k] : ((SphereSet) f.surfaces[k]).spheres[m];
+							int index = (members == null) ? f.indices[k] : members[m];
+							HitRecord hit = surface.hit(direction, origin);
+							if (hit != null && hit.t > 0 && (hit.t < closestT || (hit.t == closestT && index < closestIndex))) {
+								closest = hit; closestT = hit.t; closestIndex = index;
+							}
+						}
+					}
+				}
+				else {
+					// Interior: descend into the nearer child and push the farther one.
+					int first = node + 1;
+					int second = links[2 * node + 1];
+					double tFirst = enter(bounds, first, ox, oy, oz, invX, invY, invZ, 0, closestT);
+					double tSecond = enter(bounds, second, ox, oy, oz, invX, invY, invZ, 0, closestT);
+					if (tSecond < tFirst) {
+						int t = first; first = second; second = t;
+						double d = tFirst; tFirst = tSecond; tSecond = d;
+					}
+					if (tFirst != Double.POSITIVE_INFINITY) {
+						if (tSecond != Double.POSITIVE_INFINITY) stack[top++] = second;
+						node = first;
+						continue;
+					}
+				}
+				// Pop the next node that can still hold something closer.
+				node = -1;
+				while (top > 0) {
+					int candidate = stack[--top];
+					if (enter(bounds, candidate, ox, oy, oz, invX, invY, invZ, 0, closestT) != Double.POSITIVE_INFINITY) {
+						node = candidate;
+						break;
+					}
+				}
+				if (node < 0) break;
+			}
+		}
+
+		/*	If nothing is in front of the origin, report whatever the first
+			surface of the group reports, as Group.hit does. */
+		if (closest == null)
+			closest = group.getSurfaces().get(0).hit(direction, origin);
+		return closest;
+	}
+
+	/**
+	 * Find the closest surface hit in (tMin, tMax) without allocating.  Ties
+	 * go to the surface added to the group first, as in Group.
+	 */
+	public boolean intersect(Ray ray, double tMin, double tMax, HitRecord out) {
+		if (group.getSurfaces().isEmpty()) return false;
+		Flat f = getFlat();
+
+		int best = -1;
+		for (int k = 0; k < f.unbounded.length; k++) {
+			int index = f.unboundedIndices[k];
+			double limit = (best < 0) ? tMax : ((index < best) ? Math.nextUp(out.t) : out.t);
+			if (f.unbounded[k].intersect(ray, tMin, limit, out)) best = index;
+		}
+		if (f.nodeCount == 0) return best >= 0;
+
+		Point3 origin = ray.origin;
+		Vector3 direction = ray.direction;
+		double ox = origin.x, oy = origin.y, oz = origin.z;
+		double invX = 1 / direction.x, invY = 1 / direction.y, invZ = 1 / direction.z;
+		int[] stack = getStack(f);
+		float[] bounds = f.bounds;
+		int[] links = f.links;
+		int top = 0;
+		int node = 0;
+		while (true) {
+			int count = links[2 * node];
+			if (count > 0) {
+				int start = links[2 * node + 1];
+				for (int k = start; k < start + count; k++) {
+					int index = f.indices[k];
+					double limit = (best < 0) ? tMax : ((index < best) ? Math.nextUp(out.t) : out.t);
+					Surface previous = out.surface;
+					double previousT = out.t;
+					if (!f.surfaces[k].intersect(ray, tMin, limit, out)) continue;
+					int[] members = f.members[k];
+					if (members != null) {
+						/*	A set's index is its first sphere's; the one hit may come after
+							the best so far, and then loses a tie with it. */
+						index = memberIndex((SphereSet) f.surfaces[k], members, out.surface);
+						if (best >= 0 && out.t == previousT && index > best) {
+							out.surface = previous;
+							continue;
+						}
+					}
+					best = index;
+				}
+			}
+			else {
+				double limit = (best < 0) ? tMax : out.t;
+				int first = node + 1;
+				int second = links[2 * node + 1];
+				double tFirst = enter(bounds, first, ox, oy, oz, invX, invY, invZ, tMin, limit);
+				double tSecond = enter(bounds, second, ox, oy, oz, invX, invY, invZ, tMin, limit);
+				if (tSecond < tFirst) {
+					int t = first; first = second; second = t;
+					double d = tFirst; tFirst = tSecond; tSecond = d;
+				}
+				if (tFirst != Double.POSITIVE_INFINITY) {
+					if (tSecond != Double.POSITIVE_INFINITY) stack[top++] = second;
+					node = first;
+					continue;
+				}
+			}
+			node = -1;
+			while (top > 0) {
+				int candidate = stack[--top];
+				double limit = (best < 0) ? tMax : out.t;
+				if (enter(bounds, candidate, ox, oy, oz, invX, invY, invZ, tMin, limit) != Double.POSITIVE_INFINITY) {
+					node = candidate;
+					break;
+				}
+			}
+			if (node < 0) break;
+		}
+		return best >= 0;
+	}
+
+	public boolean occluded(Point3 origin, Vector3 direction, double tMin, double tMax) {
+		if (group.getSurfaces().isEmpty()) return false;
+		Flat f = getFlat();
+		for (int k = 0; k < f.unbounded.length; k++) {
+			if (f.unbounded[k].occluded(origin, direction, tMin, tMax)) return true;
+		}
+		if (f.nodeCount == 0) return false;
+
+		double ox = origin.x, oy = origin.y, oz = origin.z;
+		double invX = 1 / direction.x, invY = 1 / direction.y, invZ = 1 / direction.z;
+		int[] stack = getStack(f);
+		float[] bounds = f.bounds;
+		int[] links = f.links;
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			if (enter(bounds, node, ox, oy, oz, invX, invY, invZ, tMin, tMax) == Double.POSITIVE_INFINITY)
+				continue;
+			int count = links[2 * node];
+			if (count > 0) {
+				int start = links[2 * node + 1];
+				for (int k = start; k < start + count; k++) {
+					if (f.surfaces[k].occluded(origin, direction, tMin, tMax)) return true;
+				}
+			}
+			else {
+				stack[top++] = links[2 * node + 1];
+				stack[top++] = node + 1;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the group position of the sphere of a set that was hit
+	 */
+	private static int memberIndex(SphereSet set, int[] members, Surface hit) {
+		int m = 0;
+		while (set.spheres[m] != hit) m++;
+		return members[m];
+	}
+
+	/**
+	 * @return the calling thread's traversal stack, grown to fit the hierarchy
+	 */
+	private int[] getStack(Flat f) {
+		int[] stack = stacks.get();
+		if (stack == null || stack.length < f.maxDepth + 2) {
+			stack = new int[f.maxDepth + 2];
+			stacks.set(stack);
+		}
+		return stack;
+	}
+
+	/**
+	 * Slab test against the bounds of one node.
+	 * @return the entry distance in [tMin, tMax], or positive infinity on a miss
+	 */
+	private static double enter(float[] bounds, int node, double ox, double oy, double oz,
+			double invX, double invY, double invZ, double tMin, double tMax) {
+
+		int b = 6 * node;
+		double t1 = (bounds[b + 0] - ox) * invX;
+		double t2 = (bounds[b + 3] - ox) * invX;
+		if (t1 > t2) { double t = t1; t1 = t2; t2 = t; }
+		if (t1 > tMin) tMin = t1;
+		if (t2 < tMax) tMax = t2;
+
+		t1 = (bounds[b + 1] - oy) * invY;
+		t2 = (bounds[b + 4] - oy) * invY;
+		if (t1 > t2) { double t = t1; t1 = t2; t2 = t; }
+		if (t1 > tMin) tMin = t1;
+		if (t2 < tMax) tMax = t2;
+
+		t1 = (bounds[b + 2] - oz) * invZ;
+		t2 = (bounds[b + 5] - oz) * invZ;
+		if (t1 > t2) { double t = t1; t1 = t2; t2 = t; }
+		if (t1 > tMin) tMin = t1;
+		if (t2 < tMax) tMax = t2;
+
+		return tMin <= tMax ? tMin : Double.POSITIVE_INFINITY;
+	}
+
+	public boolean computeBounds(BoundingBox out) {
+		return group.computeBounds(out);
+	}
+
+	/**
+	 * @return the number of bytes used by the flattened nodes and surface
+	 *         tables, divided by the number of bounded surfaces
+	 */
+	public double bytesPerPrimitive() {
+		Flat f = getFlat();
+		if (f.primitives == 0) return 0;
+		return (double) f.memoryBytes() / f.primitives;
+	}
+
+	/**
+	 * @return the number of SphereSets the leaves' spheres are packed into
+	 */
+	public int getSphereSetCount() {
+		return getFlat().setCount;
+	}
+
+	/**
+	 * @return a one line comparison of the memory used by this layout and
+	 *         by the group's object tree
+	 */
+	public String memoryReport() {
+		Flat f = getFlat();
+		int n = Math.max(1, f.primitives);
+		return "linear BVH: " + f.nodeCount + " nodes, " + f.setCount + " sphere sets, "
+				+ String.format("%.1f", (double) f.memoryBytes() / n) + " bytes/primitive; object tree: "
+				+ String.format("%.1f", (double) f.source.estimateMemoryBytes() / n) + " bytes/primitive";
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "linear bvh " + group.getSurfaces().size() + " surfaces end";
+	}
+
+	/**
+	 * The flattened arrays built from one version of the group's hierarchy.
+	 */
+	protected static class Flat {
+
+		/** The hierarchy these arrays were built from. */
+		final BVH source;
+
+		/** min x, y, z then max x, y, z for every node, rounded outward to float. */
+		final float[] bounds;
+
+		/** For each node: surface count (0 for interior nodes), then first surface or second child. */
+		final int[] links;
+
+		/** The leaves' surfaces, with each leaf's plain spheres packed into one SphereSet. */
+		Surface[] surfaces;
+
+		/** For each entry of surfaces, its position in the group; for a set, its first sphere's. */
+		int[] indices;
+
+		/** For each SphereSet in surfaces, the group positions of its spheres; null otherwise. */
+		int[][] members;
+
+		/** The number of bounded surfaces in the group. */
+		final int primitives;
+
+		final Surface[] unbounded;
+		final int[] unboundedIndices;
+
+		int nodeCount;
+		int maxDepth;
+
+		/** Entries of surfaces filled so far, sets made, and spheres in them. */
+		int size, setCount, setSpheres;
+
+		Flat(BVH source) {
+			this.source = source;
+			primitives = source.surfaces.length;
+			surfaces = new Surface[primitives];
+			indices = new int[primitives];
+			members = new int[primitives][];
+			unbounded = source.unbounded;
+			unboundedIndices = source.unboundedIndices;
+			bounds = new float[6 * source.getNodeCount()];
+			links = new int[2 * source.getNodeCount()];
+			if (source.root != null)
+				flatten(source.root, 0);
+
+			// Packing shortens the surface table, so trim it to what was used.
+			Surface[] packed = new Surface[size];
+			int[] packedIndices = new int[size];
+			int[][] packedMembers = new int[size][];
+			System.arraycopy(surfaces, 0, packed, 0, size);
+			System.arraycopy(indices, 0, packedIndices, 0, size);
+			System.arraycopy(members, 0, packedMembers, 0, size);
+			surfaces = packed;
+			indices = packedIndices;
+			members = packedMembers;
+		}
+
+		/**
+		 * Append a subtree in depth-first order.
+		 * @return the position of the subtree's root
+		 */
+		private int flatten(BVHNode node, int depth) {
+			int index = nodeCount++;
+			maxDepth = Math.max(maxDepth, depth);
+			BoundingBox box = node.box;
+			bounds[6 * index + 0] = Math.nextDown((float) box.min.x);
+			bounds[6 * index + 1] = Math.nextDown((float) box.min.y);
+			bounds[6 * index + 2] = Math.nextDown((float) box.min.z);
+			bounds[6 * index + 3] = Math.nextUp((float) box.max.x);
+			bounds[6 * index + 4] = Math.nextUp((float) box.max.y);
+			bounds[6 * index + 5] = Math.nextUp((float) box.max.z);
+			if (node.isLeaf()) {
+				links[2 * index + 1] = size;
+				links[2 * index] = pack(node);
+			}
+			else {
+				links[2 * index] = 0;
+				flatten(node.left, depth + 1);
+				links[2 * index + 1] = flatten(node.right, depth + 1);
+			}
+			return index;
+		}
+
+		/**
+		 * Append a leaf's surfaces to the surface table, with its plain
+		 * spheres, if it has more than one, in a SphereSet.  Subclasses of
+		 * Sphere are left alone, as they may intersect differently.
+		 * @return the number of entries appended
+		 */
+		private int pack(BVHNode node) {
+			int first = size;
+			// Leaf positions of the spheres, in group order so that the set breaks ties as the group does.
+			int[] spheres = new int[node.count];
+			int sphereCount = 0;
+			for (int k = node.start; k < node.start + node.count; k++) {
+				if (source.surfaces[k].getClass() == Sphere.class) {
+					int m = sphereCount++;
+					for (; m > 0 && source.indices[spheres[m - 1]] > source.indices[k]; m--)
+						spheres[m] = spheres[m - 1];
+					spheres[m] = k;
+				}
+				else {
+					surfaces[size] = source.surfaces[k];
+					indices[size++] = source.indices[k];
+				}
+			}
+			if (sphereCount == 1) {
+				surfaces[size] = source.surfaces[spheres[0]];
+				indices[size++] = source.indices[spheres[0]];
+			}
+			else if (sphereCount > 1) {
+				ArrayList<Sphere> list = new ArrayList<Sphere>(sphereCount);
+				int[] order = new int[sphereCount];
+				for (int m = 0; m < sphereCount; m++) {
+					list.add((Sphere) source.surfaces[spheres[m]]);
+					order[m] = source.indices[spheres[m]];
+				}
+				surfaces[size] = new SphereSet(list);
+				indices[size] = order[0];
+				members[size++] = order;
+				setCount++;
+				setSpheres += sphereCount;
+			}
+			return size - first;
+		}
+
+		/**
+		 * @return bytes used by the node arrays, surface tables and sphere sets
+		 */
+		long memoryBytes() {
+			return (long) nodeCount * BYTES_PER_NODE
+					+ (long) surfaces.length * (4 + 4)
+					+ (long) setSpheres * (4 * 8 + 4 + 4);
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package ray.surface;
 
 import ray.math.Point3;
+import ray.math.Ray;
 import ray.math.Vector3;
 
 /**
@@ -26,7 +27,35 @@ public class Plane extends Surface {
 		Vector3 op = new Vector3(); // new blank Vector3, no other referencess
 		op.sub(origin, point);		// op gets set to o - p
 		double t = -op.dot(normal) / direction.dot(normal);
-		return new HitRecord(this, t, new Vector3(normal));
+		return new HitRecord(this, t, new Vector3(normal)).at(origin, direction);
+	}
+
+	public boolean intersect(Ray ray, double tMin, double tMax, HitRecord out) {
+		double t = intersectPlane(ray.origin, ray.direction);
+		if (!(t > tMin && t < tMax)) return false;
+		out.surface = this;
+		out.t = t;
+		return true;
+	}
+
+	public void computeShading(Ray ray, HitRecord hit) {
+		hit.normal.set(normal);
+	}
+
+	public boolean occluded(Point3 origin, Vector3 direction, double tMin, double tMax) {
+		double t = intersectPlane(origin, direction);
+		return t > tMin && t < tMax;
+	}
+
+	/**
+	 * Distance along the ray to the plane, without allocating.
+	 * @param origin the ray origin
+	 * @param direction the ray direction
+	 * @return the ray parameter where it meets the plane (infinite or NaN if parallel)
+	 */
+	protected double intersectPlane(Point3 origin, Vector3 direction) {
+		double opn = (origin.x - point.x) * normal.x + (origin.y - point.y) * normal.y + (origin.z - point.z) * normal.z;
+		return -opn / direction.dot(normal);
 	}
 
 	/**
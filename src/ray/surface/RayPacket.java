@@ -0,0 +1,162 @@
+package ray.surface;
+
+import ray.math.Point3;
+import ray.math.Ray;
+import ray.math.Vector3;
+
+/**
+ * A small bundle of rays from a common origin, such as the primary rays of a
+ * 2x2 or 4x4 block of pixels, traced through a hierarchy together.  Each ray
+ * has its own HitRecord and gets exactly the hit it would get on its own.
+ *
+ * When every ray's direction has the same sign along each axis, the packet
+ * also keeps the range of inverse direction components over all of its rays,
+ * which lets a whole packet be rejected by one conservative box test.
+ */
+public class RayPacket {
+
+	/** Most rays a packet can hold (the active rays are kept as bits of an int). */
+	public static final int MAX_SIZE = 16;
+
+	/** The rays.  They share their origin; each owns its direction. */
+	public final Ray[] rays = new Ray[MAX_SIZE];
+
+	/** The closest hit of each ray, valid where hit[k] is true. */
+	public final HitRecord[] hits = new HitRecord[MAX_SIZE];
+
+	/** Whether each ray hit anything. */
+	public final boolean[] hit = new boolean[MAX_SIZE];
+
+	/** The number of rays in use. */
+	protected int size;
+
+	/** The shared origin. */
+	protected final Point3 origin = new Point3();
+
+	/** Inverse direction of each ray. */
+	protected final double[] invX = new double[MAX_SIZE], invY = new double[MAX_SIZE], invZ = new double[MAX_SIZE];
+
+	/** Group index of each ray's best hit so far during a traversal, or -1. */
+	protected final int[] best = new int[MAX_SIZE];
+
+	/** Nearest distance at which any ray entered the last box tested, set during traversal. */
+	protected double entry;
+
+	/** True if all directions have the same signs, so the ranges below are valid. */
+	protected boolean coherent;
+
+	/** Smallest and largest inverse direction component along each axis. */
+	protected double minInvX, maxInvX, minInvY, maxInvY, minInvZ, maxInvZ;
+
+	/**
+	 * Create an empty packet.
+	 */
+	public RayPacket() {
+		for (int k = 0; k < MAX_SIZE; k++) {
+			rays[k] = new Ray(origin, new Vector3());
+			hits[k] = new HitRecord();
+		}
+	}
+
+	/**
+	 * Start filling a new packet.  Set each ray's direction, then call
+	 * prepare before tracing.
+	 * @param origin the origin shared by every ray
+	 * @param size the number of rays
+	 */
+	public void reset(Point3 origin, int size) {
+		if (size < 1 || size > MAX_SIZE)
+			throw new Error("packet size " + size + " is not between 1 and " + MAX_SIZE);
+		this.origin.set(origin);
+		this.size = size;
+	}
+
+	/**
+	 * @return the number of rays in the packet
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return true if the rays are similar enough to be traced as a packet
+	 */
+	public boolean isCoherent() {
+		return coherent;
+	}
+
+	/**
+	 * @return the bits of every ray in the packet
+	 */
+	public int allRays() {
+		return (1 << size) - 1;
+	}
+
+	/**
+	 * Compute the per-ray and packet-wide data used for traversal, and clear
+	 * the hits.  Call this after all directions are set.
+	 */
+	public void prepare() {
+
+		for (int k = 0; k < size; k++) {
+			Vector3 d = rays[k].direction;
+			invX[k] = 1 / d.x;
+			invY[k] = 1 / d.y;
+			invZ[k] = 1 / d.z;
+			hit[k] = false;
+			best[k] = -1;
+		}
+		minInvX = maxInvX = invX[0];
+		minInvY = maxInvY = invY[0];
+		minInvZ = maxInvZ = invZ[0];
+		for (int k = 1; k < size; k++) {
+			minInvX = Math.min(minInvX, invX[k]); maxInvX = Math.max(maxInvX, invX[k]);
+			minInvY = Math.min(minInvY, invY[k]); maxInvY = Math.max(maxInvY, invY[k]);
+			minInvZ = Math.min(minInvZ, invZ[k]); maxInvZ = Math.max(maxInvZ, invZ[k]);
+		}
+		/*	Rays diverge if they point opposite ways along some axis, or run
+			parallel to one, since the ranges then say nothing useful. */
+		coherent = sameSign(minInvX, maxInvX) && sameSign(minInvY, maxInvY) && sameSign(minInvZ, maxInvZ);
+	}
+
+	/**
+	 * Conservative test of the whole packet against a box.  Every ray that
+	 * enters the box in [tMin, tMax] passes; a false answer means no ray does.
+	 * Only meaningful when the packet is coherent.
+	 * @param box the box
+	 * @param tMin start of the ray interval
+	 * @param tMax end of the ray interval
+	 * @return false if no ray in the packet can hit the box
+	 */
+	public boolean mayHit(BoundingBox box, double tMin, double tMax) {
+
+		double lo, hi;
+		lo = Math.min(Math.min((box.min.x - origin.x) * minInvX, (box.min.x - origin.x) * maxInvX),
+				Math.min((box.max.x - origin.x) * minInvX, (box.max.x - origin.x) * maxInvX));
+		hi = Math.max(Math.max((box.min.x - origin.x) * minInvX, (box.min.x - origin.x) * maxInvX),
+				Math.max((box.max.x - origin.x) * minInvX, (box.max.x - origin.x) * maxInvX));
+		if (lo > tMin) tMin = lo;
+		if (hi < tMax) tMax = hi;
+		lo = Math.min(Math.min((box.min.y - origin.y) * minInvY, (box.min.y - origin.y) * maxInvY),
+				Math.min((box.max.y - origin.y) * minInvY, (box.max.y - origin.y) * maxInvY));
+		hi = Math.max(Math.max((box.min.y - origin.y) * minInvY, (box.min.y - origin.y) * maxInvY),
+				Math.max((box.max.y - origin.y) * minInvY, (box.max.y - origin.y) * maxInvY));
+		if (lo > tMin) tMin = lo;
+		if (hi < tMax) tMax = hi;
+		lo = Math.min(Math.min((box.min.z - origin.z) * minInvZ, (box.min.z - origin.z) * maxInvZ),
+				Math.min((box.max.z - origin.z) * minInvZ, (box.max.z - origin.z) * maxInvZ));
+		hi = Math.max(Math.max((box.min.z - origin.z) * minInvZ, (box.min.z - origin.z) * maxInvZ),
+				Math.max((box.max.z - origin.z) * minInvZ, (box.max.z - origin.z) * maxInvZ));
+		if (lo > tMin) tMin = lo;
+		if (hi < tMax) tMax = hi;
+		return tMin <= tMax;
+	}
+
+	/**
+	 * True if a and b are finite and nonzero with the same sign.
+	 */
+	private static boolean sameSign(double a, double b) {
+		return (a > 0 && b > 0 && b < Double.POSITIVE_INFINITY)
+				|| (a < 0 && b < 0 && a > Double.NEGATIVE_INFINITY);
+	}
+}
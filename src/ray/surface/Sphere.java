@@ -1,6 +1,7 @@
 package ray.surface;
 
 import ray.math.Point3;
+import ray.math.Ray;
 import ray.math.Vector3;
 
 /**
@@ -50,10 +51,61 @@ public class Sphere extends Surface {
 		normal.normalize();
 
 		if (t > 1e-4) 
-			return new HitRecord(this, t, normal);
+			return new HitRecord(this, t, normal).at(origin, direction);
 		else return null;
 	}
 	
+	public boolean intersect(Ray ray, double tMin, double tMax, HitRecord out) {
+		Point3 origin = ray.origin;
+		Vector3 direction = ray.direction;
+		double ocx = origin.x - center.x;
+		double ocy = origin.y - center.y;
+		double ocz = origin.z - center.z;
+		double a = direction.dot(direction);
+		double b = 2.0 * (ocx * direction.x + ocy * direction.y + ocz * direction.z);
+		double c = ocx * ocx + ocy * ocy + ocz * ocz - radius * radius;
+		double discr = b * b - 4 * a * c;
+		if (discr < 1e-4) return false;
+		/*	Take the nearer root if it is in the interval, otherwise the farther one. */
+		double t = (-b - Math.sqrt(discr)) / (2 * a);
+		if (!(t > tMin && t < tMax)) {
+			t = (-b + Math.sqrt(discr)) / (2 * a);
+			if (!(t > tMin && t < tMax)) return false;
+		}
+		out.surface = this;
+		out.t = t;
+		return true;
+	}
+
+	public void computeShading(Ray ray, HitRecord hit) {
+		hit.normal.sub(hit.point, center); // Vector from center to hitpoint. 
+		hit.normal.normalize();
+	}
+
+	public boolean occluded(Point3 origin, Vector3 direction, double tMin, double tMax) {
+		double ocx = origin.x - center.x;
+		double ocy = origin.y - center.y;
+		double ocz = origin.z - center.z;
+		double a = direction.dot(direction);
+		double b = 2.0 * (ocx * direction.x + ocy * direction.y + ocz * direction.z);
+		double c = ocx * ocx + ocy * ocy + ocz * ocz - radius * radius;
+		double discr = b * b - 4 * a * c;
+		if (discr < 1e-4) return false;
+		double root = Math.sqrt(discr);
+		double t = (-b - root) / (2 * a);
+		if (t > tMin && t < tMax) return true;
+		t = (-b + root) / (2 * a);
+		return t > tMin && t < tMax;
+	}
+
+	public boolean computeBounds(BoundingBox out) {
+		double r = Math.abs(radius);
+		out.set(center.x - r, center.y - r, center.z - r,
+				center.x + r, center.y + r, center.z + r);
+		out.pad();
+		return true;
+	}
+	
 	/**
 	 * @see Object#toString()
 	 */
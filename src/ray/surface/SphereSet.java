@@ -0,0 +1,159 @@
+package ray.surface;
+
+import java.util.List;
+
+import ray.math.Point3;
+import ray.math.Ray;
+import ray.math.Vector3;
+
+/**
+ * A bucket of spheres stored as structure-of-arrays: one array each for the
+ * x, y and z of the centers and one for the squared radii.  Rays are tested
+ * against four spheres at a time in straight-line code over consecutive
+ * array elements, so a whole block that the ray misses is rejected with a
+ * single branch.  Hits are exactly those of Sphere.intersect, and the record
+ * names the Sphere that was hit so it shades as usual.  LinearBVH packs the
+ * spheres of each of its leaves into one of these.
+ */
+public class SphereSet extends Surface {
+
+	/** Number of spheres tested together; the loops below are written out for exactly four. */
+	private static final int LANES = 4;
+
+	/** The spheres, in the order they were given. */
+	protected final Sphere[] spheres;
+
+	/** Sphere centers and squared radii, padded to a multiple of LANES. */
+	protected final double[] cx, cy, cz, r2;
+
+	/** The number of real (not padding) spheres. */
+	protected final int count;
+
+	/**
+	 * Pack a list of spheres.
+	 * @param list the spheres
+	 */
+	public SphereSet(List<Sphere> list) {
+
+		count = list.size();
+		spheres = list.toArray(new Sphere[count]);
+		int padded = (count + LANES - 1) / LANES * LANES;
+		cx = new double[padded];
+		cy = new double[padded];
+		cz = new double[padded];
+		r2 = new double[padded];
+		for (int k = 0; k < count; k++) {
+			Sphere s = spheres[k];
+			cx[k] = s.center.x;
+			cy[k] = s.center.y;
+			cz[k] = s.center.z;
+			r2[k] = s.radius * s.radius;
+		}
+		/*	Padding spheres have NaN centers, so every comparison with them fails. */
+		for (int k = count; k < padded; k++) {
+			cx[k] = cy[k] = cz[k] = Double.NaN;
+		}
+	}
+
+	/**
+	 * @return the number of spheres in the set
+	 */
+	public int size() {
+		return count;
+	}
+
+	public HitRecord hit(Vector3 direction, Point3 origin) {
+		HitRecord out = new HitRecord();
+		return hit(new Ray(origin, direction), 1e-4, Double.POSITIVE_INFINITY, out) ? out : null;
+	}
+
+	/**
+	 * Find the closest sphere hit in (tMin, tMax).  Ties go to the sphere
+	 * that comes first in the set.
+	 */
+	public boolean intersect(Ray ray, double tMin, double tMax, HitRecord out) {
+
+		Point3 o = ray.origin;
+		Vector3 d = ray.direction;
+		double a = d.x * d.x + d.y * d.y + d.z * d.z;
+		int best = -1;
+		for (int k = 0; k < cx.length; k += LANES) {
+			double discr0 = discriminant(k, o, d, a);
+			double discr1 = discriminant(k + 1, o, d, a);
+			double discr2 = discriminant(k + 2, o, d, a);
+			double discr3 = discriminant(k + 3, o, d, a);
+			/*	Same miss test as Sphere.intersect; NaN padding falls through and fails the range test. */
+			if (discr0 < 1e-4 && discr1 < 1e-4 && discr2 < 1e-4 && discr3 < 1e-4) continue;
+			double t;
+			if (!(discr0 < 1e-4) && (t = root(k, discr0, o, d, a, tMin, tMax)) < tMax) { tMax = t; best = k; }
+			if (!(discr1 < 1e-4) && (t = root(k + 1, discr1, o, d, a, tMin, tMax)) < tMax) { tMax = t; best = k + 1; }
+			if (!(discr2 < 1e-4) && (t = root(k + 2, discr2, o, d, a, tMin, tMax)) < tMax) { tMax = t; best = k + 2; }
+			if (!(discr3 < 1e-4) && (t = root(k + 3, discr3, o, d, a, tMin, tMax)) < tMax) { tMax = t; best = k + 3; }
+		}
+		if (best < 0) return false;
+		out.surface = spheres[best];
+		out.t = tMax;
+		return true;
+	}
+
+	public boolean occluded(Point3 o, Vector3 d, double tMin, double tMax) {
+
+		double a = d.x * d.x + d.y * d.y + d.z * d.z;
+		for (int k = 0; k < cx.length; k += LANES) {
+			double discr0 = discriminant(k, o, d, a);
+			double discr1 = discriminant(k + 1, o, d, a);
+			double discr2 = discriminant(k + 2, o, d, a);
+			double discr3 = discriminant(k + 3, o, d, a);
+			if (discr0 < 1e-4 && discr1 < 1e-4 && discr2 < 1e-4 && discr3 < 1e-4) continue;
+			if (!(discr0 < 1e-4) && root(k, discr0, o, d, a, tMin, tMax) < tMax) return true;
+			if (!(discr1 < 1e-4) && root(k + 1, discr1, o, d, a, tMin, tMax) < tMax) return true;
+			if (!(discr2 < 1e-4) && root(k + 2, discr2, o, d, a, tMin, tMax) < tMax) return true;
+			if (!(discr3 < 1e-4) && root(k + 3, discr3, o, d, a, tMin, tMax) < tMax) return true;
+		}
+		return false;
+	}
+
+	public boolean computeBounds(BoundingBox out) {
+		BoundingBox box = new BoundingBox();
+		out.setEmpty();
+		for (Sphere sphere : spheres) {
+			sphere.computeBounds(box);
+			out.expand(box);
+		}
+		return !out.isEmpty();
+	}
+
+	/**
+	 * The discriminant b^2 - 4ac of the ray's quadratic for sphere m,
+	 * computed as in Sphere.intersect.
+	 */
+	private double discriminant(int m, Point3 o, Vector3 d, double a) {
+		double ocx = o.x - cx[m];
+		double ocy = o.y - cy[m];
+		double ocz = o.z - cz[m];
+		double b = 2.0 * (ocx * d.x + ocy * d.y + ocz * d.z);
+		double c = ocx * ocx + ocy * ocy + ocz * ocz - r2[m];
+		return b * b - 4 * a * c;
+	}
+
+	/**
+	 * The nearer root of sphere m's quadratic if it is in (tMin, tMax),
+	 * otherwise the farther one if that is, otherwise NaN.
+	 */
+	private double root(int m, double discr, Point3 o, Vector3 d, double a, double tMin, double tMax) {
+		double b = 2.0 * ((o.x - cx[m]) * d.x + (o.y - cy[m]) * d.y + (o.z - cz[m]) * d.z);
+		double t = (-b - Math.sqrt(discr)) / (2 * a);
+		if (t > tMin && t < tMax) return t;
+		t = (-b + Math.sqrt(discr)) / (2 * a);
+		if (t > tMin && t < tMax) return t;
+		return Double.NaN;
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+
+		return "sphere set " + count + " end";
+	}
+}
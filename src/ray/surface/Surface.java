@@ -2,6 +2,7 @@ package ray.surface;
 
 import ray.material.Material;
 import ray.math.Point3;
+import ray.math.Ray;
 import ray.math.Vector3;
 
 /**
@@ -16,5 +17,122 @@ public abstract class Surface {
 	protected Material material = Material.DEFAULT_MATERIAL;
 	public void setMaterial(Material material) { this.material = material; }
 	public Material getMaterial() { return material; }
+
+	/**
+	 * Find the closest intersection in front of the viewpoint, allocating a
+	 * record with its distance, normal and hit point.
+	 * @param ray the ray direction
+	 * @param viewpoint the ray origin
+	 * @return the hit, or null if there is none
+	 */
 	public abstract HitRecord hit(Vector3 ray, Point3 viewpoint);
+
+	/**
+	 * Find the closest intersection of the ray with this surface in the open
+	 * interval (tMin, tMax) and write it into a caller supplied record.  The
+	 * record is only modified when true is returned, so callers looking for
+	 * the closest of several surfaces can pass the t of the best hit so far as
+	 * tMax.  The hit point and normal are computed once, for the final hit
+	 * only, by the surface that was hit.
+	 * @param ray the ray
+	 * @param tMin the ray starts just after this distance
+	 * @param tMax the ray ends just before this distance
+	 * @param out the record to fill in
+	 * @return true if the ray hits the surface in (tMin, tMax)
+	 */
+	public final boolean hit(Ray ray, double tMin, double tMax, HitRecord out) {
+		if (!intersect(ray, tMin, tMax, out)) return false;
+		out.point.set(ray.origin);
+		out.point.scaleAdd(out.t, ray.direction);
+		out.surface.computeShading(ray, out);
+		return true;
+	}
+
+	/**
+	 * The cheap part of hit: find the closest intersection in (tMin, tMax) and
+	 * record only its distance, the surface hit, and whatever that surface
+	 * needs later to compute its normal.  No normal or hit point is computed,
+	 * since most candidates are discarded for a closer one.  Subclasses should
+	 * override this so that no objects are allocated; this default falls back
+	 * to hit(Vector3, Point3) and copies its normal.
+	 * @param ray the ray
+	 * @param tMin the ray starts just after this distance
+	 * @param tMax the ray ends just before this distance
+	 * @param out the record to fill in; only modified if true is returned
+	 * @return true if the ray hits the surface in (tMin, tMax)
+	 */
+	public boolean intersect(Ray ray, double tMin, double tMax, HitRecord out) {
+		HitRecord hit = hit(ray.direction, ray.origin);
+		if (hit == null || !(hit.t > tMin && hit.t < tMax)) return false;
+		out.set(hit);
+		return true;
+	}
+
+	/**
+	 * Find the closest hit of every ray in a packet, as hit(Ray, double,
+	 * double, HitRecord) would for each ray alone, including its hit point and
+	 * normal.  packet.hit tells which rays hit something.
+	 * @param packet the rays, with directions set and prepare() called
+	 * @param tMin the rays start just after this distance
+	 * @param tMax the rays end just before this distance
+	 */
+	public final void hit(RayPacket packet, double tMin, double tMax) {
+		intersect(packet, tMin, tMax);
+		for (int k = 0; k < packet.size(); k++) {
+			if (!packet.hit[k]) continue;
+			Ray ray = packet.rays[k];
+			HitRecord out = packet.hits[k];
+			out.point.set(ray.origin);
+			out.point.scaleAdd(out.t, ray.direction);
+			out.surface.computeShading(ray, out);
+		}
+	}
+
+	/**
+	 * The packet version of intersect(Ray, double, double, HitRecord).  This
+	 * default traces the rays one at a time; surfaces with a hierarchy
+	 * override it to share work between the rays.
+	 * @param packet the rays, with directions set and prepare() called
+	 * @param tMin the rays start just after this distance
+	 * @param tMax the rays end just before this distance
+	 */
+	public void intersect(RayPacket packet, double tMin, double tMax) {
+		for (int k = 0; k < packet.size(); k++) {
+			packet.hit[k] = intersect(packet.rays[k], tMin, tMax, packet.hits[k]);
+		}
+	}
+
+	/**
+	 * Fill in the shading data (the normal) of a hit found by intersect.
+	 * hit.t, hit.face and hit.point are already set.
+	 * @param ray the ray that was intersected
+	 * @param hit the record to complete
+	 */
+	public void computeShading(Ray ray, HitRecord hit) {
+	}
+
+	/**
+	 * Answer whether anything on this surface lies on the ray between tMin and
+	 * tMax.  Unlike hit, this may stop at the first intersection it finds.
+	 * Subclasses should override this to avoid allocating a HitRecord.
+	 * @param origin the ray origin
+	 * @param direction the ray direction
+	 * @param tMin the ray starts just after this distance
+	 * @param tMax the ray ends just before this distance
+	 * @return true if the surface blocks the ray in (tMin, tMax)
+	 */
+	public boolean occluded(Point3 origin, Vector3 direction, double tMin, double tMax) {
+		HitRecord hit = hit(direction, origin);
+		return hit != null && hit.t > tMin && hit.t < tMax;
+	}
+
+	/**
+	 * Compute an axis aligned box that contains the whole surface.  Surfaces
+	 * that extend forever (such as planes) have no bounds.
+	 * @param out the box to fill in
+	 * @return true if the surface is bounded and out was set, false otherwise
+	 */
+	public boolean computeBounds(BoundingBox out) {
+		return false;
+	}
 }
@@ -0,0 +1,91 @@
+package tests;
+
+import ray.Camera;
+import ray.Image;
+import ray.PixelOrder;
+import ray.RayTracer;
+import ray.RenderOptions;
+import ray.Scene;
+import ray.light.PointLight;
+import ray.math.Color;
+import ray.math.Point3;
+import ray.math.Vector3;
+import ray.surface.Plane;
+import ray.surface.Sphere;
+
+/**
+ * Times rendering a large scene with each pixel order.  The scene has far
+ * more spheres than fit in cache, so the differences come from how well
+ * consecutive rays reuse the hierarchy nodes and image rows the previous
+ * ones touched.  Run as
+ *   java tests.PixelOrderBenchmark [spheres] [image size] [tile size] [threads]
+ */
+public class PixelOrderBenchmark
+{
+	/** State of the random number generator, so runs are repeatable. */
+	private static long seed = 4465;
+
+	/**
+	 * @return a pseudo-random number in [0, 1)
+	 */
+	private static double random()
+	{
+		seed = seed * 6364136223846793005L + 1442695040888963407L;
+		return (seed >>> 11) * 0x1.0p-53;
+	}
+
+	public static void main(String[] args)
+	{
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int size = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+		int tileSize = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+		Scene scene = new Scene();
+		Camera camera = new Camera();
+		camera.setViewPoint(new Point3(0, 0, 30));
+		camera.setprojDistance(1.5);
+		scene.setCamera(camera);
+		for (int k = 0; k < count; k++)
+		{
+			Sphere sphere = new Sphere();
+			sphere.setCenter(new Point3(random() * 24 - 12, random() * 24 - 12, random() * 24 - 12));
+			sphere.setRadius(0.05 + random() * 0.05);
+			scene.addSurface(sphere);
+		}
+		Plane plane = new Plane();
+		plane.setPoint(new Point3(0, -12, 0));
+		plane.setNormal(new Vector3(0, 1, 0));
+		scene.addSurface(plane);
+		PointLight light = new PointLight();
+		light.setPosition(new Point3(20, 30, 30));
+		light.setIntensity(new Color(1500, 1500, 1500));
+		scene.addLight(light);
+
+		String[] orders = { PixelOrder.COLUMN, PixelOrder.ROW, PixelOrder.MORTON, PixelOrder.HILBERT };
+		double[] best = new double[orders.length];
+		for (int pass = 0; pass < 4; pass++)
+		{
+			for (int k = 0; k < orders.length; k++)
+			{
+				RenderOptions options = new RenderOptions();
+				options.setThreads(threads);
+				options.setTileSize(tileSize);
+				options.setPixelOrder(orders[k]);
+				scene.setImage(new Image(size, size));
+				long start = System.nanoTime();
+				RayTracer.renderImage(scene, options);
+				double seconds = (System.nanoTime() - start) / 1e9;
+				// The first pass builds the hierarchy and warms up the JIT.
+				if (pass == 1 || (pass > 1 && seconds < best[k]))
+					best[k] = seconds;
+			}
+		}
+		System.out.println(count + " spheres, " + size + "x" + size + " image, "
+				+ tileSize + "px tiles, " + threads + " threads; best of 3 runs:");
+		for (int k = 0; k < orders.length; k++)
+		{
+			System.out.println("  " + orders[k] + ": " + best[k] + " seconds");
+		}
+	}
+}
@@ -6,9 +6,11 @@ import static org.junit.Assert.assertEquals;
 import java.util.ArrayList;
 
 import ray.Camera;
+import ray.CameraRayGenerator;
 import ray.Image;
 import ray.RayTracer;
 import ray.Scene;
+import ray.Tile;
 import ray.math.Point2;
 import ray.math.Vector3;
 
@@ -357,6 +359,62 @@ public class Ray1Test extends RayHelpers
 			assertEquals(message, correctDirection.z, d.z, EPS);
 		}
 	}
+
+	/**
+	 * This tests that the camera ray generator gives the same directions as
+	 * computeRayDirection, one pixel at a time and a whole tile at once.
+	 */
+	@Test
+	public void testCameraRayGenerator()
+	{
+		Vector3[][] cameraParams = {
+			{ new Vector3( 0, 0,-1), new Vector3( 0, 1, 0), new Vector3( 0, 0, 1) },
+			{ new Vector3( 0, 0, 1), new Vector3( 0, 1, 0), new Vector3( 0, 0,-1) },
+			{ new Vector3(-1,-1, 0), new Vector3( 0, 1, 0), new Vector3( 1, 1, 0) },
+			{ new Vector3( 1, 0,-1), new Vector3( 0, 1, 0), new Vector3(-1, 0, 1) },
+			{ new Vector3(-1,-1,-1), new Vector3( 0, 1, 0), new Vector3( 1, 1, 1) },
+		};
+		int nx = 7, ny = 5;
+		Scene scene = new Scene();
+		Image image = new Image(nx, ny);
+		scene.setImage(image);
+		Tile tile = new Tile(0, 0, 0, nx, ny);
+		double[] tileDirections = new double[3 * tile.size()];
+
+		for (Vector3[] cp : cameraParams)
+		{
+			Camera camera = new Camera();
+			camera.setViewDir(cp[0]);
+			camera.setViewUp(cp[1]);
+			camera.setProjNormal(cp[2]);
+			camera.setprojDistance(1.5);
+			camera.setViewWidth(2);
+			camera.setViewHeight(1);
+			scene.setCamera(camera);
+
+			Vector3[] basis = RayTracer.computeBasis(scene);
+			CameraRayGenerator generator = new CameraRayGenerator(camera, image);
+			generator.fillTile(tile, tileDirections);
+			Vector3 d = new Vector3();
+			for (int i = 0; i < nx; i++)
+			{
+				for (int j = 0; j < ny; j++)
+				{
+					Vector3 correct = RayTracer.computeRayDirection(scene, basis, i, j);
+					String message = "CameraRayGenerator fails for viewDir=" + cp[0] + 
+							"; projNormal=" + cp[2] + "; i=" + i + "; j=" + j;
+					generator.direction(i, j, d);
+					assertEquals(message, correct.x, d.x, EPS);
+					assertEquals(message, correct.y, d.y, EPS);
+					assertEquals(message, correct.z, d.z, EPS);
+					int k = 3 * (j * nx + i);
+					assertEquals(message, correct.x, tileDirections[k + 0], EPS);
+					assertEquals(message, correct.y, tileDirections[k + 1], EPS);
+					assertEquals(message, correct.z, tileDirections[k + 2], EPS);
+				}
+			}
+		}
+	}
 	
     /**
      * This tests planes with constant color.
@@ -2,16 +2,78 @@ package tests;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.awt.image.BufferedImage;
+import javax.imageio.ImageIO;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
+import ray.BatchRenderer;
 import ray.Camera;
+import ray.CameraRayGenerator;
+import ray.FloatImageIO;
+import ray.HalfImage;
 import ray.Image;
+import ray.ImageWriter;
+import ray.MappedImage;
+import ray.Parser;
+import ray.PixelOrder;
+import ray.ProgressListener;
 import ray.RayTracer;
+import ray.RenderCheckpoint;
+import ray.RenderCoordinator;
+import ray.RenderControl;
+import ray.RenderOptions;
+import ray.RenderResult;
+import ray.RenderScratch;
+import ray.RenderServer;
+import ray.RenderWorker;
+import ray.RgbeImage;
 import ray.Scene;
+import ray.StreamedImage;
+import ray.StreamingParser;
+import ray.Tile;
+import ray.light.PointLight;
+import ray.math.Color;
 import ray.math.Point2;
+import ray.math.Point3;
+import ray.math.Ray;
 import ray.math.Vector3;
+import ray.surface.Box;
+import ray.surface.Disc;
+import ray.surface.Group;
+import ray.surface.HitRecord;
+import ray.surface.LinearBVH;
+import ray.surface.Plane;
+import ray.surface.RayPacket;
+import ray.surface.Sphere;
+import ray.surface.SphereSet;
+import ray.surface.Surface;
 
 /**
  * JUnit test cases for the Ray1 ray tracer.
@@ -447,4 +509,1462 @@ public class Ray2Test extends RayHelpers
     {
     	runTests("scenes2/shifted-perspective");
     }
+
+    /**
+     * This tests that intersecting rays with a group through the
+     * caller-supplied HitRecord API does not allocate once warmed up.
+     */
+    @Test
+    public void testHitAllocationFree()
+    {
+    	Group group = new Group();
+    	for (int k = 0; k < 100; k++)
+    	{
+    		Sphere sphere = new Sphere();
+    		sphere.setCenter(new Point3(k % 10, k / 10, -k));
+    		sphere.setRadius(0.4);
+    		group.add(sphere);
+    		Box box = new Box();
+    		box.setMinPt(new Point3(k % 7, 1, -k));
+    		box.setMaxPt(new Point3(k % 7 + 0.3, 1.3, -k + 0.3));
+    		group.add(box);
+    		Disc disc = new Disc();
+    		disc.setPoint(new Point3(k % 5, 2, -k));
+    		disc.setNormal(new Vector3(0, 0, 1));
+    		disc.setRadius(0.3);
+    		group.add(disc);
+    	}
+    	Plane plane = new Plane();
+    	plane.setPoint(new Point3(0, -1, 0));
+    	plane.setNormal(new Vector3(0, 1, 0));
+    	group.add(plane);
+
+    	com.sun.management.ThreadMXBean threads =
+    			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    	long id = Thread.currentThread().getId();
+    	Ray ray = new Ray(new Point3(0.1, 0.2, 5), new Vector3());
+    	HitRecord hit = new HitRecord();
+    	long allocated = 0;
+    	int hits = 0;
+    	// The first pass builds the hierarchy and warms up the JIT.
+    	for (int pass = 0; pass < 3; pass++)
+    	{
+    		long before = threads.getThreadAllocatedBytes(id);
+    		for (int i = 0; i < 10000; i++)
+    		{
+    			ray.direction.set((i % 100) * 0.01 - 0.3, (i / 100) * 0.01 - 0.3, -1);
+    			if (group.hit(ray, 0, Double.POSITIVE_INFINITY, hit))
+    			{
+    				hits++;
+    			}
+    		}
+    		allocated = threads.getThreadAllocatedBytes(id) - before;
+    	}
+    	assertEquals("rays should hit the group", true, hits > 0);
+    	assertEquals("Group.hit allocated " + allocated + " bytes", 0, allocated);
+
+    	// A record from the allocating hit(Vector3, Point3) has its hit point too, so it is lit the same.
+    	PointLight light = new PointLight();
+    	light.setPosition(new Point3(2, 3, 4));
+    	Color lit = new Color(), expected = new Color();
+    	int compared = 0;
+    	for (int i = 0; i < 10000; i += 97)
+    	{
+    		ray.direction.set((i % 100) * 0.01 - 0.3, (i / 100) * 0.01 - 0.3, -1);
+    		for (Surface surface : group.getSurfaces())
+    		{
+    			HitRecord legacy = surface.hit(ray.direction, ray.origin);
+    			if (legacy == null || !surface.hit(ray, 1e-4, Double.POSITIVE_INFINITY, hit) || legacy.t != hit.t)
+    				continue;
+    			lit.set(light.illuminate(legacy, ray, group));
+    			expected.set(light.illuminate(hit, ray, group));
+    			assertEquals(surface + " lit from its hit point", expected.toString(), lit.toString());
+    			assertEquals(surface + " hit point", hit.point.toString(), legacy.point.toString());
+    			compared++;
+    		}
+    	}
+    	assertEquals("surfaces lit both ways, found " + compared, true, compared > 3);
+    }
+
+    /**
+     * This tests that a SphereSet finds the same hits as intersecting each
+     * of its spheres in turn.
+     */
+    @Test
+    public void testSphereSet()
+    {
+    	ArrayList<Sphere> spheres = new ArrayList<Sphere>();
+    	for (int k = 0; k < 203; k++)
+    	{
+    		Sphere sphere = new Sphere();
+    		sphere.setCenter(new Point3(k % 13 - 6, (k / 13) % 5 - 2, -2 - k % 7));
+    		sphere.setRadius(0.2 + (k % 3) * 0.15);
+    		spheres.add(sphere);
+    	}
+    	SphereSet set = new SphereSet(spheres);
+    	Ray ray = new Ray(new Point3(0.1, 0.2, 5), new Vector3());
+    	HitRecord expected = new HitRecord();
+    	HitRecord actual = new HitRecord();
+    	for (int i = 0; i < 2500; i++)
+    	{
+    		ray.direction.set((i % 50) * 0.04 - 1, (i / 50) * 0.04 - 1, -1);
+    		boolean found = false;
+    		double tMax = Double.POSITIVE_INFINITY;
+    		for (Sphere sphere : spheres)
+    		{
+    			if (sphere.intersect(ray, 0, tMax, expected))
+    			{
+    				found = true;
+    				tMax = expected.t;
+    			}
+    		}
+    		String message = "SphereSet fails for direction " + ray.direction;
+    		assertEquals(message, found, set.intersect(ray, 0, Double.POSITIVE_INFINITY, actual));
+    		assertEquals(message, found, set.occluded(ray.origin, ray.direction, 0, Double.POSITIVE_INFINITY));
+    		if (found)
+    		{
+    			assertEquals(message, expected.surface, actual.surface);
+    			assertEquals(message, expected.t, actual.t, 0);
+    		}
+    	}
+    }
+
+    /**
+     * This tests that a linear hierarchy renders its spheres as SphereSets,
+     * and that the image is the same as tracing them one at a time.
+     */
+    @Test
+    public void testSphereSetRender() throws Exception
+    {
+    	StringBuilder spheres = new StringBuilder(
+    			"<material name=\"red\" type=\"Lambertian\"><color>0.8 0.1 0.1</color></material>");
+    	for (int k = 0; k < 120; k++)
+    	{
+    		// Spheres come in pairs in the same place, so that ties must go to the one added first.
+    		int p = k / 2;
+    		spheres.append("<surface type=\"Sphere\"><material ref=\"" + ((k % 2 == 0) ? "red" : "grey") + "\"/>"
+    				+ "<center>" + (p % 10 * 0.3 - 1.4) + " " + (p / 10 * 0.3 - 0.8) + " " + (-(p % 3) * 0.4) + "</center>"
+    				+ "<radius>" + (0.1 + (p % 4) * 0.03) + "</radius></surface>");
+    	}
+    	byte[] xml = new String(testSceneXML(), "UTF-8").replace("</scene>", spheres + "</scene>").getBytes("UTF-8");
+    	RenderOptions options = new RenderOptions();
+    	options.setTileSize(8);
+    	Scene scene = (Scene) new Parser().parse(new ByteArrayInputStream(xml), Scene.class);
+    	RayTracer.renderImage(scene, options);
+    	Image expected = scene.getImage();
+
+    	options.setAcceleration("linear");
+    	scene = (Scene) new Parser().parse(new ByteArrayInputStream(xml), Scene.class);
+    	RayTracer.renderImage(scene, options);
+    	int sets = ((LinearBVH) scene.getRoot()).getSphereSetCount();
+    	assertEquals("linear hierarchy should pack spheres into sets, found " + sets, true, sets > 0);
+    	assertSameImage("render with sphere sets", expected, scene.getImage());
+
+    	// A set's sphere loses a tie with a surface added after the set's first sphere but before it.
+    	Group group = new Group();
+    	Sphere far = new Sphere();
+    	far.setCenter(new Point3(5, 5, -5));
+    	Sphere first = new Sphere() { };
+    	first.setCenter(new Point3(0, 0, -3));
+    	Sphere same = new Sphere();
+    	same.setCenter(new Point3(0, 0, -3));
+    	group.add(far);
+    	group.add(first);
+    	group.add(same);
+    	LinearBVH linear = new LinearBVH(group);
+    	HitRecord hit = new HitRecord();
+    	Ray ray = new Ray(new Point3(0, 0, 0), new Vector3(0, 0, -1));
+    	assertEquals("ray should hit", true, linear.intersect(ray, 0, Double.POSITIVE_INFINITY, hit));
+    	assertEquals("spheres of the leaf packed", 1, linear.getSphereSetCount());
+    	assertEquals("tie should go to the surface added first", first, hit.surface);
+
+    	// Only the two hierarchies are accepted, so a misspelt one is not quietly traced as bvh.
+    	for (String acceleration : new String[] { "bvh", "linear", "lineer", "" })
+    	{
+    		boolean accepted = true;
+    		try
+    		{
+    			options.setAcceleration(acceleration);
+    		}
+    		catch (Error e)
+    		{
+    			accepted = false;
+    		}
+    		assertEquals("acceleration \"" + acceleration + "\"", acceleration.equals("bvh") || acceleration.equals("linear"), accepted);
+    	}
+    }
+
+    /**
+     * This tests that rays traced together as a packet get the same hits
+     * as rays traced one at a time, for coherent and divergent packets.
+     */
+    @Test
+    public void testRayPacket()
+    {
+    	Group group = new Group();
+    	for (int k = 0; k < 300; k++)
+    	{
+    		Sphere sphere = new Sphere();
+    		sphere.setCenter(new Point3(k % 17 - 8, (k / 17) % 6 - 3, -3 - k % 5));
+    		sphere.setRadius(0.3);
+    		group.add(sphere);
+    		Box box = new Box();
+    		box.setMinPt(new Point3(k % 11 - 5, k % 3 - 1, -8 - k % 4));
+    		box.setMaxPt(new Point3(k % 11 - 4.5, k % 3 - 0.5, -7.5 - k % 4));
+    		group.add(box);
+    	}
+    	Plane plane = new Plane();
+    	plane.setPoint(new Point3(0, -4, 0));
+    	plane.setNormal(new Vector3(0, 1, 0));
+    	group.add(plane);
+
+    	Point3 origin = new Point3(0.1, 0.2, 5);
+    	RayPacket packet = new RayPacket();
+    	Ray ray = new Ray(origin, new Vector3());
+    	HitRecord single = new HitRecord();
+    	for (int p = 0; p < 400; p++)
+    	{
+    		// Every tenth packet points its rays every which way.
+    		double spread = (p % 10 == 0) ? 1.5 : 0.02;
+    		double x = (p % 20) * 0.08 - 0.8, y = (p / 20) * 0.08 - 0.8;
+    		packet.reset(origin, RayPacket.MAX_SIZE);
+    		for (int k = 0; k < RayPacket.MAX_SIZE; k++)
+    		{
+    			packet.rays[k].direction.set(x + (k % 4) * spread - 2 * spread, y + (k / 4) * spread - 2 * spread, -1);
+    		}
+    		packet.prepare();
+    		group.hit(packet, 0, Double.POSITIVE_INFINITY);
+    		for (int k = 0; k < RayPacket.MAX_SIZE; k++)
+    		{
+    			ray.direction.set(packet.rays[k].direction);
+    			String message = "packet ray fails for direction " + ray.direction;
+    			boolean found = group.hit(ray, 0, Double.POSITIVE_INFINITY, single);
+    			assertEquals(message, found, packet.hit[k]);
+    			if (found)
+    			{
+    				assertEquals(message, single.surface, packet.hits[k].surface);
+    				assertEquals(message, single.t, packet.hits[k].t, 0);
+    				assertEquals(message, single.normal.x, packet.hits[k].normal.x, 0);
+    				assertEquals(message, single.normal.y, packet.hits[k].normal.y, 0);
+    				assertEquals(message, single.normal.z, packet.hits[k].normal.z, 0);
+    			}
+    		}
+    	}
+
+    	// Only 2x2 and 4x4 packets, or single rays, are traced.
+    	RenderOptions options = new RenderOptions();
+    	for (int size = 0; size <= 5; size++)
+    	{
+    		boolean accepted = true;
+    		try
+    		{
+    			options.setPacketSize(size);
+    		}
+    		catch (Error e)
+    		{
+    			accepted = false;
+    		}
+    		assertEquals("packet size " + size, size == 1 || size == 2 || size == 4, accepted);
+    	}
+    }
+
+    /**
+     * Build a small scene of spheres over a plane, lit by one point light,
+     * for tests that render whole images.
+     * @param width the image width
+     * @param height the image height
+     * @return the scene
+     */
+    private static Scene buildTestScene(int width, int height)
+    {
+    	Scene scene = new Scene();
+    	Camera camera = new Camera();
+    	camera.setViewPoint(new Point3(0, 0, 6));
+    	scene.setCamera(camera);
+    	scene.setImage(new Image(width, height));
+    	for (int k = 0; k < 12; k++)
+    	{
+    		Sphere sphere = new Sphere();
+    		sphere.setCenter(new Point3(k % 4 - 1.5, k / 4 - 1, -k % 3));
+    		sphere.setRadius(0.3 + 0.05 * (k % 3));
+    		scene.addSurface(sphere);
+    	}
+    	Plane plane = new Plane();
+    	plane.setPoint(new Point3(0, -2, 0));
+    	plane.setNormal(new Vector3(0, 1, 0));
+    	scene.addSurface(plane);
+    	PointLight light = new PointLight();
+    	light.setPosition(new Point3(3, 5, 4));
+    	light.setIntensity(new Color(30, 30, 30));
+    	scene.addLight(light);
+    	return scene;
+    }
+
+    /**
+     * Assert that two images have exactly the same pixels.
+     */
+    private static void assertSameImage(String message, Image expected, Image actual)
+    {
+    	Color a = new Color(), b = new Color();
+    	for (int y = 0; y < expected.getHeight(); y++)
+    	{
+    		for (int x = 0; x < expected.getWidth(); x++)
+    		{
+    			expected.getPixelColor(a, x, y);
+    			actual.getPixelColor(b, x, y);
+    			String where = message + " at (" + x + ", " + y + ")";
+    			assertEquals(where, a.r, b.r, 0);
+    			assertEquals(where, a.g, b.g, 0);
+    			assertEquals(where, a.b, b.b, 0);
+    		}
+    	}
+    }
+
+    /**
+     * This tests that a progressive render reports every pass and ends with
+     * exactly the image of a normal render.
+     */
+    @Test
+    public void testProgressiveRender()
+    {
+    	RenderOptions options = new RenderOptions();
+    	options.setTileSize(8);
+    	Scene scene = buildTestScene(45, 37);
+    	RayTracer.renderImage(scene, options);
+    	Image expected = new Image(scene.getImage());
+
+    	scene.setImage(new Image(45, 37));
+    	final ArrayList<Integer> strides = new ArrayList<Integer>();
+    	RayTracer.renderProgressive(scene, options, new ProgressListener() {
+    		public void passComplete(Image image, int stride)
+    		{
+    			strides.add(stride);
+    		}
+    	});
+    	assertEquals("progressive passes", "[16, 8, 4, 2, 1]", strides.toString());
+    	assertSameImage("progressive render differs", expected, scene.getImage());
+
+    	// Rays that miss leave what the image held, in tiles of one color or many.
+    	for (int samples = 1; samples <= 4; samples *= 4)
+    	{
+    		options.setMaxSamples(samples);
+    		Image[] images = new Image[2];
+    		for (int k = 0; k < 2; k++)
+    		{
+    			images[k] = new Image(45, 37);
+    			for (int x = 0; x < 45; x++)
+    				for (int y = 0; y < 37; y++)
+    					images[k].setPixelRGB(0.2, 0.3, (x < 24) ? 0.4 : x / 45.0, x, y);
+    			scene.setImage(images[k]);
+    			if (k == 0)
+    				RayTracer.renderImage(scene, options);
+    			else
+    				RayTracer.renderProgressive(scene, options, null);
+    		}
+    		assertSameImage("progressive render over an image, " + samples + " samples", images[0], images[1]);
+    	}
+    }
+
+    /**
+     * This tests that adaptive supersampling spends extra rays on some
+     * pixels but not all, and gives the same image however it is tiled.
+     */
+    @Test
+    public void testAdaptiveSampling()
+    {
+    	int width = 40, height = 30;
+    	RenderOptions options = new RenderOptions();
+    	options.setMaxSamples(16);
+    	options.setMinSamples(4);
+    	Scene scene = buildTestScene(width, height);
+    	Image image = scene.getImage();
+    	long samples = RayTracer.renderTileAdaptive(scene, new CameraRayGenerator(scene.getCamera(), image),
+    			new Tile(0, 0, 0, width, height), options, new RenderScratch());
+    	long pixels = width * height;
+    	assertEquals("some pixels should get extra samples (" + samples + ")", true, samples > 4 * pixels);
+    	assertEquals("most pixels should not need 16 samples (" + samples + ")", true, samples < 8 * pixels);
+
+    	scene.setImage(new Image(width, height));
+    	options.setThreads(3);
+    	options.setTileSize(7);
+    	RayTracer.renderImage(scene, options);
+    	assertSameImage("supersampled render depends on tiling", image, scene.getImage());
+
+    	// A maximum that is not a multiple of the batch size is still the
+    	// maximum; a negative threshold makes every pixel take it.
+    	options.setMaxSamples(6);
+    	options.setSampleThreshold(-1);
+    	samples = RayTracer.renderTileAdaptive(scene, new CameraRayGenerator(scene.getCamera(), image),
+    			new Tile(0, 0, 0, width, height), options, new RenderScratch());
+    	assertEquals("samples with a maximum of 6", 6 * pixels, samples);
+    }
+
+    /**
+     * This tests that every pixel order visits each cell exactly once, that
+     * the Hilbert order only ever steps to a neighbour, and that the order
+     * does not change the rendered image.
+     */
+    @Test
+    public void testPixelOrder()
+    {
+    	String[] orders = { PixelOrder.COLUMN, PixelOrder.ROW, PixelOrder.MORTON, PixelOrder.HILBERT };
+    	int[][] sizes = { { 1, 1 }, { 5, 3 }, { 8, 8 }, { 13, 7 }, { 2, 17 } };
+    	for (String order : orders)
+    	{
+    		for (int[] size : sizes)
+    		{
+    			int[] cells = PixelOrder.cells(order, size[0], size[1]);
+    			boolean[] seen = new boolean[size[0] * size[1]];
+    			String message = order + " order fails for " + size[0] + "x" + size[1];
+    			assertEquals(message, seen.length, cells.length);
+    			for (int cell : cells)
+    			{
+    				int x = cell >>> 16, y = cell & 0xffff;
+    				assertEquals(message, true, x < size[0] && y < size[1] && !seen[y * size[0] + x]);
+    				seen[y * size[0] + x] = true;
+    			}
+    		}
+    	}
+    	int[] hilbert = PixelOrder.cells(PixelOrder.HILBERT, 16, 16);
+    	for (int k = 1; k < hilbert.length; k++)
+    	{
+    		int dx = Math.abs((hilbert[k] >>> 16) - (hilbert[k - 1] >>> 16));
+    		int dy = Math.abs((hilbert[k] & 0xffff) - (hilbert[k - 1] & 0xffff));
+    		assertEquals("hilbert order jumps at step " + k, 1, dx + dy);
+    	}
+
+    	// Cells hold 16 bits of each coordinate, so larger grids are refused rather than corrupted, or walked for ever.
+    	assertEquals("a 65536 cell row", 65535, PixelOrder.cells(PixelOrder.ROW, 65536, 1)[65535] >>> 16);
+    	for (String order : orders)
+    	{
+    		for (int[] size : new int[][] { { 100000, 1 }, { 1, 65537 } })
+    		{
+    			boolean accepted = true;
+    			try
+    			{
+    				PixelOrder.cells(order, size[0], size[1]);
+    			}
+    			catch (Error e)
+    			{
+    				accepted = false;
+    			}
+    			assertEquals(order + " order of a " + size[0] + "x" + size[1] + " grid", false, accepted);
+    		}
+    	}
+
+    	RenderOptions options = new RenderOptions();
+    	options.setTileSize(6);
+    	Scene scene = buildTestScene(41, 29);
+    	RayTracer.renderImage(scene, options);
+    	Image expected = scene.getImage();
+    	for (String order : orders)
+    	{
+    		options.setPixelOrder(order);
+    		scene.setImage(new Image(41, 29));
+    		RayTracer.renderImage(scene, options);
+    		assertSameImage(order + " order changes the image", expected, scene.getImage());
+    	}
+    }
+
+    /**
+     * Cancels a render once it has finished a number of tiles.  With one
+     * thread the render stops after exactly that many.
+     */
+    static class StopAfterTiles extends RenderControl
+    {
+    	private final AtomicInteger left;
+
+    	StopAfterTiles(int tiles)
+    	{
+    		left = new AtomicInteger(tiles);
+    	}
+
+    	public void tileFinished(Tile tile)
+    	{
+    		if (left.decrementAndGet() <= 0)
+    			cancel();
+    	}
+    }
+
+    /**
+     * This tests that a render stopped part way returns whole finished
+     * tiles, exactly as a full render draws them, and leaves the rest alone.
+     */
+    @Test
+    public void testRenderControl() throws Exception
+    {
+    	int width = 40, height = 30;
+    	RenderOptions options = new RenderOptions();
+    	options.setThreads(1);
+    	options.setTileSize(8);
+    	Scene scene = buildTestScene(width, height);
+    	RenderResult full = RayTracer.renderImage(scene, options, null);
+    	assertEquals("render without a control should finish", true, full.isComplete());
+    	Image expected = scene.getImage();
+
+    	RenderControl cancelled = new RenderControl();
+    	cancelled.cancel();
+    	scene.setImage(new Image(width, height));
+    	RenderResult none = RayTracer.renderImage(scene, options, cancelled);
+    	assertEquals("cancelled render should do nothing", 0, none.getTilesFinished());
+    	assertEquals("cancelled render should cover nothing", 0.0, none.getCoverage(), 0);
+
+    	// Stop after a fixed number of tiles, so the test does not depend on timing.
+    	RenderControl partway = new StopAfterTiles(7);
+    	scene.setImage(new Image(width, height));
+    	RenderResult partial = RayTracer.renderImage(scene, options, partway);
+    	assertEquals("render should stop part way (" + partial + ")", 7, partial.getTilesFinished());
+    	Image image = partial.getImage();
+    	Color a = new Color(), b = new Color();
+    	for (int x = 0; x < width; x++)
+    	{
+    		for (int y = 0; y < height; y++)
+    		{
+    			image.getPixelColor(a, x, y);
+    			if (partial.isCovered(x, y))
+    				expected.getPixelColor(b, x, y);
+    			else
+    				b.set(0, 0, 0);
+    			String where = "partial render differs at (" + x + ", " + y + ")";
+    			assertEquals(where, b.r, a.r, 0);
+    			assertEquals(where, b.g, a.g, 0);
+    			assertEquals(where, b.b, a.b, 0);
+    		}
+    	}
+
+    	// The coverage is each finished tile, drawn white.
+    	ByteArrayOutputStream png = new ByteArrayOutputStream();
+    	partial.writeCoverage(png);
+    	BufferedImage coverage = ImageIO.read(new ByteArrayInputStream(png.toByteArray()));
+    	for (Tile tile : partial.getTiles())
+    	{
+    		for (int x = tile.x0; x < tile.x1; x++)
+    		{
+    			for (int y = tile.y0; y < tile.y1; y++)
+    			{
+    				String where = "coverage differs at (" + x + ", " + y + ")";
+    				assertEquals(where, partial.isFinished(tile), partial.isCovered(x, y));
+    				assertEquals(where, partial.isFinished(tile) ? 0xffffff : 0,
+    						coverage.getRGB(x, height - 1 - y) & 0xffffff);
+    			}
+    		}
+    	}
+    }
+
+    /**
+     * Test that a render interrupted part way and resumed from its checkpoint
+     * matches an uninterrupted render, and that a record cut short by a crash
+     * is rendered again rather than read back.
+     */
+    @Test
+    public void testCheckpointResume() throws Exception
+    {
+    	int width = 40, height = 30;
+    	RenderOptions options = new RenderOptions();
+    	options.setThreads(1);
+    	options.setTileSize(8);
+    	Scene scene = buildTestScene(width, height);
+    	RayTracer.renderImage(scene, options);
+    	Image expected = scene.getImage();
+
+    	File file = File.createTempFile("ray", ".ckpt");
+    	file.deleteOnExit();
+    	RenderControl partway = new StopAfterTiles(7);
+    	scene.setImage(new Image(width, height));
+    	RenderResult partial = RayTracer.renderImage(scene, options, partway, file, 1);
+    	assertEquals("render should stop part way (" + partial + ")", 7, partial.getTilesFinished());
+
+    	// Wipe the end of the last record, as a crash before it reached the disk would.
+    	RandomAccessFile raw = new RandomAccessFile(file, "rw");
+    	byte[] bytes = new byte[(int) raw.length()];
+    	raw.readFully(bytes);
+    	int last = bytes.length - 1;
+    	while (bytes[last] == 0)
+    		last--;
+    	raw.seek(last - 100);
+    	raw.write(new byte[101]);
+    	raw.close();
+
+    	options.setResume(true);
+    	scene.setImage(new Image(width, height));
+    	RenderResult resumed = RayTracer.renderImage(scene, options, null, file, 1);
+    	assertEquals("resumed render should finish", true, resumed.isComplete());
+    	assertSameImage("resumed render", expected, scene.getImage());
+
+    	RenderControl cancelled = new RenderControl();
+    	cancelled.cancel();
+    	scene.setImage(new Image(width, height));
+    	RenderResult all = RayTracer.renderImage(scene, options, cancelled, file, 1);
+    	assertEquals("every tile should be read back", true, all.isComplete());
+    	assertSameImage("restored render", expected, scene.getImage());
+
+    	// A checkpoint of a different render must not be used, and is started over.
+    	RenderResult other = RayTracer.renderImage(scene, options, cancelled, file, 2);
+    	assertEquals("checkpoint with another key should be ignored", 0, other.getTilesFinished());
+    	RenderResult wiped = RayTracer.renderImage(scene, options, cancelled, file, 1);
+    	assertEquals("mismatched checkpoint should be started over", 0, wiped.getTilesFinished());
+
+    	// Nor is one saved with another pixel format, whose stored values differ.
+    	File sceneFile = File.createTempFile("ray", ".xml");
+    	sceneFile.deleteOnExit();
+    	Files.write(sceneFile.toPath(), testSceneXML());
+    	long floats = RenderCheckpoint.key(sceneFile, options);
+    	scene.setImage(new Image(width, height));
+    	RayTracer.renderImage(scene, options, null, file, floats);
+    	options.setPixelFormat("half");
+    	long halves = RenderCheckpoint.key(sceneFile, options);
+    	assertEquals("-pixels changes the key", false, floats == halves);
+    	scene.setImage(options.createImage(width, height));
+    	RenderResult half = RayTracer.renderImage(scene, options, cancelled, file, halves);
+    	assertEquals("checkpoint of float pixels resumed as half", 0, half.getTilesFinished());
+    	options.setPixelFormat("float");
+
+    	// A checkpoint larger than one mapping is mapped in segments, and reads back whole.
+    	ArrayList<Tile> tiles = Tile.split(width, height, 8);
+    	File segmented = File.createTempFile("ray", ".ckpt");
+    	segmented.deleteOnExit();
+    	RenderCheckpoint checkpoint = new RenderCheckpoint(segmented, expected, tiles, 7, false, 2000) { };
+    	for (int k = tiles.size() - 1; k >= 0; k--)
+    		checkpoint.append(tiles.get(k), expected, tiles.get(k).size());
+    	checkpoint.close();
+    	assertEquals("checkpoint should span several mappings", true, segmented.length() > 2000);
+    	Image restored = new Image(width, height);
+    	checkpoint = new RenderCheckpoint(segmented, restored, tiles, 7, true, 2000) { };
+    	checkpoint.close();
+    	assertEquals("every tile should be read back from the segments", tiles.size(), checkpoint.getRestoredTiles());
+    	assertSameImage("checkpoint read back from segments", expected, restored);
+    }
+
+    /**
+     * @return the XML of a small scene, for tests that send scenes as their XML
+     */
+    private static byte[] testSceneXML() throws Exception
+    {
+    	return ("<scene>"
+    			+ "<camera><viewPoint>0 2 6</viewPoint><viewDir>0 -0.3 -1</viewDir><viewUp>0 1 0</viewUp>"
+    			+ "<projNormal>0 0.3 1</projNormal><projDistance>1.5</projDistance>"
+    			+ "<viewWidth>1.6</viewWidth><viewHeight>1.2</viewHeight></camera>"
+    			+ "<image>48 36</image>"
+    			+ "<material name=\"grey\" type=\"Lambertian\"><color>0.6 0.6 0.6</color></material>"
+    			+ "<surface type=\"Plane\"><material ref=\"grey\"/><point>0 -1 0</point><normal>0 1 0</normal></surface>"
+    			+ "<surface type=\"Sphere\"><material ref=\"grey\"/><center>0 0 0</center><radius>1</radius></surface>"
+    			+ "<light type=\"PointLight\"><position>3 5 4</position><intensity>30 30 30</intensity></light>"
+    			+ "</scene>").getBytes("UTF-8");
+    }
+
+    /**
+     * A sphere that cannot be intersected on a worker's threads, so that
+     * every tile a worker takes fails.
+     */
+    public static class WorkerFailingSphere extends Sphere
+    {
+    	public boolean intersect(Ray ray, double tMin, double tMax, HitRecord out)
+    	{
+    		if (Thread.currentThread().getName().startsWith(RenderWorker.THREAD_NAME))
+    			throw new Error("tile failed on a worker");
+    		return super.intersect(ray, tMin, tMax, out);
+    	}
+    }
+
+    /**
+     * Test that rendering on workers matches rendering locally, when one of
+     * the workers dies holding a tile and when every worker is lost.
+     */
+    @Test
+    public void testDistributedRender() throws Exception
+    {
+    	byte[] xml = testSceneXML();
+    	RenderOptions options = new RenderOptions();
+    	options.setThreads(2);
+    	options.setTileSize(8);
+    	Scene scene = (Scene) new Parser().parse(new ByteArrayInputStream(xml), Scene.class);
+    	RayTracer.renderImage(scene, options);
+    	Image expected = scene.getImage();
+
+    	RenderWorker first = new RenderWorker(0, 2), second = new RenderWorker(0, 1);
+    	new Thread(first).start();
+    	new Thread(second).start();
+    	// Takes a job and a tile, then hangs up without returning it.
+    	final ServerSocket dying = new ServerSocket(0);
+    	new Thread(new Runnable() {
+    		public void run()
+    		{
+    			try
+    			{
+    				while (true)
+    				{
+    					Socket socket = dying.accept();
+    					DataInputStream in = new DataInputStream(socket.getInputStream());
+    					DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+    					in.readInt();
+    					in.readInt();
+    					RenderWorker.readOptions(in);
+    					in.readFully(new byte[in.readInt()]);
+    					out.writeInt(RenderWorker.MAGIC);
+    					out.writeInt(4);
+    					out.flush();
+    					in.readInt();
+    					socket.close();
+    				}
+    			}
+    			catch (Exception e)
+    			{
+    				// Closed at the end of the test.
+    			}
+    		}
+    	}).start();
+    	InetSocketAddress dead = new InetSocketAddress("localhost", dying.getLocalPort());
+
+    	try
+    	{
+    		RenderCoordinator coordinator = new RenderCoordinator(xml, options,
+    				Arrays.asList(dead, first.getAddress(), second.getAddress()));
+    		scene = (Scene) new Parser().parse(new ByteArrayInputStream(xml), Scene.class);
+    		RenderResult result = coordinator.render(scene);
+    		assertEquals("distributed render should finish", true, result.isComplete());
+    		assertSameImage("distributed render", expected, scene.getImage());
+
+    		// Workers parse with the coordinator's choice of parser.
+    		options.setStreamingParser(true);
+    		coordinator = new RenderCoordinator(xml, options, Arrays.asList(first.getAddress()));
+    		scene = (Scene) new Parser().parse(new ByteArrayInputStream(xml), Scene.class);
+    		result = coordinator.render(scene);
+    		assertSameImage("distributed render parsed as a stream", expected, scene.getImage());
+    		options.setStreamingParser(false);
+
+    		// A worker that fails a tile hangs up at once rather than leaving it to time out.
+    		byte[] failing = new String(xml, "UTF-8").replace("type=\"Sphere\"",
+    				"type=\"" + WorkerFailingSphere.class.getName() + "\"").getBytes("UTF-8");
+    		long start = System.currentTimeMillis();
+    		coordinator = new RenderCoordinator(failing, options, Arrays.asList(first.getAddress()));
+    		scene = (Scene) new Parser().parse(new ByteArrayInputStream(failing), Scene.class);
+    		result = coordinator.render(scene);
+    		assertEquals("render after a worker fails a tile should finish", true, result.isComplete());
+    		assertEquals("failed tile taken back before the read timeout", true,
+    				System.currentTimeMillis() - start < RenderCoordinator.READ_TIMEOUT);
+    		assertSameImage("render after a worker fails a tile", expected, scene.getImage());
+
+    		// A scene of impossible length is refused.
+    		Socket socket = new Socket(first.getAddress().getAddress(), first.getAddress().getPort());
+    		try
+    		{
+    			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+    			out.writeInt(RenderWorker.MAGIC);
+    			out.writeInt(RenderWorker.VERSION);
+    			RenderWorker.writeOptions(out, options);
+    			out.writeInt(-1);
+    			out.flush();
+    			socket.setSoTimeout(10000);
+    			assertEquals("worker should hang up on a bad length", -1, socket.getInputStream().read());
+    		}
+    		finally
+    		{
+    			socket.close();
+    		}
+
+    		coordinator = new RenderCoordinator(xml, options, Arrays.asList(dead));
+    		scene = (Scene) new Parser().parse(new ByteArrayInputStream(xml), Scene.class);
+    		result = coordinator.render(scene);
+    		assertEquals("render with no working workers should finish", true, result.isComplete());
+    		assertSameImage("render after losing every worker", expected, scene.getImage());
+    	}
+    	finally
+    	{
+    		first.close();
+    		second.close();
+    		dying.close();
+    	}
+    }
+
+    /**
+     * Test that the render server's image matches a local render of the same
+     * view, and that sending the scene again uses the parsed copy.
+     */
+    @Test
+    public void testRenderServer() throws Exception
+    {
+    	byte[] xml = testSceneXML();
+    	RenderOptions options = new RenderOptions();
+    	options.setThreads(2);
+    	options.setTileSize(8);
+    	Scene scene = (Scene) new Parser().parse(new ByteArrayInputStream(xml), Scene.class);
+    	scene.getCamera().setViewPoint(new Point3(0.5, 2, 6));
+    	scene.setImage(new Image(40, 30));
+    	RayTracer.renderImage(scene, options);
+    	ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    	scene.getImage().write(expected);
+
+    	// A scene kept between requests keeps its flattened hierarchy.
+    	options.setAcceleration("linear");
+    	RayTracer.prepareRoot(scene, options);
+    	Surface root = scene.getRoot();
+    	RayTracer.prepareRoot(scene.share(scene.getCamera(), new Image(4, 3)), options);
+    	RayTracer.renderImage(scene, options);
+    	assertEquals("linear hierarchy rebuilt", root, scene.getRoot());
+    	options.setAcceleration("bvh");
+
+    	// Named objects belong to the scene that names them.
+    	Parser parser = new Parser();
+    	parser.parse(new ByteArrayInputStream(xml), Scene.class);
+    	byte[] other = "<scene><surface type=\"Sphere\"><material ref=\"grey\"/></surface></scene>".getBytes("UTF-8");
+    	Parser[] parsers = { parser, new Parser() };
+    	for (Parser later : parsers)
+    	{
+    		try
+    		{
+    			later.parse(new ByteArrayInputStream(other), Scene.class);
+    			assertEquals("reference resolved to another scene's object", true, false);
+    		}
+    		catch (Error e)
+    		{
+    			assertEquals("unresolved reference", "Unresolved reference: grey", e.getMessage());
+    		}
+    	}
+
+    	RenderServer server = new RenderServer(0, 2, new String[] { "-threads", "2", "-tile", "8" });
+    	server.start();
+    	try
+    	{
+    		String query = "viewPoint=0.5,2,6&width=40&height=30";
+    		for (int k = 0; k < 2; k++)
+    		{
+    			HttpURLConnection connection = (HttpURLConnection)
+    					new URL("http://localhost:" + server.getPort() + "/render?" + query).openConnection();
+    			connection.setRequestMethod("POST");
+    			connection.setDoOutput(true);
+    			connection.getOutputStream().write(xml);
+    			assertEquals("status", 200, connection.getResponseCode());
+    			assertEquals("cache", k == 0 ? "miss" : "hit", connection.getHeaderField("X-Scene-Cache"));
+    			ByteArrayOutputStream png = new ByteArrayOutputStream();
+    			InputStream in = connection.getInputStream();
+    			byte[] buffer = new byte[4096];
+    			for (int n = in.read(buffer); n > 0; n = in.read(buffer))
+    				png.write(buffer, 0, n);
+    			assertEquals("server image differs from a local render", true,
+    					Arrays.equals(expected.toByteArray(), png.toByteArray()));
+    		}
+
+    		HttpURLConnection connection = (HttpURLConnection)
+    				new URL("http://localhost:" + server.getPort() + "/render?zoom=2").openConnection();
+    		connection.setRequestMethod("POST");
+    		connection.setDoOutput(true);
+    		connection.getOutputStream().write(xml);
+    		assertEquals("unknown parameter should be refused", 400, connection.getResponseCode());
+
+    		connection = (HttpURLConnection)
+    				new URL("http://localhost:" + server.getPort() + "/render?bands=8").openConnection();
+    		connection.setRequestMethod("POST");
+    		connection.setDoOutput(true);
+    		connection.getOutputStream().write(xml);
+    		assertEquals("command line only option should be refused", 400, connection.getResponseCode());
+
+    		// Malformed values and requests beyond the server's limits are the client's fault, not the server's.
+    		for (String bad : new String[] { "samples=abc", "threads=100000", "width=100000&height=100000", "viewPoint=0,x,1" })
+    		{
+    			connection = (HttpURLConnection)
+    					new URL("http://localhost:" + server.getPort() + "/render?" + bad).openConnection();
+    			connection.setRequestMethod("POST");
+    			connection.setDoOutput(true);
+    			connection.getOutputStream().write(xml);
+    			assertEquals(bad + " should be refused", 400, connection.getResponseCode());
+    		}
+
+    		connection = (HttpURLConnection)
+    				new URL("http://localhost:" + server.getPort() + "/render?" + query + "&format=pfm").openConnection();
+    		connection.setRequestMethod("POST");
+    		connection.setDoOutput(true);
+    		connection.getOutputStream().write(xml);
+    		assertEquals("status", 200, connection.getResponseCode());
+    		assertEquals("content type", "image/x-portable-floatmap", connection.getContentType());
+    		File pfm = File.createTempFile("ray", ".pfm");
+    		try
+    		{
+    			Files.copy(connection.getInputStream(), pfm.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    			assertSameImage("server floats", scene.getImage(), FloatImageIO.readPfm(pfm));
+    		}
+    		finally
+    		{
+    			pfm.delete();
+    		}
+    	}
+    	finally
+    	{
+    		server.stop();
+    	}
+
+    	// The server's own options choose the parser and the pixel format.
+    	scene.setImage(new HalfImage(40, 30));
+    	RayTracer.renderImage(scene, options);
+    	expected.reset();
+    	scene.getImage().write(expected);
+    	server = new RenderServer(0, 1, new String[] { "-threads", "2", "-tile", "8", "-stream", "-pixels", "half" });
+    	server.start();
+    	try
+    	{
+    		HttpURLConnection connection = (HttpURLConnection)
+    				new URL("http://localhost:" + server.getPort() + "/render?viewPoint=0.5,2,6&width=40&height=30").openConnection();
+    		connection.setRequestMethod("POST");
+    		connection.setDoOutput(true);
+    		connection.getOutputStream().write(xml);
+    		assertEquals("status", 200, connection.getResponseCode());
+    		ByteArrayOutputStream png = new ByteArrayOutputStream();
+    		InputStream in = connection.getInputStream();
+    		byte[] buffer = new byte[4096];
+    		for (int n = in.read(buffer); n > 0; n = in.read(buffer))
+    			png.write(buffer, 0, n);
+    		assertEquals("server should render into half images", true,
+    				Arrays.equals(expected.toByteArray(), png.toByteArray()));
+    	}
+    	finally
+    	{
+    		server.stop();
+    	}
+    }
+
+    /**
+     * Test that a batch renders every scene it finds as a single render
+     * would, and carries on past a scene that cannot be parsed.
+     */
+    @Test
+    public void testBatchRenderer() throws Exception
+    {
+    	byte[] xml = testSceneXML();
+    	RenderOptions options = new RenderOptions();
+    	options.setThreads(2);
+    	options.setJobs(2);
+    	Scene scene = (Scene) new Parser().parse(new ByteArrayInputStream(xml), Scene.class);
+    	RayTracer.renderImage(scene, options);
+    	ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    	scene.getImage().write(expected);
+
+    	File dir = Files.createTempDirectory("batch").toFile();
+    	File sub = new File(dir, "more");
+    	sub.mkdir();
+    	File[] good = { new File(dir, "a.xml"), new File(dir, "b.xml"), new File(sub, "c.xml") };
+    	for (File file : good)
+    	{
+    		FileOutputStream out = new FileOutputStream(file);
+    		out.write(xml);
+    		out.close();
+    	}
+    	FileOutputStream out = new FileOutputStream(new File(sub, "broken.xml"));
+    	out.write("<scene><camera>".getBytes("UTF-8"));
+    	out.close();
+
+    	ArrayList<File> scenes = new ArrayList<File>();
+    	BatchRenderer.findScenes(dir, scenes);
+    	assertEquals("scenes found", 4, scenes.size());
+    	for (int ioThreads = 0; ioThreads <= 3; ioThreads += 3)
+    	{
+    		options.setIoThreads(ioThreads);
+    		int failed = new BatchRenderer(options).render(scenes);
+    		assertEquals("failed scenes with " + ioThreads + " I/O threads", 1, failed);
+    		for (File file : good)
+    		{
+    			File png = new File(file.getPath() + ".png");
+    			assertEquals(png + " differs from a single render", true,
+    					Arrays.equals(expected.toByteArray(), Files.readAllBytes(png.toPath())));
+    			png.delete();
+    		}
+    	}
+
+    	// Reads hold only the XML, so three I/O threads read three files at once even one job at a time.
+    	options.setJobs(1);
+    	options.setIoThreads(3);
+    	final CountDownLatch together = new CountDownLatch(3);
+    	final AtomicInteger reading = new AtomicInteger(), most = new AtomicInteger();
+    	int failed = new BatchRenderer(options) {
+    		protected byte[] read(File file) throws IOException
+    		{
+    			int now = reading.incrementAndGet();
+    			while (most.get() < now)
+    				most.compareAndSet(most.get(), now);
+    			together.countDown();
+    			try
+    			{
+    				together.await(5, TimeUnit.SECONDS);
+    			}
+    			catch (InterruptedException e)
+    			{
+    				throw new IOException(e);
+    			}
+    			reading.decrementAndGet();
+    			return super.read(file);
+    		}
+    	}.render(scenes);
+    	assertEquals("failed scenes, reading ahead", 1, failed);
+    	assertEquals("files read at once by one job", 3, most.get());
+    	for (File file : good)
+    	{
+    		assertEquals(file + ".png", true, new File(file.getPath() + ".png").delete());
+    		file.delete();
+    	}
+    	new File(sub, "broken.xml").delete();
+    	sub.delete();
+    	dir.delete();
+    }
+
+    /**
+     * Images handed to an ImageWriter are all written, byte for byte as
+     * Image.write would, by the time flush returns, and a file that cannot be
+     * written is counted rather than stopping the others.
+     */
+    @Test
+    public void testImageWriter() throws Exception
+    {
+    	File dir = Files.createTempDirectory("writer").toFile();
+    	ImageWriter writer = new ImageWriter(2, 1);
+    	Image[] images = new Image[6];
+    	for (int k = 0; k < images.length; k++)
+    	{
+    		images[k] = new Image(40 + k, 30);
+    		for (int y = 0; y < 30; y++)
+    			for (int x = 0; x < 40 + k; x++)
+    				images[k].setPixelRGB(x / 40.0, y / 30.0, k / 6.0, x, y);
+    		writer.write(images[k], new File(dir, k + ".png").getPath());
+    	}
+    	writer.write(images[0], new File(new File(dir, "missing"), "x.png").getPath());
+    	writer.flush();
+    	assertEquals("failures", 1, writer.getFailures());
+    	for (int k = 0; k < images.length; k++)
+    	{
+    		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    		images[k].write(expected);
+    		File png = new File(dir, k + ".png");
+    		assertEquals(png + " differs from Image.write", true,
+    				Arrays.equals(expected.toByteArray(), Files.readAllBytes(png.toPath())));
+    		png.delete();
+    	}
+    	writer.close();
+    	dir.delete();
+    }
+
+    /**
+     * The image written for output has exactly the bytes the per-pixel
+     * Color.gammaCorrect and Color.toInt conversion gave, including for
+     * values on either side of every rounding boundary and values out of
+     * range.
+     */
+    @Test
+    public void testFastImageWrite() throws Exception
+    {
+    	ArrayList<Float> values = new ArrayList<Float>();
+    	for (int q = 0; q < 256; q++)
+    	{
+    		float boundary = (float) Math.pow((q + 0.5) / 255.0, 2.2);
+    		float up = boundary, down = boundary;
+    		for (int k = 0; k < 3; k++)
+    		{
+    			values.add(up);
+    			values.add(down);
+    			up = Math.nextUp(up);
+    			down = Math.nextDown(down);
+    		}
+    	}
+    	float[] special = { 0f, -0f, Float.MIN_VALUE, -1f, 1f, 2f, Float.NaN,
+    			Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY };
+    	for (float value : special)
+    		values.add(value);
+    	Random random = new Random(20051);
+    	while (values.size() % 3 != 0 || values.size() < 3 * 600 * 40)
+    		values.add(random.nextFloat() * 1.2f - 0.1f);
+
+    	int width = 600, height = values.size() / 3 / width;
+    	Image image = new Image(width, height);
+    	for (int y = 0, k = 0; y < height; y++)
+    		for (int x = 0; x < width; x++, k += 3)
+    			image.setPixelRGB(values.get(k), values.get(k + 1), values.get(k + 2), x, y);
+    	ByteArrayOutputStream png = new ByteArrayOutputStream();
+    	image.write(png);
+    	BufferedImage written = ImageIO.read(new ByteArrayInputStream(png.toByteArray()));
+
+    	Color color = new Color();
+    	for (int y = 0; y < height; y++)
+    	{
+    		for (int x = 0; x < width; x++)
+    		{
+    			image.getPixelColor(color, x, y);
+    			color.gammaCorrect(2.2);
+    			assertEquals("pixel " + x + ", " + y, color.toInt(), written.getRGB(x, height - 1 - y) & 0xffffff);
+    		}
+    	}
+    }
+
+    /**
+     * A scene rendered a band at a time and streamed through PngEncoder
+     * decodes to the same pixels as the whole image written by Image.write,
+     * whether or not the height is a multiple of the band height.
+     */
+    @Test
+    public void testStreamedPng() throws Exception
+    {
+    	byte[] xml = testSceneXML();
+    	RenderOptions options = new RenderOptions();
+    	options.setThreads(2);
+    	options.setTileSize(8);
+    	Scene scene = (Scene) new Parser().parse(new ByteArrayInputStream(xml), Scene.class);
+    	RayTracer.renderImage(scene, options);
+    	ByteArrayOutputStream whole = new ByteArrayOutputStream();
+    	scene.getImage().write(whole);
+    	BufferedImage expected = ImageIO.read(new ByteArrayInputStream(whole.toByteArray()));
+
+    	for (int bandRows : new int[] { 7, 12, 1000 })
+    	{
+    		Parser parser = new Parser();
+    		parser.setImageClass(StreamedImage.class);
+    		Scene streamed = (Scene) parser.parse(new ByteArrayInputStream(xml), Scene.class);
+    		assertEquals("a streamed image holds no pixels", true, streamed.getImage() instanceof StreamedImage);
+    		options.setBandRows(bandRows);
+    		ByteArrayOutputStream png = new ByteArrayOutputStream();
+    		RayTracer.renderBands(streamed, options, png);
+    		BufferedImage written = ImageIO.read(new ByteArrayInputStream(png.toByteArray()));
+    		assertEquals("width", expected.getWidth(), written.getWidth());
+    		assertEquals("height", expected.getHeight(), written.getHeight());
+    		for (int y = 0; y < expected.getHeight(); y++)
+    			for (int x = 0; x < expected.getWidth(); x++)
+    				assertEquals(bandRows + "-row bands, pixel " + x + ", " + y, expected.getRGB(x, y), written.getRGB(x, y));
+    	}
+    }
+
+    /**
+     * A scene rendered into a MappedImage by several threads writes the same
+     * pixels as one rendered on the heap, and pixels and rows read back as
+     * written on either side of the boundary between two mappings.
+     */
+    @Test
+    public void testMappedImage() throws Exception
+    {
+    	byte[] xml = testSceneXML();
+    	RenderOptions options = new RenderOptions();
+    	options.setThreads(3);
+    	options.setTileSize(8);
+    	Scene scene = (Scene) new Parser().parse(new ByteArrayInputStream(xml), Scene.class);
+    	RayTracer.renderImage(scene, options);
+    	Parser parser = new Parser();
+    	parser.setImageClass(MappedImage.class);
+    	Scene mapped = (Scene) parser.parse(new ByteArrayInputStream(xml), Scene.class);
+    	assertEquals("parsed as a mapped image", true, mapped.getImage() instanceof MappedImage);
+    	RayTracer.renderImage(mapped, options);
+    	Color expected = new Color(), actual = new Color();
+    	for (int y = 0; y < scene.getImage().getHeight(); y++)
+    	{
+    		for (int x = 0; x < scene.getImage().getWidth(); x++)
+    		{
+    			scene.getImage().getPixelColor(expected, x, y);
+    			mapped.getImage().getPixelColor(actual, x, y);
+    			assertEquals("red " + x + ", " + y, expected.r, actual.r, 0);
+    			assertEquals("green " + x + ", " + y, expected.g, actual.g, 0);
+    			assertEquals("blue " + x + ", " + y, expected.b, actual.b, 0);
+    		}
+    	}
+    	ByteArrayOutputStream png = new ByteArrayOutputStream();
+    	mapped.getImage().write(png);
+    	BufferedImage written = ImageIO.read(new ByteArrayInputStream(png.toByteArray()));
+    	BufferedImage heap = ImageIO.read(new ByteArrayInputStream(pngBytes(scene.getImage())));
+    	for (int y = 0; y < heap.getHeight(); y++)
+    		for (int x = 0; x < heap.getWidth(); x++)
+    			assertEquals("written pixel " + x + ", " + y, heap.getRGB(x, y), written.getRGB(x, y));
+
+    	// Writing a mapped image the way the renderer does closes it, deleting its file.
+    	MappedImage closed = (MappedImage) mapped.getImage();
+    	File output = File.createTempFile("mapped", ".png");
+    	ImageWriter.write(closed, output.getPath(), options);
+    	assertEquals("file deleted once written", false, closed.getFile().exists());
+    	assertEquals("written like the heap image", heap.getRGB(3, 4), ImageIO.read(output).getRGB(3, 4));
+    	output.delete();
+    	boolean readable = true;
+    	try
+    	{
+    		closed.getPixelColor(actual, 0, 0);
+    	}
+    	catch (RuntimeException e)
+    	{
+    		readable = false;
+    	}
+    	assertEquals("a closed image has no pixels", false, readable);
+
+    	// -mapdir chooses where mapped images keep their files, whether made for a view or parsed.
+    	File directory = Files.createTempDirectory("mapped").toFile();
+    	RenderOptions chosen = new RenderOptions();
+    	try
+    	{
+    		String[] args = { "-mapdir", directory.getPath() };
+    		assertEquals("-mapdir takes a directory", 2, chosen.parse(args, 0));
+    		assertEquals("-mapdir maps images", true, chosen.isMapped());
+    		Scene parsed = (Scene) chosen.createParser().parse(new ByteArrayInputStream(xml), Scene.class);
+    		MappedImage[] images = { (MappedImage) chosen.createImage(4, 3), (MappedImage) parsed.getImage() };
+    		for (MappedImage image : images)
+    		{
+    			assertEquals("mapped image's directory", directory, image.getFile().getParentFile());
+    			image.close();
+    		}
+    	}
+    	finally
+    	{
+    		chosen.setMappedDirectory(null);
+    		directory.delete();
+    	}
+
+    	// Rows 360,000 bytes long, so the 1 GB mappings end between rows 2981 and 2982 from the top.
+    	File file = File.createTempFile("mapped", ".raw");
+    	MappedImage big = new MappedImage(file, 30000, 3000);
+    	int[] rows = { 0, 3000 - 2982, 3000 - 2983, 2999 };
+    	for (int y : rows)
+    	{
+    		big.setPixelRGB(y, 0.5, -1, 29999, y);
+    		float[] values = new float[30];
+    		for (int k = 0; k < values.length; k++)
+    			values[k] = y + k;
+    		big.setRow(100, y, 10, FloatBuffer.wrap(values));
+    	}
+    	for (int y : rows)
+    	{
+    		big.getPixelColor(actual, 29999, y);
+    		assertEquals("last pixel of row " + y, (double) y, actual.r, 0);
+    		assertEquals("last pixel of row " + y, 0.5, actual.g, 0);
+    		assertEquals("last pixel of row " + y, -1.0, actual.b, 0);
+    		float[] values = new float[30];
+    		big.getRow(100, y, 10, FloatBuffer.wrap(values));
+    		for (int k = 0; k < values.length; k++)
+    			assertEquals("row " + y + " value " + k, (double) (y + k), values[k], 0);
+    	}
+    	big.close();
+    	assertEquals("closed image's file deleted", false, file.exists());
+    }
+
+    private static byte[] pngBytes(Image image) throws Exception
+    {
+    	ByteArrayOutputStream out = new ByteArrayOutputStream();
+    	image.write(out);
+    	return out.toByteArray();
+    }
+
+    /**
+     * Halves round to nearest, ties to even, and every half reads back as
+     * itself.  Scenes rendered into HalfImage and RgbeImage write PNGs
+     * within a level or a few of an Image's.
+     */
+    @Test
+    public void testPackedImages() throws Exception
+    {
+    	for (int h = 0; h < 1 << 16; h++)
+    	{
+    		float value = HalfImage.toFloat((short) h);
+    		if (!Float.isNaN(value))
+    			assertEquals("half " + h, h, HalfImage.toHalf(value) & 0xffff);
+    	}
+    	assertEquals("tie rounds to even", 0x3c00, HalfImage.toHalf(1 + 0x1p-11f));
+    	assertEquals("above the tie rounds up", 0x3c01, HalfImage.toHalf(Math.nextUp(1 + 0x1p-11f)));
+    	assertEquals("65520 overflows", 0x7c00, HalfImage.toHalf(65520f));
+    	assertEquals("smallest subnormal", 1, HalfImage.toHalf(0x1p-24f));
+    	Random random = new Random(4465);
+    	for (int k = 0; k < 100000; k++)
+    	{
+    		float value = (float) Math.scalb(random.nextDouble(), random.nextInt(20) - 16);
+    		float error = Math.abs(HalfImage.toFloat(HalfImage.toHalf(value)) - value);
+    		assertEquals("error converting " + value, true, error <= Math.max(value * 0x1p-11f, 0x1p-25f));
+    	}
+
+    	byte[] xml = testSceneXML();
+    	RenderOptions options = new RenderOptions();
+    	options.setThreads(2);
+    	Scene scene = (Scene) new Parser().parse(new ByteArrayInputStream(xml), Scene.class);
+    	RayTracer.renderImage(scene, options);
+    	BufferedImage expected = ImageIO.read(new ByteArrayInputStream(pngBytes(scene.getImage())));
+    	String[] formats = { "half", "rgbe" };
+    	Class<?>[] classes = { HalfImage.class, RgbeImage.class };
+    	int[] tolerance = { 1, 6 };
+    	for (int f = 0; f < formats.length; f++)
+    	{
+    		options.setPixelFormat(formats[f]);
+    		Parser parser = new Parser();
+    		parser.setImageClass(options.getImageClass());
+    		Scene packed = (Scene) parser.parse(new ByteArrayInputStream(xml), Scene.class);
+    		assertEquals(formats[f] + " image class", classes[f], packed.getImage().getClass());
+    		RayTracer.renderImage(packed, options);
+    		BufferedImage written = ImageIO.read(new ByteArrayInputStream(pngBytes(packed.getImage())));
+    		int worst = 0;
+    		for (int y = 0; y < expected.getHeight(); y++)
+    			for (int x = 0; x < expected.getWidth(); x++)
+    				for (int shift = 0; shift < 24; shift += 8)
+    					worst = Math.max(worst, Math.abs(((expected.getRGB(x, y) >> shift) & 0xff) - ((written.getRGB(x, y) >> shift) & 0xff)));
+    		assertEquals(formats[f] + " differs by " + worst + " levels", true, worst <= tolerance[f]);
+
+    		// Reading pixels back, as render threads do for the rays that miss, allocates nothing.
+    		Image image = packed.getImage();
+    		int width = image.getWidth();
+    		float[] row = new float[3 + 3 * width];
+    		FloatBuffer wrapped = FloatBuffer.wrap(row);
+    		wrapped.position(1);
+    		FloatBuffer heap = wrapped.slice();
+    		FloatBuffer direct = ByteBuffer.allocateDirect(4 * 3 * width).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    		Color color = new Color();
+    		com.sun.management.ThreadMXBean threads =
+    				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    		long id = Thread.currentThread().getId();
+    		// Reads that allocate do so every pass, so the quietest pass is kept, past the JIT's own allocations.
+    		long allocated = Long.MAX_VALUE;
+    		for (int pass = 0; pass < 5; pass++)
+    		{
+    			long before = threads.getThreadAllocatedBytes(id);
+    			for (int y = 0; y < image.getHeight(); y++)
+    			{
+    				heap.clear();
+    				heap.position(2);
+    				image.getRow(0, y, width, heap);
+    				direct.clear();
+    				image.getRow(0, y, width, direct);
+    				for (int x = 0; x < width; x++)
+    				{
+    					image.getPixelColor(color, x, y);
+    					int k = 3 + 3 * x;
+    					boolean same = row[k] == (float) color.r && row[k + 1] == (float) color.g && row[k + 2] == (float) color.b
+    							&& direct.get(k - 3) == row[k] && direct.get(k - 2) == row[k + 1] && direct.get(k - 1) == row[k + 2];
+    					// A constant message, so that checking allocates nothing either.
+    					assertEquals("rows read back as their pixels", true, same);
+    				}
+    			}
+    			if (pass > 0)
+    				allocated = Math.min(allocated, threads.getThreadAllocatedBytes(id) - before);
+    		}
+    		assertEquals(formats[f] + " reads allocated " + allocated + " bytes", 0, allocated);
+    	}
+    }
+
+    @Test
+    public void testFloatImageIO() throws Exception
+    {
+    	// Odd sizes, and values no PNG keeps: negatives, above 1, infinities and NaN.
+    	int width = 37, height = 23;
+    	Image image = new Image(width, height);
+    	Random random = new Random(4465);
+    	for (int y = 0; y < height; y++)
+    		for (int x = 0; x < width; x++)
+    			image.setPixelRGB(Math.scalb(random.nextDouble() - 0.25, random.nextInt(40) - 20), x * 1000.0 + y, -y, x, y);
+    	image.setPixelRGB(Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, 0, 0);
+    	File pfm = File.createTempFile("ray", ".pfm");
+    	File raw = File.createTempFile("ray", ".raw");
+    	try
+    	{
+    		ImageWriter.writeFile(image, pfm.getPath());
+    		ImageWriter.writeFile(image, raw.getPath());
+    		assertEquals("raw size", 12L * width * height, raw.length());
+    		byte[] header = ("PF\n" + width + " " + height + "\n-1.0\n").getBytes("US-ASCII");
+    		assertEquals("pfm size", header.length + 12L * width * height, pfm.length());
+    		assertEquals("pfm header", new String(header, "US-ASCII"),
+    				new String(Arrays.copyOf(Files.readAllBytes(pfm.toPath()), header.length), "US-ASCII"));
+    		Image[] read = { FloatImageIO.readPfm(pfm), FloatImageIO.readRaw(raw, width, height) };
+    		FloatBuffer expected = FloatBuffer.allocate(3 * width), actual = FloatBuffer.allocate(3 * width);
+    		for (Image copy : read)
+    		{
+    			assertEquals("width", width, copy.getWidth());
+    			assertEquals("height", height, copy.getHeight());
+    			for (int y = 0; y < height; y++)
+    			{
+    				expected.clear();
+    				actual.clear();
+    				image.getRow(0, y, width, expected);
+    				copy.getRow(0, y, width, actual);
+    				for (int k = 0; k < 3 * width; k++)
+    					assertEquals("row " + y + " float " + k, Float.floatToIntBits(expected.get(k)), Float.floatToIntBits(actual.get(k)));
+    			}
+    		}
+
+    		// A big endian greyscale file, bottom row first.
+    		DataOutputStream out = new DataOutputStream(new FileOutputStream(pfm));
+    		out.write("Pf\n2 2\n1.0\n".getBytes("US-ASCII"));
+    		for (int k = 0; k < 4; k++)
+    			out.writeFloat(k + 0.5f);
+    		out.close();
+    		Image grey = FloatImageIO.readPfm(pfm);
+    		Color color = new Color();
+    		grey.getPixelColor(color, 1, 0);
+    		assertEquals("grey red", 1.5, color.r, 0);
+    		assertEquals("grey blue", 1.5, color.b, 0);
+    		grey.getPixelColor(color, 0, 1);
+    		assertEquals("grey top row", 2.5, color.g, 0);
+
+    		try
+    		{
+    			FloatImageIO.readRaw(raw, width + 1, height);
+    			assertEquals("read a raw file of the wrong size", true, false);
+    		}
+    		catch (IOException e)
+    		{
+    		}
+    	}
+    	finally
+    	{
+    		pfm.delete();
+    		raw.delete();
+    	}
+    }
+
+    /**
+     * Test that the streaming parser builds the same scene as the DOM parser.
+     */
+    @Test
+    public void testStreamingParser() throws Exception
+    {
+    	byte[] xml = testSceneXML();
+    	RenderOptions options = new RenderOptions();
+    	options.setThreads(2);
+    	Scene scene = (Scene) new Parser().parse(new ByteArrayInputStream(xml), Scene.class);
+    	RayTracer.renderImage(scene, options);
+    	options.setStreamingParser(true);
+    	Parser parser = options.createParser();
+    	assertEquals("parser class", StreamingParser.class, parser.getClass());
+    	Scene streamed = (Scene) parser.parse(new ByteArrayInputStream(xml), Scene.class);
+    	RayTracer.renderImage(streamed, options);
+    	assertEquals("streamed scene renders the same", true,
+    			Arrays.equals(pngBytes(scene.getImage()), pngBytes(streamed.getImage())));
+
+    	// Full class names, comments and whitespace in text, the children of a
+    	// reference ignored, the image class, and named objects shared.
+    	xml = ("<?xml version=\"1.0\"?>\n<!-- a scene -->\n<scene>\n"
+    			+ "  <image> 20 <!-- by --> 10 </image>\n"
+    			+ "  <material name=\"red\" type=\"ray.material.Lambertian\"><color>1 0 0</color></material>\n"
+    			+ "  <surface type=\"Sphere\"><material ref=\"red\"><color>0 1 0</color></material>"
+    			+ "<center><![CDATA[1 2 3]]></center><radius>\n0.5\n</radius></surface>\n"
+    			+ "  <surface type=\"ray.surface.Sphere\"><material ref=\"red\"/></surface>\n"
+    			+ "  <light type=\"PointLight\"><position>3 5 4</position></light>\n"
+    			+ "</scene>\n").getBytes("UTF-8");
+    	parser = new StreamingParser();
+    	parser.setImageClass(HalfImage.class);
+    	streamed = (Scene) parser.parse(new ByteArrayInputStream(xml), Scene.class);
+    	assertEquals("image class", HalfImage.class, streamed.getImage().getClass());
+    	assertEquals("image width", 20, streamed.getImage().getWidth());
+    	assertEquals("image height", 10, streamed.getImage().getHeight());
+    	ArrayList<Surface> surfaces = streamed.getGroup().getSurfaces();
+    	assertEquals("surfaces", 2, surfaces.size());
+    	assertEquals("named material", parser.references.get("red"), surfaces.get(0).getMaterial());
+    	assertEquals("shared material", surfaces.get(0).getMaterial(), surfaces.get(1).getMaterial());
+    	assertEquals("light position", 5.0, ((PointLight) streamed.getLights().get(0)).position.y, 0);
+    	Ray ray = new Ray(new Point3(1, 2, 10), new Vector3(0, 0, -1));
+    	HitRecord hit = new HitRecord();
+    	assertEquals("sphere hit", true, surfaces.get(0).hit(ray, 0, Double.POSITIVE_INFINITY, hit));
+    	assertEquals("sphere surface", 3.5, ray.origin.z + hit.t * ray.direction.z, 1e-9);
+
+    	// Bad scenes fail the same way.
+    	String[] bad = { "<scene><nothing>1</nothing></scene>",
+    			"<scene><surface type=\"Sphere\"><material ref=\"missing\"/></surface></scene>" };
+    	for (String text : bad)
+    	{
+    		String[] messages = new String[2];
+    		Parser[] parsers = { new Parser(), new StreamingParser() };
+    		for (int k = 0; k < parsers.length; k++)
+    		{
+    			try
+    			{
+    				parsers[k].parse(new ByteArrayInputStream(text.getBytes("UTF-8")), Scene.class);
+    			}
+    			catch (Error e)
+    			{
+    				messages[k] = e.getMessage();
+    			}
+    		}
+    		assertEquals("error for " + text, true, messages[0] != null);
+    		assertEquals("error for " + text, messages[0], messages[1]);
+    	}
+    }
 }
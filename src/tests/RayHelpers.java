@@ -44,24 +44,79 @@ public class RayHelpers
     	// ignore test files: Ray1Test.java, Ray1Test1.java, Ray1Test2.java
     	ignoreFilePattern = Pattern.compile("^Ray(?:[12]Test|Helpers)\\.java$");
     	allowedImports = new String[] {
+        		"com.sun.net.httpserver.HttpExchange",
+        		"com.sun.net.httpserver.HttpHandler",
+        		"com.sun.net.httpserver.HttpServer",
         		"java.awt.Transparency",
         		"java.awt.color.ColorSpace",
         		"java.awt.image.BufferedImage",
         		"java.awt.image.ComponentColorModel",
+        		"java.awt.image.DataBufferByte",
         		"java.awt.image.DataBufferFloat",
         		"java.awt.image.PixelInterleavedSampleModel",
         		"java.awt.image.WritableRaster",
         		"java.awt.image.Raster",
+        		"java.io.BufferedInputStream",
+        		"java.io.BufferedOutputStream",
+        		"java.io.ByteArrayInputStream",
+        		"java.io.ByteArrayOutputStream",
+        		"java.io.Closeable",
+        		"java.io.DataInputStream",
+        		"java.io.DataOutputStream",
         		"java.io.File",
+        		"java.io.FileInputStream",
+        		"java.io.FileOutputStream",
+        		"java.io.IOException",
+        		"java.io.InputStream",
+        		"java.io.OutputStream",
         		"java.lang.reflect.Array",
         		"java.lang.reflect.Constructor",
+        		"java.lang.reflect.Field",
         		"java.lang.reflect.Method",
         		"java.lang.Math",
+        		"java.net.InetAddress",
+        		"java.net.InetSocketAddress",
+        		"java.net.ServerSocket",
+        		"java.net.Socket",
+        		"java.net.URLDecoder",
+        		"java.nio.ByteBuffer",
+        		"java.nio.ByteOrder",
+        		"java.nio.FloatBuffer",
+        		"java.nio.MappedByteBuffer",
+        		"java.nio.channels.Channels",
+        		"java.nio.channels.FileChannel",
+        		"java.nio.channels.WritableByteChannel",
+        		"java.nio.file.Files",
+        		"java.nio.file.StandardOpenOption",
+        		"java.security.MessageDigest",
+        		"java.security.NoSuchAlgorithmException",
         		"java.util.ArrayList",
         		"java.util.HashMap",
+        		"java.util.LinkedHashMap",
+        		"java.util.List",
+        		"java.util.Map",
         		"java.util.StringTokenizer",
+        		"java.util.concurrent.ConcurrentLinkedQueue",
+        		"java.util.concurrent.CountDownLatch",
+        		"java.util.concurrent.ExecutorService",
+        		"java.util.concurrent.Executors",
+        		"java.util.concurrent.ForkJoinPool",
+        		"java.util.concurrent.ForkJoinTask",
+        		"java.util.concurrent.LinkedBlockingDeque",
+        		"java.util.concurrent.RecursiveAction",
+        		"java.util.concurrent.Semaphore",
+        		"java.util.concurrent.ThreadFactory",
+        		"java.util.concurrent.TimeUnit",
+        		"java.util.concurrent.atomic.AtomicInteger",
+        		"java.util.concurrent.atomic.AtomicLong",
+        		"java.util.zip.CRC32",
+        		"java.util.zip.Deflater",
         		"javax.imageio.ImageIO",
         		"javax.xml.parsers.DocumentBuilder",
+        		"javax.xml.stream.XMLInputFactory",
+        		"javax.xml.stream.XMLStreamConstants",
+        		"javax.xml.stream.XMLStreamException",
+        		"javax.xml.stream.XMLStreamReader",
         		"org.w3c.dom.Document",
         		"org.w3c.dom.Element",
         		"org.w3c.dom.NamedNodeMap",
@@ -0,0 +1,105 @@
+package tests;
+
+import java.util.ArrayList;
+
+import ray.math.Point3;
+import ray.math.Ray;
+import ray.math.Vector3;
+import ray.surface.HitRecord;
+import ray.surface.Sphere;
+import ray.surface.SphereSet;
+
+/**
+ * Compares the structure-of-arrays SphereSet kernel with intersecting each
+ * Sphere in turn, on buckets of randomly placed spheres.  Run as
+ *   java tests.SphereKernelBenchmark [spheres] [rays]
+ */
+public class SphereKernelBenchmark
+{
+	/** State of the random number generator, so runs are repeatable. */
+	private static long seed = 4465;
+
+	/**
+	 * @return a pseudo-random number in [0, 1)
+	 */
+	private static double random()
+	{
+		seed = seed * 6364136223846793005L + 1442695040888963407L;
+		return (seed >>> 11) * 0x1.0p-53;
+	}
+
+	public static void main(String[] args)
+	{
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int rays = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+		ArrayList<Sphere> spheres = new ArrayList<Sphere>();
+		for (int k = 0; k < count; k++)
+		{
+			Sphere sphere = new Sphere();
+			sphere.setCenter(new Point3(random() * 20 - 10, random() * 20 - 10, -5 - random() * 20));
+			sphere.setRadius(0.05 + random() * 0.1);
+			spheres.add(sphere);
+		}
+		Sphere[] array = spheres.toArray(new Sphere[count]);
+		SphereSet set = new SphereSet(spheres);
+
+		Vector3[] directions = new Vector3[rays];
+		for (int i = 0; i < rays; i++)
+		{
+			directions[i] = new Vector3(random() - 0.5, random() - 0.5, -1);
+		}
+		Ray ray = new Ray(new Point3(0, 0, 5), null);
+		HitRecord hit = new HitRecord();
+
+		System.out.println(count + " spheres, " + rays + " rays");
+		for (int pass = 0; pass < 5; pass++)
+		{
+			// Legacy API, one sphere at a time.
+			long start = System.nanoTime();
+			double sumLegacy = 0;
+			for (Vector3 direction : directions)
+			{
+				double best = Double.POSITIVE_INFINITY;
+				for (Sphere sphere : array)
+				{
+					HitRecord h = sphere.hit(direction, ray.origin);
+					if (h != null && h.t < best) best = h.t;
+				}
+				if (best < Double.POSITIVE_INFINITY) sumLegacy += best;
+			}
+			long legacy = System.nanoTime() - start;
+
+			// Allocation-free API, one sphere at a time.
+			start = System.nanoTime();
+			double sumScalar = 0;
+			for (Vector3 direction : directions)
+			{
+				ray.direction = direction;
+				double best = Double.POSITIVE_INFINITY;
+				for (Sphere sphere : array)
+				{
+					if (sphere.intersect(ray, 1e-4, best, hit)) best = hit.t;
+				}
+				if (best < Double.POSITIVE_INFINITY) sumScalar += best;
+			}
+			long scalar = System.nanoTime() - start;
+
+			// Structure-of-arrays kernel.
+			start = System.nanoTime();
+			double sumSet = 0;
+			for (Vector3 direction : directions)
+			{
+				ray.direction = direction;
+				if (set.intersect(ray, 1e-4, Double.POSITIVE_INFINITY, hit)) sumSet += hit.t;
+			}
+			long kernel = System.nanoTime() - start;
+
+			System.out.println("pass " + pass
+					+ ": Sphere.hit " + (legacy / 1e6) + " ms"
+					+ ", Sphere.intersect " + (scalar / 1e6) + " ms"
+					+ ", SphereSet " + (kernel / 1e6) + " ms"
+					+ (sumLegacy == sumSet && sumScalar == sumSet ? "" : " (results differ)"));
+		}
+	}
+}